@@ -18,22 +18,22 @@ package net.e6tech.elements.common.actor;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.pattern.AskTimeoutException;
 import akka.pattern.Patterns;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import net.e6tech.elements.common.actor.pool.Events;
 import net.e6tech.elements.common.actor.pool.WorkerPool;
+import net.e6tech.elements.common.actor.pool.WorkerPoolConfig;
+import net.e6tech.elements.common.actor.pool.WorkerPoolStatistics;
 import net.e6tech.elements.common.logging.Logger;
 import net.e6tech.elements.common.resources.*;
 import scala.compat.java8.FutureConverters;
 import scala.concurrent.Await;
-import scala.concurrent.Future;
 import scala.concurrent.duration.Duration;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionStage;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Created by futeh.
@@ -44,10 +44,11 @@ public class Genesis implements Initializable {
     private String configuration;
     private ActorSystem system;
     private ActorRef workerPool;
-    private int initialCapacity = 1;
-    private int maxCapacity = Integer.MAX_VALUE;  // ie unlimited
-    private long idleTimeout = 10000L;
+    private WorkerPoolConfig workerPoolConfig = new WorkerPoolConfig();
+    private WorkerPoolStatistics workerPoolStatistics = new WorkerPoolStatistics();
+    private Semaphore backpressure;
     private long timeout = 5000L;
+    private boolean directExecution = true;
 
     public long getTimeout() {
         return timeout;
@@ -57,32 +58,89 @@ public class Genesis implements Initializable {
         this.timeout = timeout;
     }
 
+    public boolean isDirectExecution() {
+        return directExecution;
+    }
+
+    /**
+     * When true, which is the default, async hands work to a worker without an ask and the worker completes the
+     * returned stage itself.  Non-async dependent stages then run on the worker thread, so anything slow should be
+     * chained with the *Async variants.  When false, async replies through Patterns.ask and dependents run on the
+     * common ForkJoinPool.
+     */
+    public void setDirectExecution(boolean directExecution) {
+        this.directExecution = directExecution;
+    }
+
     public int getInitialCapacity() {
-        return initialCapacity;
+        return workerPoolConfig.getInitialCapacity();
     }
 
     public void setInitialCapacity(int initialCapacity) {
-        this.initialCapacity = initialCapacity;
+        workerPoolConfig.setInitialCapacity(initialCapacity);
     }
 
     public int getMaxCapacity() {
-        return maxCapacity;
+        return workerPoolConfig.getMaxCapacity();
     }
 
     public void setMaxCapacity(int maxCapacity) {
-        this.maxCapacity = maxCapacity;
+        workerPoolConfig.setMaxCapacity(maxCapacity);
     }
 
     public long getIdleTimeout() {
-        return idleTimeout;
+        return workerPoolConfig.getIdleTimeout();
     }
 
     public void setIdleTimeout(long idleTimeout) {
-        if (idleTimeout < 0) {
-            throw new IllegalArgumentException();
-        } else {
-            this.idleTimeout = idleTimeout;
-        }
+        workerPoolConfig.setIdleTimeout(idleTimeout);
+    }
+
+    public int getMaxQueueSize() {
+        return workerPoolConfig.getMaxQueueSize();
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+        workerPoolConfig.setMaxQueueSize(maxQueueSize);
+    }
+
+    public WorkerPoolConfig.Overflow getOverflow() {
+        return workerPoolConfig.getOverflow();
+    }
+
+    public void setOverflow(WorkerPoolConfig.Overflow overflow) {
+        workerPoolConfig.setOverflow(overflow);
+    }
+
+    public int getBatchSize() {
+        return workerPoolConfig.getBatchSize();
+    }
+
+    public void setBatchSize(int batchSize) {
+        workerPoolConfig.setBatchSize(batchSize);
+    }
+
+    public int getLanes() {
+        return workerPoolConfig.getLanes();
+    }
+
+    /**
+     * Sets the number of priority lanes of the worker pool.  See async with a lane.
+     */
+    public void setLanes(int lanes) {
+        workerPoolConfig.setLanes(lanes);
+    }
+
+    public Map<Object, Integer> getWeights() {
+        return workerPoolConfig.getWeights();
+    }
+
+    public void setWeights(Map<Object, Integer> weights) {
+        workerPoolConfig.setWeights(weights);
+    }
+
+    public WorkerPoolStatistics getWorkerPoolStatistics() {
+        return workerPoolStatistics;
     }
 
     @Override
@@ -131,7 +189,9 @@ public class Genesis implements Initializable {
         system = ActorSystem.create(name, config);
 
         // Create a worker pool
-        workerPool =  WorkerPool.newPool(system, initialCapacity, maxCapacity, idleTimeout);
+        workerPool =  WorkerPool.newPool(system, workerPoolConfig, workerPoolStatistics);
+        if (workerPoolConfig.getOverflow() == WorkerPoolConfig.Overflow.BLOCK)
+            backpressure = new Semaphore(workerPoolConfig.getMaxQueueSize());
     }
 
     public void shutdown() {
@@ -175,8 +235,27 @@ public class Genesis implements Initializable {
     }
 
     public CompletionStage<Void> async(Runnable runnable, long timeout) {
-        Future future = Patterns.ask(workerPool, runnable, timeout);
-        return FutureConverters.toJava(future).thenAcceptAsync(ret -> {
+        if (directExecution)
+            return direct(runnable, timeout, Integer.MAX_VALUE, null);
+        return ask(runnable, timeout).thenAcceptAsync(ret -> {
+            // do nothing
+        });
+    }
+
+    /**
+     * Runs runnable ahead of queued work in higher numbered lanes, and fairly against queued work of other keys
+     * in the same lane.  Work submitted without a lane goes to the last lane.
+     * @param lane priority lane, 0 being the most urgent
+     * @param key e.g. a tenant; may be null
+     */
+    public CompletionStage<Void> async(Runnable runnable, int lane, Object key) {
+        return async(runnable, getTimeout(), lane, key);
+    }
+
+    public CompletionStage<Void> async(Runnable runnable, long timeout, int lane, Object key) {
+        if (directExecution)
+            return direct(runnable, timeout, lane, key);
+        return ask(new Events.Prioritized(runnable, lane, key), timeout).thenAcceptAsync(ret -> {
             // do nothing
         });
     }
@@ -186,10 +265,92 @@ public class Genesis implements Initializable {
     }
 
     public <R> CompletionStage<R> async(Callable<R> callable, long timeout) {
-        Future future = Patterns.ask(workerPool, callable, timeout);
-        return FutureConverters.toJava(future).thenApplyAsync(ret -> {
+        if (directExecution)
+            return direct(callable, timeout, Integer.MAX_VALUE, null);
+        return ask(callable, timeout).thenApplyAsync(ret -> {
             Events.Response response = (Events.Response) ret;
             return (R) response.getValue();
         });
     }
+
+    public <R> CompletionStage<R> async(Callable<R> callable, int lane, Object key) {
+        return async(callable, getTimeout(), lane, key);
+    }
+
+    public <R> CompletionStage<R> async(Callable<R> callable, long timeout, int lane, Object key) {
+        if (directExecution)
+            return direct(callable, timeout, lane, key);
+        return ask(new Events.Prioritized(callable, lane, key), timeout).thenApplyAsync(ret -> {
+            Events.Response response = (Events.Response) ret;
+            return (R) response.getValue();
+        });
+    }
+
+    // with BLOCK overflow, waits up to timeout while maxQueueSize tasks are outstanding.
+    private CompletionStage<Object> ask(Object work, long timeout) {
+        if (backpressure == null)
+            return FutureConverters.toJava(Patterns.ask(workerPool, work, timeout));
+
+        long remaining;
+        try {
+            remaining = reserve(timeout);
+        } catch (RejectedExecutionException | InterruptedException e) {
+            return failed(e);
+        }
+        Object reserved;
+        if (work instanceof Events.Prioritized) {
+            Events.Prioritized prioritized = (Events.Prioritized) work;
+            reserved = new Events.Prioritized(reserved(prioritized.getWork()), prioritized.getLane(), prioritized.getKey());
+        } else {
+            reserved = reserved(work);
+        }
+        return FutureConverters.toJava(Patterns.ask(workerPool, reserved, remaining));
+    }
+
+    // the worker completes the future, so there is neither an ask actor nor a hop to complete the returned stage.
+    @SuppressWarnings("unchecked")
+    private <R> CompletionStage<R> direct(Object work, long timeout, int lane, Object key) {
+        long remaining = timeout;
+        if (backpressure != null) {
+            try {
+                remaining = reserve(timeout);
+            } catch (RejectedExecutionException | InterruptedException e) {
+                return (CompletionStage<R>) failed(e);
+            }
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        Events.Direct direct = new Events.Direct((backpressure == null) ? work : reserved(work), future, lane, key);
+        final long expiry = remaining;
+        direct.setTimer(system.scheduler().scheduleOnce(Duration.create(remaining, TimeUnit.MILLISECONDS),
+                () -> future.completeExceptionally(new AskTimeoutException("Timed out after [" + expiry + " ms] waiting for the worker pool")),
+                system.dispatcher()));
+        workerPool.tell(direct, ActorRef.noSender());
+        return (CompletionStage<R>) future;
+    }
+
+    // the permit taken by reserve is held until the work has run or the pool has turned it away, so that
+    // a caller timing out does not make room while the work is still queued.
+    private Events.Reserved reserved(Object work) {
+        return new Events.Reserved(work, backpressure::release);
+    }
+
+    // waits up to timeout for room in the worker pool and returns what is left of timeout.
+    private long reserve(long timeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            if (!backpressure.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new RejectedExecutionException("Timed out waiting for room in the worker pool");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        return Math.max(1L, timeout - (System.currentTimeMillis() - start));
+    }
+
+    private static CompletionStage<Object> failed(Throwable throwable) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
 }
@@ -17,8 +17,13 @@
 package net.e6tech.elements.common.actor.pool;
 
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by futeh.
@@ -63,4 +68,198 @@ public class Events {
             this.value = value;
         }
     }
+
+    /**
+     * A Runnable or Callable to be queued in a priority lane, 0 being the most urgent, and scheduled fairly
+     * against other work of the same lane by key.
+     */
+    public static class Prioritized implements Serializable {
+        private static final long serialVersionUID = -4137043917203491645L;
+        private Object work;
+        private int lane;
+        private Object key;
+
+        public Prioritized(Object work, int lane, Object key) {
+            if (!(work instanceof Runnable) && !(work instanceof Callable))
+                throw new IllegalArgumentException("work must be a Runnable or Callable");
+            this.work = work;
+            this.lane = lane;
+            this.key = key;
+        }
+
+        public Object getWork() {
+            return work;
+        }
+
+        public int getLane() {
+            return lane;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * A Runnable or Callable holding room reserved for it in the pool, e.g. a permit of Genesis's BLOCK
+     * backpressure.  The reservation is released once, when a worker has run the work or when the pool
+     * rejects or drops it, and not when the caller stops waiting for it.  Local only.
+     */
+    public static class Reserved implements Callable<Object> {
+        private Object work;
+        private Runnable release;
+        private AtomicBoolean released = new AtomicBoolean();
+
+        public Reserved(Object work, Runnable release) {
+            if (!(work instanceof Runnable) && !(work instanceof Callable))
+                throw new IllegalArgumentException("work must be a Runnable or Callable");
+            this.work = work;
+            this.release = release;
+        }
+
+        public Object getWork() {
+            return work;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            try {
+                if (work instanceof Runnable) {
+                    ((Runnable) work).run();
+                    return null;
+                }
+                return ((Callable) work).call();
+            } finally {
+                release();
+            }
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true))
+                release.run();
+        }
+    }
+
+    /**
+     * Work that the worker completes future with directly instead of replying to the sender.  Local only.
+     */
+    public static class Direct {
+        private Object work;
+        private CompletableFuture<Object> future;
+        private int lane;
+        private Object key;
+        private Cancellable timer;
+
+        public Direct(Object work, CompletableFuture<Object> future, int lane, Object key) {
+            if (!(work instanceof Runnable) && !(work instanceof Callable))
+                throw new IllegalArgumentException("work must be a Runnable or Callable");
+            this.work = work;
+            this.future = future;
+            this.lane = lane;
+            this.key = key;
+        }
+
+        public Object getWork() {
+            return work;
+        }
+
+        public CompletableFuture<Object> getFuture() {
+            return future;
+        }
+
+        public int getLane() {
+            return lane;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public Cancellable getTimer() {
+            return timer;
+        }
+
+        public void setTimer(Cancellable timer) {
+            this.timer = timer;
+        }
+
+        public void run() {
+            try {
+                if (work instanceof Runnable) {
+                    ((Runnable) work).run();
+                    complete(null);
+                } else {
+                    complete(((Callable) work).call());
+                }
+            } catch (Throwable th) {
+                fail(th);
+            }
+        }
+
+        public void complete(Object value) {
+            if (timer != null)
+                timer.cancel();
+            future.complete(value);
+        }
+
+        public void fail(Throwable throwable) {
+            if (timer != null)
+                timer.cancel();
+            future.completeExceptionally(throwable);
+        }
+    }
+
+    public static class Task {
+        private ActorRef sender;
+        private Object work;
+        private int lane;
+        private Object key;
+        private long queuedAt = System.nanoTime();
+
+        public Task(ActorRef sender, Object work) {
+            this(sender, work, 0, null);
+        }
+
+        public Task(ActorRef sender, Object work, int lane, Object key) {
+            this.sender = sender;
+            this.work = work;
+            this.lane = lane;
+            this.key = key;
+        }
+
+        public ActorRef getSender() {
+            return sender;
+        }
+
+        public Object getWork() {
+            return work;
+        }
+
+        public int getLane() {
+            return lane;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+    }
+
+    /**
+     * Tasks handed to a worker at once.  The worker replies to each task's sender and reports idle once.
+     */
+    public static class Batch {
+        private List<Task> tasks;
+
+        public Batch(List<Task> tasks) {
+            this.tasks = tasks;
+        }
+
+        public List<Task> getTasks() {
+            return tasks;
+        }
+    }
 }
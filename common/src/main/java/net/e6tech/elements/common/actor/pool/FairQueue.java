@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor.pool;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Queue of tasks waiting for a worker.  Lanes are served in strict priority, lane 0 first.  Within a lane,
+ * every key, e.g. a tenant, has its own FIFO queue and keys take turns by deficit round robin: a key with
+ * weight w gets w tasks per round, so a key that floods the pool delays only itself.
+ */
+class FairQueue {
+    private final Lane[] lanes;
+    private final ToIntFunction<Object> weights;
+    private int size;
+
+    FairQueue(int laneCount, ToIntFunction<Object> weights) {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++)
+            lanes[i] = new Lane();
+        this.weights = weights;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size(int lane) {
+        return lanes[lane].size;
+    }
+
+    void add(Events.Task task) {
+        lanes[task.getLane()].add(task);
+        size++;
+    }
+
+    Events.Task poll() {
+        for (Lane lane : lanes) {
+            if (lane.size > 0) {
+                size--;
+                return lane.poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest task of the key with the most tasks in the lowest priority lane that has any, but
+     * never from a lane of higher priority than lane.
+     * @return the removed task, or null if every queued task has a higher priority than lane.
+     */
+    Events.Task dropOldest(int lane) {
+        for (int i = lanes.length - 1; i >= lane; i--) {
+            if (lanes[i].size > 0) {
+                size--;
+                return lanes[i].dropOldest();
+            }
+        }
+        return null;
+    }
+
+    private class Lane {
+        private final Map<Object, KeyQueue> queues = new HashMap<>();
+        private final ArrayDeque<KeyQueue> active = new ArrayDeque<>();
+        private int size;
+
+        void add(Events.Task task) {
+            KeyQueue queue = queues.computeIfAbsent(task.getKey(), KeyQueue::new);
+            if (queue.tasks.isEmpty())
+                active.addLast(queue);
+            queue.tasks.addLast(task);
+            size++;
+        }
+
+        Events.Task poll() {
+            KeyQueue queue = active.peekFirst();
+            if (queue.deficit <= 0)
+                queue.deficit = Math.max(1, weights.applyAsInt(queue.key));
+            Events.Task task = queue.tasks.removeFirst();
+            queue.deficit--;
+            size--;
+            if (queue.tasks.isEmpty()) {
+                active.removeFirst();
+                queues.remove(queue.key);
+            } else if (queue.deficit == 0) {
+                active.addLast(active.removeFirst());
+            }
+            return task;
+        }
+
+        Events.Task dropOldest() {
+            KeyQueue largest = null;
+            for (KeyQueue queue : active)
+                if (largest == null || queue.tasks.size() > largest.tasks.size())
+                    largest = queue;
+            Events.Task task = largest.tasks.removeFirst();
+            size--;
+            if (largest.tasks.isEmpty()) {
+                active.remove(largest);
+                queues.remove(largest.key);
+            }
+            return task;
+        }
+    }
+
+    private static class KeyQueue {
+        final Object key;
+        final ArrayDeque<Events.Task> tasks = new ArrayDeque<>();
+        int deficit;
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+    }
+}
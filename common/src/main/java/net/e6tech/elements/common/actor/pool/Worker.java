@@ -22,9 +22,6 @@ import akka.actor.Status;
 
 import java.util.concurrent.Callable;
 
-/**
- * Created by futeh.
- */
 public class Worker extends AbstractActor {
 
     private ActorRef pool;
@@ -38,24 +35,51 @@ public class Worker extends AbstractActor {
         return receiveBuilder()
                 .match(Runnable.class, event -> {
                     try {
-                        event.run();
-                        getSender().tell(new Events.Response(), getSelf());
-                    } catch (Exception th) {
-                        getSender().tell(new Status.Failure(th), getSelf());
+                        run(event, getSender());
                     } finally {
                         pool.tell(new Events.IdleWorker(getSelf()), getSelf());
                     }
                 })
                 .match(Callable.class, event -> {
                     try {
-                        Object ret = event.call();
-                        getSender().tell(new Events.Response(ret), getSelf());
-                    } catch (Exception th) {
-                        getSender().tell(new Status.Failure(th), getSelf());
+                        run(event, getSender());
+                    } finally {
+                        pool.tell(new Events.IdleWorker(getSelf()), getSelf());
+                    }
+                })
+                .match(Events.Direct.class, event -> {
+                    try {
+                        event.run();
+                    } finally {
+                        pool.tell(new Events.IdleWorker(getSelf()), getSelf());
+                    }
+                })
+                .match(Events.Batch.class, event -> {
+                    try {
+                        for (Events.Task task : event.getTasks())
+                            run(task.getWork(), task.getSender());
                     } finally {
                         pool.tell(new Events.IdleWorker(getSelf()), getSelf());
                     }
                 })
                 .build();
     }
+
+    private void run(Object work, ActorRef sender) {
+        if (work instanceof Events.Direct) {
+            ((Events.Direct) work).run();
+            return;
+        }
+        try {
+            if (work instanceof Runnable) {
+                ((Runnable) work).run();
+                sender.tell(new Events.Response(), getSelf());
+            } else {
+                Object ret = ((Callable) work).call();
+                sender.tell(new Events.Response(ret), getSelf());
+            }
+        } catch (Throwable th) { // so that an Error fails only its own task, not the rest of a batch
+            sender.tell(new Status.Failure(th), getSelf());
+        }
+    }
 }
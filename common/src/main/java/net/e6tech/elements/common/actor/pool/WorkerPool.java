@@ -21,33 +21,59 @@ import net.e6tech.elements.common.actor.Genesis;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Worker pool.  This can only be used within a JVM.
- * <p>
- * Created by futeh.
+ * Runs Runnables and Callables on a pool of Worker actors that grows up to maxCapacity.  Tasks that arrive
+ * while every worker is busy wait in a queue of at most maxQueueSize; beyond that the overflow strategy
+ * applies.  An idle worker is handed up to batchSize queued tasks at a time, so that for short tasks the
+ * messaging between pool and worker is paid once per batch instead of once per task.
+ *
+ * Work sent as Events.Prioritized is queued in its priority lane and scheduled fairly by key within the
+ * lane; see FairQueue.  An urgent task still waits for a worker to finish its current batch, so a smaller
+ * batchSize bounds its wait more tightly when tasks are long.
  */
 public class WorkerPool extends AbstractActor {
     private int initialCapacity = 1;
     private int maxCapacity = Integer.MAX_VALUE;  // ie unlimited
     private long idleTimeout = 10000L;
+    private int maxQueueSize = 10000;
+    private WorkerPoolConfig.Overflow overflow = WorkerPoolConfig.Overflow.REJECT;
+    private int batchSize = 8;
+    private int lanes = 1;
+    private Map<Object, Integer> weights = Collections.emptyMap();
     private boolean cleanupScheduled = false;
     private Set<ActorRef> workers = new LinkedHashSet<>();
     private Set<ActorRef> idleWorkers = new LinkedHashSet<>();
-    private LinkedList<Task> waiting = new LinkedList<>();
+    private FairQueue waiting;
+    private WorkerPoolStatistics statistics = new WorkerPoolStatistics();
 
     public static ActorRef newPool(ActorSystem system, int initialCapacity, int maxCapacity, long idleTimeout) {
+        WorkerPoolConfig config = new WorkerPoolConfig();
+        config.setInitialCapacity(initialCapacity);
+        config.setMaxCapacity(maxCapacity);
+        config.setIdleTimeout(idleTimeout);
+        return newPool(system, config, new WorkerPoolStatistics());
+    }
+
+    /**
+     * @param statistics updated by the pool.
+     */
+    public static ActorRef newPool(ActorSystem system, WorkerPoolConfig config, WorkerPoolStatistics statistics) {
         return system.actorOf(Props.create(WorkerPool.class, () -> {
             WorkerPool instance = new WorkerPool();
-            instance.setInitialCapacity(initialCapacity);
-            instance.setMaxCapacity(maxCapacity);
-            instance.setIdleTimeout(idleTimeout);
+            instance.setInitialCapacity(config.getInitialCapacity());
+            instance.setMaxCapacity(config.getMaxCapacity());
+            instance.setIdleTimeout(config.getIdleTimeout());
+            instance.setMaxQueueSize(config.getMaxQueueSize());
+            instance.setOverflow(config.getOverflow());
+            instance.setBatchSize(config.getBatchSize());
+            instance.setLanes(config.getLanes());
+            instance.setWeights(new HashMap<>(config.getWeights()));
+            instance.statistics = statistics;
             return instance;
         }));
     }
@@ -80,8 +106,54 @@ public class WorkerPool extends AbstractActor {
         }
     }
 
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public WorkerPoolConfig.Overflow getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(WorkerPoolConfig.Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    public Map<Object, Integer> getWeights() {
+        return weights;
+    }
+
+    public void setWeights(Map<Object, Integer> weights) {
+        this.weights = weights;
+    }
+
+    public WorkerPoolStatistics getStatistics() {
+        return statistics;
+    }
+
     @Override
     public void preStart() {
+        waiting = new FairQueue(lanes, key -> weights.getOrDefault(key, 1));
+        statistics.setLanes(lanes);
         for (int i = 0; i < initialCapacity; i++) {
             newWorker();
         }
@@ -94,9 +166,14 @@ public class WorkerPool extends AbstractActor {
                 .match(Terminated.class, event -> {
                     workers.remove(event.actor());
                     idleWorkers.remove(event.actor());
+                    updateWorkers();
                 })
-                .match(Runnable.class, this::newTask)
-                .match(Callable.class, this::newTask)
+                .match(Runnable.class, event -> newTask(event, lanes - 1, null))
+                .match(Callable.class, event -> newTask(event, lanes - 1, null))
+                .match(Events.Prioritized.class, event ->
+                        newTask(event.getWork(), Math.max(0, Math.min(lanes - 1, event.getLane())), event.getKey()))
+                .match(Events.Direct.class, event ->
+                        newTask(event, Math.max(0, Math.min(lanes - 1, event.getLane())), event.getKey()))
                 .match(Events.Cleanup.class, events -> {
                     if (idleWorkers.size() > initialCapacity) {
                         Iterator<ActorRef> iterator = idleWorkers.iterator();
@@ -107,24 +184,50 @@ public class WorkerPool extends AbstractActor {
                             workers.remove(worker);
                             worker.tell(PoisonPill.getInstance(), getSelf());
                         }
+                        updateWorkers();
                     }
                     cleanupScheduled = false;
                 })
                 .build();
     }
 
-    private void newTask(Object event) {
+    private void newTask(Object work, int lane, Object key) {
+        statistics.submitted();
         if (!idleWorkers.isEmpty()) {
             Iterator<ActorRef> iterator = idleWorkers.iterator();
             ActorRef worker = iterator.next();
             iterator.remove();
-            worker.forward(event, getContext());
-        } else if (workers.size() < maxCapacity) {
-            waiting.add(new Task(getSender(), event));
-            newWorker();
-        } else {
-            waiting.add(new Task(getSender(), event));
+            updateWorkers();
+            worker.forward(work, getContext());
+            return;
         }
+
+        if (waiting.size() >= maxQueueSize) {
+            Events.Task oldest = (overflow == WorkerPoolConfig.Overflow.DROP_OLDEST) ? waiting.dropOldest(lane) : null;
+            if (oldest != null) {
+                statistics.dropped();
+                updateQueueDepth(oldest.getLane());
+                fail(oldest.getSender(), oldest.getWork(), new RejectedExecutionException("Dropped from a full queue"));
+            } else {
+                statistics.rejected();
+                fail(getSender(), work, new RejectedExecutionException("Worker pool queue is full"));
+                return;
+            }
+        }
+        waiting.add(new Events.Task(getSender(), work, lane, key));
+        updateQueueDepth(lane);
+        if (workers.size() < maxCapacity)
+            newWorker();
+    }
+
+    private void fail(ActorRef sender, Object work, Exception exception) {
+        Object inner = (work instanceof Events.Direct) ? ((Events.Direct) work).getWork() : work;
+        if (inner instanceof Events.Reserved)
+            ((Events.Reserved) inner).release();
+        if (work instanceof Events.Direct)
+            ((Events.Direct) work).fail(exception);
+        else
+            sender.tell(new Status.Failure(exception), getSelf());
     }
 
     private void newWorker() {
@@ -136,12 +239,39 @@ public class WorkerPool extends AbstractActor {
 
     private void idle(ActorRef worker) {
         if (!waiting.isEmpty()) {
-            Task task = waiting.removeFirst();
-            worker.tell(task.getWork(), task.getSender());
+            // a fair share of the queue so that no worker sits on tasks that another could run
+            int size = Math.min(batchSize, Math.max(1, waiting.size() / Math.max(1, workers.size())));
+            long now = System.nanoTime();
+            if (size == 1) {
+                Events.Task task = waiting.poll();
+                statistics.getWaitTime().record(now - task.getQueuedAt());
+                updateQueueDepth(task.getLane());
+                worker.tell(task.getWork(), task.getSender());
+            } else {
+                List<Events.Task> tasks = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    Events.Task task = waiting.poll();
+                    statistics.getWaitTime().record(now - task.getQueuedAt());
+                    updateQueueDepth(task.getLane());
+                    tasks.add(task);
+                }
+                worker.tell(new Events.Batch(tasks), getSelf());
+            }
+            statistics.batch();
         } else {
             idleWorkers.add(worker);
             cleanup();
         }
+        updateWorkers();
+    }
+
+    private void updateQueueDepth(int lane) {
+        statistics.setQueueDepth(waiting.size());
+        statistics.setQueueDepth(lane, waiting.size(lane));
+    }
+
+    private void updateWorkers() {
+        statistics.setWorkers(workers.size(), idleWorkers.size());
     }
 
     private void cleanup() {
@@ -155,22 +285,4 @@ public class WorkerPool extends AbstractActor {
                 getContext().dispatcher()
         );
     }
-
-    private class Task {
-        ActorRef sender;
-        Object work;
-
-        public Task(ActorRef sender, Object work) {
-            this.sender = sender;
-            this.work = work;
-        }
-
-        public ActorRef getSender() {
-            return sender;
-        }
-
-        public Object getWork() {
-            return work;
-        }
-    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor.pool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of a WorkerPool.
+ */
+public class WorkerPoolConfig {
+
+    /**
+     * What to do with a task that arrives when every worker is busy and the queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Fail the new task with a RejectedExecutionException.
+         */
+        REJECT,
+        /**
+         * Fail the oldest queued task with a RejectedExecutionException and queue the new one.  Only a task
+         * of the same or lower priority is dropped; if every queued task is more urgent, the new one is rejected.
+         */
+        DROP_OLDEST,
+        /**
+         * Make callers of Genesis.async wait, up to their timeout, while maxQueueSize tasks are outstanding.
+         * Tasks sent to the pool directly are rejected when the queue is full.
+         */
+        BLOCK
+    }
+
+    private int initialCapacity = 1;
+    private int maxCapacity = Integer.MAX_VALUE;  // ie unlimited
+    private long idleTimeout = 10000L;
+    private int maxQueueSize = 10000;
+    private Overflow overflow = Overflow.REJECT;
+    private int batchSize = 8;
+    private int lanes = 1;
+    private Map<Object, Integer> weights = new HashMap<>();
+
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    public void setInitialCapacity(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public void setMaxCapacity(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException();
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return number of tasks that can wait for a worker.
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize <= 0)
+            throw new IllegalArgumentException();
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return most queued tasks handed to a worker at once.  A worker takes fewer when the queue is short
+     * relative to the number of workers, so that no worker sits on tasks another could run.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException();
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return number of priority lanes.  Queued tasks in lane 0 go first, then lane 1 and so on.  Tasks sent
+     * without a lane go to the last one.
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(int lanes) {
+        if (lanes <= 0)
+            throw new IllegalArgumentException();
+        this.lanes = lanes;
+    }
+
+    public Map<Object, Integer> getWeights() {
+        return weights;
+    }
+
+    public void setWeights(Map<Object, Integer> weights) {
+        this.weights = weights;
+    }
+
+    /**
+     * Within a lane, a key with weight w gets w queued tasks for every one of a key with weight 1.
+     */
+    public void setWeight(Object key, int weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException();
+        weights.put(key, weight);
+    }
+
+    public int getWeight(Object key) {
+        return weights.getOrDefault(key, 1);
+    }
+}
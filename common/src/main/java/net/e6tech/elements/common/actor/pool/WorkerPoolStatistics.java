@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor.pool;
+
+import net.e6tech.elements.common.util.concurrent.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a WorkerPool, updated by the pool actor and safe to read from any thread.
+ */
+public class WorkerPoolStatistics {
+    private volatile int queueDepth;
+    private volatile AtomicIntegerArray laneDepths = new AtomicIntegerArray(1);
+    private volatile int workers;
+    private volatile int idleWorkers;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    /**
+     * @return number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return number of tasks waiting for a worker in a priority lane.
+     */
+    public int getQueueDepth(int lane) {
+        return laneDepths.get(lane);
+    }
+
+    public int getLanes() {
+        return laneDepths.length();
+    }
+
+    void setLanes(int lanes) {
+        laneDepths = new AtomicIntegerArray(lanes);
+    }
+
+    void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    void setQueueDepth(int lane, int depth) {
+        laneDepths.set(lane, depth);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getIdleWorkers() {
+        return idleWorkers;
+    }
+
+    void setWorkers(int workers, int idleWorkers) {
+        this.workers = workers;
+        this.idleWorkers = idleWorkers;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of queued tasks failed to make room under DROP_OLDEST.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of times queued tasks were handed to a worker.
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return time tasks spent in the queue.  Tasks that found an idle worker are not recorded.
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    void submitted() {
+        submitted.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void batch() {
+        batches.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + queueDepth + " workers=" + workers + " idle=" + idleWorkers + " submitted=" + getSubmittedCount()
+                + " rejected=" + getRejectedCount() + " dropped=" + getDroppedCount()
+                + " waitMs=" + waitTime.getMean(java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+}
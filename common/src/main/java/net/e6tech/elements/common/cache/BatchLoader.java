@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Loads many keys in one call, for CacheFacade.getAll and loadAll.  Keys missing from the returned map
+ * are treated as having no value.
+ */
+@FunctionalInterface
+public interface BatchLoader<K, V> {
+    Map<K, V> load(Collection<K> keys) throws Exception;
+}
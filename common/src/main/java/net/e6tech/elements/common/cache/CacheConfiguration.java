@@ -20,10 +20,11 @@ import net.e6tech.elements.common.util.SystemException;
 import javax.cache.Cache;
 import javax.cache.CacheException;
 import javax.cache.CacheManager;
-import javax.cache.Caching;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 
 /**
  * Created by futeh.
@@ -31,6 +32,7 @@ import java.util.Map;
 public class CacheConfiguration {
 
     public static final long DEFAULT_EXPIRY = 15 * 60 * 1000L;
+    public static final long DEFAULT_NEAR_CACHE_EXPIRY = 1000L;
 
     private static final String DEFAULT_PROVIDER = "net.e6tech.elements.common.cache.ehcache.EhcacheProvider";
     private static Map<String, CacheManager> managers = Collections.synchronizedMap(new HashMap<>());
@@ -41,6 +43,18 @@ public class CacheConfiguration {
     private long expiry = DEFAULT_EXPIRY;
     private long maxEntries = 1024L;
     private boolean storeByValue = false;
+    private long loadTimeout = 0L;
+    private int nearCacheMaxEntries = 0;
+    private long nearCacheExpiry = DEFAULT_NEAR_CACHE_EXPIRY;
+    private long offHeapBytes = 0L;
+    private long diskBytes = 0L;
+    private boolean diskPersistent = true;
+    private String diskDirectory;
+    private double refreshAheadFactor = 0d;
+    private long maxStaleAge = 0L;
+    private double expiryJitter = 0d;
+    private double earlyExpirationBeta = 0d;
+    private DoubleSupplier random = () -> ThreadLocalRandom.current().nextDouble();
 
     public CacheConfiguration() {
         // default constructor
@@ -80,6 +94,173 @@ public class CacheConfiguration {
         this.storeByValue = storeByValue;
     }
 
+    /**
+     * @return maximum time in milliseconds a caller waits for a load, its own or one started by another thread.
+     * 0 means no limit, in which case the first caller runs the load on its own thread.
+     */
+    public long getLoadTimeout() {
+        return loadTimeout;
+    }
+
+    public void setLoadTimeout(long loadTimeout) {
+        if (loadTimeout < 0)
+            throw new IllegalArgumentException();
+        this.loadTimeout = loadTimeout;
+    }
+
+    /**
+     * @return maximum number of entries in the near cache placed in front of the provider cache.  0 disables it.
+     */
+    public int getNearCacheMaxEntries() {
+        return nearCacheMaxEntries;
+    }
+
+    public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+        if (nearCacheMaxEntries < 0)
+            throw new IllegalArgumentException();
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    /**
+     * @return time-to-live in milliseconds of near cache entries.
+     */
+    public long getNearCacheExpiry() {
+        return nearCacheExpiry;
+    }
+
+    public void setNearCacheExpiry(long nearCacheExpiry) {
+        if (nearCacheExpiry <= 0)
+            throw new IllegalArgumentException();
+        this.nearCacheExpiry = nearCacheExpiry;
+    }
+
+    /**
+     * @return size in bytes of the off-heap tier.  0 means no off-heap tier.
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    public void setOffHeapBytes(long offHeapBytes) {
+        if (offHeapBytes < 0)
+            throw new IllegalArgumentException();
+        this.offHeapBytes = offHeapBytes;
+    }
+
+    /**
+     * @return size in bytes of the local disk tier.  0 means no disk tier.  Requires diskDirectory.
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public void setDiskBytes(long diskBytes) {
+        if (diskBytes < 0)
+            throw new IllegalArgumentException();
+        this.diskBytes = diskBytes;
+    }
+
+    /**
+     * @return true if the disk tier is kept when the CacheManager is closed so that entries survive a restart.
+     */
+    public boolean isDiskPersistent() {
+        return diskPersistent;
+    }
+
+    public void setDiskPersistent(boolean diskPersistent) {
+        this.diskPersistent = diskPersistent;
+    }
+
+    public String getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    public void setDiskDirectory(String diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    /**
+     * @return fraction of expiry after which a read of a loaded entry triggers an asynchronous reload.
+     * 0 disables refresh-ahead.
+     */
+    public double getRefreshAheadFactor() {
+        return refreshAheadFactor;
+    }
+
+    public void setRefreshAheadFactor(double refreshAheadFactor) {
+        if (refreshAheadFactor < 0 || refreshAheadFactor >= 1)
+            throw new IllegalArgumentException();
+        this.refreshAheadFactor = refreshAheadFactor;
+    }
+
+    /**
+     * @return milliseconds since it was loaded that a value may still be returned after it has expired while
+     * its refresh is running or failing.  0 means values are not served past expiry.
+     */
+    public long getMaxStaleAge() {
+        return maxStaleAge;
+    }
+
+    public void setMaxStaleAge(long maxStaleAge) {
+        if (maxStaleAge < 0)
+            throw new IllegalArgumentException();
+        this.maxStaleAge = maxStaleAge;
+    }
+
+    /**
+     * @return fraction of expiry by which the time-to-live of each write is shortened at random, so that
+     * entries written at the same moment do not expire together.  0 disables jitter.
+     */
+    public double getExpiryJitter() {
+        return expiryJitter;
+    }
+
+    public void setExpiryJitter(double expiryJitter) {
+        if (expiryJitter < 0 || expiryJitter >= 1)
+            throw new IllegalArgumentException();
+        this.expiryJitter = expiryJitter;
+    }
+
+    /**
+     * @return beta of probabilistic early expiration (XFetch).  Each read of a loaded value reloads it in
+     * the background with a probability that rises as its expiry nears, earlier for values that take longer
+     * to load.  1 is the usual value and larger values reload earlier.  0 disables it.
+     */
+    public double getEarlyExpirationBeta() {
+        return earlyExpirationBeta;
+    }
+
+    public void setEarlyExpirationBeta(double earlyExpirationBeta) {
+        if (earlyExpirationBeta < 0)
+            throw new IllegalArgumentException();
+        this.earlyExpirationBeta = earlyExpirationBeta;
+    }
+
+    public DoubleSupplier getRandom() {
+        return random;
+    }
+
+    /**
+     * Source of random numbers from 0 inclusive to 1 exclusive for expiry jitter and early expiration,
+     * ThreadLocalRandom by default.
+     */
+    public void setRandom(DoubleSupplier random) {
+        this.random = random;
+    }
+
+    /**
+     * @return time-to-live in milliseconds for a write: expiry shortened by a random part of expiryJitter.
+     */
+    public long nextExpiry() {
+        if (expiryJitter == 0d)
+            return expiry;
+        return expiry - (long) (expiry * expiryJitter * random.getAsDouble());
+    }
+
+    private String managerKey() {
+        return provider.getCacheManagerKey(this);
+    }
+
     public synchronized CacheManager getCacheManager() {
         if (cacheManager != null)
             return cacheManager;
@@ -91,10 +272,25 @@ public class CacheConfiguration {
                 throw new SystemException(e);
             }
         }
-        cacheManager = managers.computeIfAbsent(provider.getProviderClassName(), key ->  Caching.getCachingProvider(key).getCacheManager());
+        if (diskBytes > 0 && diskDirectory == null)
+            throw new SystemException("diskDirectory is required for a disk tier");
+        cacheManager = managers.computeIfAbsent(managerKey(), key -> provider.createCacheManager(this));
         return cacheManager;
     }
 
+    /**
+     * Closes the CacheManager used by this configuration, which is shared by configurations with the same
+     * provider and disk directory.  Persistent disk tiers are flushed so that their entries are available
+     * to the next CacheManager created for the same directory.
+     */
+    public synchronized void closeCacheManager() {
+        if (cacheManager == null)
+            return;
+        managers.remove(managerKey(), cacheManager);
+        cacheManager.close();
+        cacheManager = null;
+    }
+
     public <K, V> Cache<K, V> getCache(String name, Class<K> keyClass, Class<V> valueClass) {
         CacheManager cacheManager = getCacheManager();
         Cache<K, V> cache = cacheManager.getCache(name, keyClass, valueClass);
@@ -17,14 +17,19 @@
 package net.e6tech.elements.common.cache;
 
 import net.e6tech.elements.common.inject.Inject;
+import net.e6tech.elements.common.logging.Logger;
 import net.e6tech.elements.common.reflection.Reflection;
 import net.e6tech.elements.common.util.SystemException;
 
 import javax.cache.Cache;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.concurrent.Callable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * This class should be instantiated as an anonymous class.  For example,
@@ -32,11 +37,29 @@ import java.util.function.Consumer;
  * Created by futeh.
  */
 public abstract class CacheFacade<K, V> {
+    private static Logger logger = Logger.getLogger();
+    // facades sharing a cache name share its near cache so that puts through one are seen by the others.
+    private static Map<String, NearCache> nearCaches = new ConcurrentHashMap<>();
+    // likewise generations, so that a write through one facade is seen by a load through another.
+    private static Map<String, AtomicLongArray> generationsByName = new ConcurrentHashMap<>();
+    private static final int GENERATION_STRIPES = 64;
+
     protected CacheConfiguration configuration;
     protected String name;
     protected Class keyClass;
     protected Class valueClass;
-    Cache<K, V> cache;
+    volatile Cache<K, V> cache;
+    private NearCache<K, V> nearCache;
+    private AtomicLongArray generations; // bumped by writes and invalidations, per stripe of keys
+    private CacheInvalidation cacheInvalidation;
+    private Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private CacheStatistics statistics;
+    private Executor refreshExecutor;
+    private Executor loadExecutor;
+    private LongSupplier clock = System::nanoTime;
+    private Map<K, Loaded<V>> loaded = new ConcurrentHashMap<>(); // values loaded by get(key, callable), for refresh-ahead
+    private volatile int pruneAt = MIN_PRUNE_AT; // size of loaded that triggers pruning
+    private static final int MIN_PRUNE_AT = 1024;
 
     public CacheFacade() {
         this(Reflection.getCallingClass(), null);
@@ -106,40 +129,762 @@ public abstract class CacheFacade<K, V> {
         this.configuration = configuration;
     }
 
-    public V get(K key) {
-        return getCache().get(key);
+    public CacheInvalidation getCacheInvalidation() {
+        return cacheInvalidation;
     }
 
-    public V get(K key, Callable<V> callable) {
+    /**
+     * Opts in to publishing puts and removes to other nodes, see CacheInvalidation.
+     */
+    @Inject(optional = true)
+    public void setCacheInvalidation(CacheInvalidation cacheInvalidation) {
+        this.cacheInvalidation = cacheInvalidation;
+    }
+
+    public V get(K key) {
         Cache<K,V> c = getCache();
+        if (nearCache != null) {
+            V value = nearCache.get(key);
+            if (value != null)
+                return value;
+        }
+
+        long generation = generation(key);
         V value = c.get(key);
         if (value == null) {
-            try {
-                value = callable.call();
-                c.put(key, value);
-            } catch (Exception e) {
-                throw new SystemException(e);
-            }
+            statistics.misses.increment();
+        } else {
+            statistics.hits.increment();
+            if (nearCache != null)
+                storeNear(key, value, generation);
         }
         return value;
     }
 
+    /**
+     * Returns the cached value or loads it with callable.  Concurrent misses for the same key share a single
+     * load: the first caller runs callable while the others wait for its result.  A failed load is rethrown
+     * to every waiter and is not cached.  With a load timeout configured, the load runs on the load executor and
+     * every caller, including the first, waits for it up to the timeout and then gets a SystemException caused
+     * by TimeoutException.  The load itself keeps running and still populates the cache, but the next miss
+     * starts a new one.  callable must not call get for the same key.
+     *
+     * With a refresh-ahead factor configured, a read of a value older than that fraction of expiry reloads it
+     * in the background with callable and returns the current value meanwhile.  If the value expires while
+     * its refresh is running or failing, it is still returned until it is maxStaleAge old.  With an early
+     * expiration beta configured, reads reload values in the same way at random as their expiry nears.
+     */
+    public V get(K key, Callable<V> callable) {
+        V value = get(key);
+        boolean refreshAhead = refreshes();
+        if (value != null) {
+            if (refreshAhead)
+                refreshIfDue(key, callable, loaded.get(key));
+            return value;
+        }
+        if (refreshAhead) {
+            V stale = getStale(key, callable);
+            if (stale != null)
+                return stale;
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            statistics.coalescedLoads.increment();
+            return await(existing);
+        }
+
+        long timeout = configuration.getLoadTimeout();
+        if (timeout > 0)
+            return loadWithin(key, future, callable, refreshAhead, timeout);
+        return loadOwned(key, future, callable, refreshAhead);
+    }
+
+    // loads the key whose future is owned by the caller and completes the future.
+    private V loadOwned(K key, CompletableFuture<V> future, Callable<V> callable, boolean refreshAhead) {
+        Cache<K,V> c = cache;
+        try {
+            long generation = generation(key);
+            // the previous load for the key may have completed between the miss and putIfAbsent
+            V value = c.get(key);
+            if (value == null) {
+                long start = clock.getAsLong();
+                value = load(callable);
+                if (value != null && store(key, value, generation) && refreshAhead)
+                    recordLoaded(key, value, clock.getAsLong() - start);
+            }
+            future.complete(value);
+            return value;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw new SystemException(e);
+        } catch (Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    // runs the load on the load executor so that the owner can give up on it as waiters do.
+    private V loadWithin(K key, CompletableFuture<V> future, Callable<V> callable, boolean refreshAhead, long timeout) {
+        try {
+            getLoadExecutor().execute(() -> {
+                try {
+                    loadOwned(key, future, callable, refreshAhead);
+                } catch (RuntimeException | Error ex) {
+                    Logger.suppress(ex); // already passed on through future
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+            inFlight.remove(key, future);
+            throw new SystemException(ex);
+        }
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new SystemException(e.getCause());
+        } catch (TimeoutException e) {
+            // waiters give up as well, and the next miss starts over instead of waiting on a load that may never end
+            future.completeExceptionally(e);
+            inFlight.remove(key, future);
+            throw new SystemException("Timed out after " + timeout + "ms loading cache " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        }
+    }
+
+    /**
+     * Looks up many keys at once: the near cache first, then one getAll on the provider cache for the rest.
+     * @return the keys found and their values.
+     */
+    public Map<K, V> getAll(Collection<K> keys) {
+        Cache<K,V> c = getCache();
+        Map<K, V> result = new HashMap<>(keys.size() * 2);
+        Set<K> remaining = new HashSet<>(keys.size() * 2);
+        for (K key : keys) {
+            V value = (nearCache == null) ? null : nearCache.get(key);
+            if (value != null)
+                result.put(key, value);
+            else
+                remaining.add(key);
+        }
+        if (remaining.isEmpty())
+            return result;
+
+        Map<K, Long> generationsBefore = new HashMap<>();
+        if (nearCache != null)
+            remaining.forEach(key -> generationsBefore.put(key, generation(key)));
+        Map<K, V> found = c.getAll(remaining);
+        statistics.hits.add(found.size());
+        statistics.misses.add((long) remaining.size() - found.size());
+        if (nearCache != null)
+            found.forEach((key, value) -> storeNear(key, value, generationsBefore.get(key)));
+        result.putAll(found);
+        return result;
+    }
+
+    /**
+     * Looks up many keys at once and calls loader once for the keys that are missing.  Keys already being
+     * loaded by other threads, through get(key, callable) or getAll, are waited for instead of loaded again.
+     * With a load timeout configured, the batch load runs on the load executor and the caller gives up on it
+     * after the timeout, as with get(key, callable).
+     * @return the keys with values.
+     */
+    public Map<K, V> getAll(Collection<K> keys, BatchLoader<K, V> loader) {
+        Map<K, V> result = getAll(keys);
+        boolean refreshAhead = refreshes();
+        if (refreshAhead)
+            result.keySet().forEach(key -> refreshIfDue(key, singleLoader(key, loader), loaded.get(key)));
+        if (result.keySet().containsAll(keys))
+            return result;
+
+        Map<K, CompletableFuture<V>> owned = new HashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new HashMap<>();
+        for (K key : keys) {
+            if (result.containsKey(key) || owned.containsKey(key) || waiting.containsKey(key))
+                continue;
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+            if (existing == null) {
+                owned.put(key, future);
+            } else {
+                statistics.coalescedLoads.increment();
+                waiting.put(key, existing);
+            }
+        }
+
+        if (!owned.isEmpty())
+            result.putAll(loadBatchOwned(owned, loader, refreshAhead, true));
+
+        for (Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()) {
+            V value = await(entry.getValue());
+            if (value != null)
+                result.put(entry.getKey(), value);
+        }
+        return result;
+    }
+
+    /**
+     * Loads keys with loader and stores the values, whether or not they are cached already.  Since this
+     * replaces cached values, the keys are invalidated on other nodes as with putAll.
+     */
+    public Map<K, V> loadAll(Collection<K> keys, BatchLoader<K, V> loader) {
+        getCache();
+        Map<K, CompletableFuture<V>> owned = new HashMap<>();
+        for (K key : keys)
+            owned.put(key, new CompletableFuture<>());
+        Map<K, V> result = loadBatchOwned(owned, loader, refreshes(), false);
+        if (cacheInvalidation != null)
+            result.keySet().forEach(key -> cacheInvalidation.invalidate(name, key));
+        return result;
+    }
+
+    private Map<K, V> loadBatchOwned(Map<K, CompletableFuture<V>> owned, BatchLoader<K, V> loader,
+                                     boolean refreshAhead, boolean recheck) {
+        long timeout = configuration.getLoadTimeout();
+        if (timeout > 0)
+            return loadWithin(owned, loader, refreshAhead, recheck, timeout);
+        return loadOwned(owned, loader, refreshAhead, recheck);
+    }
+
+    // runs the batch load on the load executor so that the owner can give up on it as waiters do.
+    private Map<K, V> loadWithin(Map<K, CompletableFuture<V>> owned, BatchLoader<K, V> loader,
+                                 boolean refreshAhead, boolean recheck, long timeout) {
+        CompletableFuture<Map<K, V>> batch = new CompletableFuture<>();
+        try {
+            getLoadExecutor().execute(() -> {
+                try {
+                    batch.complete(loadOwned(owned, loader, refreshAhead, recheck));
+                } catch (RuntimeException | Error ex) {
+                    batch.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            owned.forEach((key, future) -> {
+                future.completeExceptionally(ex);
+                inFlight.remove(key, future);
+            });
+            throw new SystemException(ex);
+        }
+
+        try {
+            return batch.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SystemException)
+                throw (SystemException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new SystemException(cause);
+        } catch (TimeoutException e) {
+            // waiters give up as well, and the next miss starts over instead of waiting on a load that may never end
+            owned.forEach((key, future) -> {
+                future.completeExceptionally(e);
+                inFlight.remove(key, future);
+            });
+            throw new SystemException("Timed out after " + timeout + "ms loading cache " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        }
+    }
+
+    // loads the keys whose futures are owned by the caller and completes the futures.
+    private Map<K, V> loadOwned(Map<K, CompletableFuture<V>> owned, BatchLoader<K, V> loader,
+                                boolean refreshAhead, boolean recheck) {
+        Cache<K,V> c = cache;
+        try {
+            Map<K, Long> generationsBefore = new HashMap<>();
+            owned.keySet().forEach(key -> generationsBefore.put(key, generation(key)));
+            // other loads may have completed between the lookup and claiming the keys
+            Map<K, V> result = recheck ? new HashMap<>(c.getAll(owned.keySet())) : new HashMap<>();
+            Set<K> missing = new HashSet<>(owned.keySet());
+            missing.removeAll(result.keySet());
+            if (!missing.isEmpty()) {
+                long start = clock.getAsLong();
+                Map<K, V> loadedValues = loadBatch(missing, loader);
+                long loadNanos = clock.getAsLong() - start;
+                Map<K, V> values = new HashMap<>();
+                Map<K, V> unchanged = new HashMap<>();
+                for (K key : missing) {
+                    V value = loadedValues.get(key);
+                    if (value == null)
+                        continue;
+                    values.put(key, value);
+                    if (generation(key) == generationsBefore.get(key))
+                        unchanged.put(key, value);
+                }
+                c.putAll(unchanged);
+                for (Map.Entry<K, V> entry : unchanged.entrySet()) {
+                    if (nearCache != null)
+                        nearCache.put(entry.getKey(), entry.getValue());
+                    if (!stored(entry.getKey(), entry.getValue(), generationsBefore.get(entry.getKey())))
+                        continue;
+                    if (refreshAhead)
+                        recordLoaded(entry.getKey(), entry.getValue(), loadNanos);
+                }
+                result.putAll(values);
+            }
+            owned.forEach((key, future) -> future.complete(result.get(key)));
+            return result;
+        } catch (Exception e) {
+            owned.values().forEach(future -> future.completeExceptionally(e));
+            throw new SystemException(e);
+        } catch (Error e) {
+            owned.values().forEach(future -> future.completeExceptionally(e));
+            throw e;
+        } finally {
+            owned.forEach((key, future) -> inFlight.remove(key, future));
+        }
+    }
+
+    private int stripe(Object key) {
+        int h = (key == null) ? 0 : key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private long generation(Object key) {
+        return generations.get(stripe(key));
+    }
+
+    // called before a write or invalidation of key reaches the caches.
+    private void invalidated(Object key) {
+        generations.incrementAndGet(stripe(key));
+    }
+
+    private void invalidatedAll() {
+        for (int i = 0; i < GENERATION_STRIPES; i++)
+            generations.incrementAndGet(i);
+    }
+
+    /*
+     * Stores a loaded value unless the key was written or invalidated since generation was read, so that a
+     * slow load cannot overwrite a newer write.  The second check, after the put, covers a write that lands
+     * between the first check and the put.
+     */
+    private boolean store(K key, V value, long generation) {
+        if (generation(key) != generation)
+            return false;
+        cache.put(key, value);
+        if (nearCache != null)
+            nearCache.put(key, value);
+        return stored(key, value, generation);
+    }
+
+    /*
+     * Copies a value read from the provider cache into the near cache unless the key was written or
+     * invalidated since generation was read, so that a read racing a write cannot leave the old value
+     * in the near cache.
+     */
+    private void storeNear(K key, V value, long generation) {
+        if (generation(key) != generation)
+            return;
+        nearCache.put(key, value);
+        if (generation(key) != generation)
+            nearCache.invalidate(key);
+    }
+
+    private boolean stored(K key, V value, long generation) {
+        if (generation(key) == generation)
+            return true;
+        cache.remove(key, value);
+        if (nearCache != null)
+            nearCache.invalidate(key);
+        return false;
+    }
+
+    private Map<K, V> loadBatch(Collection<K> keys, BatchLoader<K, V> loader) throws Exception {
+        statistics.loads.increment();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<K, V> values = loader.load(Collections.unmodifiableCollection(keys));
+            failed = false;
+            return (values == null) ? Collections.emptyMap() : values;
+        } finally {
+            statistics.loaded(System.nanoTime() - start, failed);
+        }
+    }
+
+    private Callable<V> singleLoader(K key, BatchLoader<K, V> loader) {
+        return () -> {
+            Map<K, V> values = loader.load(Collections.singletonList(key));
+            return (values == null) ? null : values.get(key);
+        };
+    }
+
+    private V load(Callable<V> callable) throws Exception {
+        statistics.loads.increment();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            V value = callable.call();
+            failed = false;
+            return value;
+        } finally {
+            statistics.loaded(System.nanoTime() - start, failed);
+        }
+    }
+
+    // loads are recorded for refresh-ahead and early expiration.
+    private boolean refreshes() {
+        return configuration.getRefreshAheadFactor() > 0 || configuration.getEarlyExpirationBeta() > 0;
+    }
+
+    private void recordLoaded(K key, V value, long loadNanos) {
+        loaded.put(key, new Loaded<>(value, loadNanos, clock.getAsLong()));
+        if (loaded.size() > pruneAt)
+            pruneLoaded();
+    }
+
+    /*
+     * Entries expired or evicted by the provider are not reported, so records too old to be used are dropped,
+     * and then the oldest records beyond maxEntries, which the provider cannot be holding.  Pruning runs again
+     * once the records have doubled, so its cost is amortized over the loads.
+     */
+    private synchronized void pruneLoaded() {
+        if (loaded.size() <= pruneAt)
+            return;
+        long now = clock.getAsLong();
+        long maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(configuration.getExpiry(), configuration.getMaxStaleAge()));
+        loaded.values().removeIf(l -> now - l.loadedAt > maxAge);
+        long max = configuration.getMaxEntries();
+        if (max > 0 && loaded.size() > max) {
+            List<Map.Entry<K, Loaded<V>>> entries = new ArrayList<>(loaded.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().loadedAt));
+            for (int i = 0; i < entries.size() - max; i++)
+                loaded.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        pruneAt = Math.max(initialPruneAt(), 2 * loaded.size());
+    }
+
+    private int initialPruneAt() {
+        long max = configuration.getMaxEntries();
+        return (max > 0) ? (int) Math.min(Integer.MAX_VALUE / 2, 2 * max) : MIN_PRUNE_AT;
+    }
+
+    // number of loads recorded for refresh-ahead and early expiration.
+    int loadedSize() {
+        return loaded.size();
+    }
+
+    private V getStale(K key, Callable<V> callable) {
+        Loaded<V> l = loaded.get(key);
+        if (l == null || !(l.refreshing.get() || l.failed))
+            return null;
+        if (clock.getAsLong() - l.loadedAt >= TimeUnit.MILLISECONDS.toNanos(configuration.getMaxStaleAge())) {
+            loaded.remove(key, l);
+            return null;
+        }
+        refreshIfDue(key, callable, l);
+        statistics.staleHits.increment();
+        return l.value;
+    }
+
+    private void refreshIfDue(K key, Callable<V> callable, Loaded<V> l) {
+        if (l == null)
+            return;
+        long now = clock.getAsLong();
+        if (now - l.retryAt < 0 || !(l.failed || isRefreshAheadDue(l, now) || isExpiringEarly(l, now)))
+            return;
+        if (!l.refreshing.compareAndSet(false, true))
+            return;
+        try {
+            getRefreshExecutor().execute(() -> refresh(key, callable, l));
+        } catch (RejectedExecutionException ex) {
+            Logger.suppress(ex);
+            l.refreshing.set(false);
+        }
+    }
+
+    private boolean isRefreshAheadDue(Loaded<V> l, long now) {
+        double factor = configuration.getRefreshAheadFactor();
+        return factor > 0 && now - l.loadedAt >= TimeUnit.MILLISECONDS.toNanos(configuration.getExpiry()) * factor;
+    }
+
+    /*
+     * XFetch: expires early when now - delta * beta * ln(random) passes the expiry, where delta is the time
+     * the value took to load.  The expiry is taken as the earliest that jitter allows.
+     */
+    private boolean isExpiringEarly(Loaded<V> l, long now) {
+        double beta = configuration.getEarlyExpirationBeta();
+        if (beta == 0d)
+            return false;
+        double expiresIn = TimeUnit.MILLISECONDS.toNanos(configuration.getExpiry()) * (1d - configuration.getExpiryJitter());
+        double random = configuration.getRandom().getAsDouble();
+        return now - l.loadedAt - l.loadNanos * beta * Math.log(1d - random) >= expiresIn;
+    }
+
+    private void refresh(K key, Callable<V> callable, Loaded<V> l) {
+        try {
+            long generation = generation(key);
+            long start = clock.getAsLong();
+            V value = callable.call();
+            long loadNanos = clock.getAsLong() - start;
+            statistics.getLoadTime().record(loadNanos);
+            statistics.refreshes.increment();
+            if (value == null) {
+                loaded.remove(key, l);
+                return;
+            }
+            // a put or remove since the value was loaded takes precedence over the refreshed value.
+            Loaded<V> refreshed = new Loaded<>(value, loadNanos, clock.getAsLong());
+            if (loaded.replace(key, l, refreshed) && !store(key, value, generation))
+                loaded.remove(key, refreshed);
+        } catch (Exception ex) {
+            statistics.failedRefreshes.increment();
+            l.failed = true;
+            l.retryAt = clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(Math.max(1L, configuration.getExpiry() / 10));
+            logger.warn("Cannot refresh cache " + name + " key " + key, ex);
+        } finally {
+            l.refreshing.set(false);
+        }
+    }
+
+    public Executor getRefreshExecutor() {
+        if (refreshExecutor == null)
+            refreshExecutor = RefreshExecutor.INSTANCE;
+        return refreshExecutor;
+    }
+
+    /**
+     * Sets the executor for refresh-ahead reloads.  The default is a small bounded pool shared by all facades;
+     * a refresh is skipped, not queued, when it rejects.
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public Executor getLoadExecutor() {
+        if (loadExecutor == null)
+            loadExecutor = LoadExecutor.INSTANCE;
+        return loadExecutor;
+    }
+
+    /**
+     * Sets the executor that runs loads when a load timeout is configured.  The default is a pool shared by
+     * all facades that grows as needed, so that a hung loader only ties up its own thread.
+     */
+    public void setLoadExecutor(Executor loadExecutor) {
+        this.loadExecutor = loadExecutor;
+    }
+
+    public LongSupplier getClock() {
+        return clock;
+    }
+
+    /**
+     * Source of nanosecond timestamps for the age and load time of values tracked for refresh-ahead and early
+     * expiration, System.nanoTime by default.
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    private V await(CompletableFuture<V> future) {
+        long timeout = (configuration == null) ? 0L : configuration.getLoadTimeout();
+        try {
+            return (timeout > 0) ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (ExecutionException e) {
+            throw new SystemException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SystemException("Timed out waiting " + timeout + "ms for cache " + name + " to load", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        }
+    }
+
+    /**
+     * @return number of times a loader was called.
+     */
+    public long getLoadCount() {
+        return getStatistics().getLoadCount();
+    }
+
+    /**
+     * @return number of get calls that waited for a load already in flight instead of calling their own loader.
+     */
+    public long getCoalescedLoadCount() {
+        return getStatistics().getCoalescedLoadCount();
+    }
+
+    public long getFailedLoadCount() {
+        return getStatistics().getFailedLoadCount();
+    }
+
+    public long getRefreshCount() {
+        return getStatistics().getRefreshCount();
+    }
+
+    public long getFailedRefreshCount() {
+        return getStatistics().getFailedRefreshCount();
+    }
+
+    /**
+     * @return number of expired values returned because their refresh had not completed.
+     */
+    public long getStaleHitCount() {
+        return getStatistics().getStaleHitCount();
+    }
+
     public boolean remove(K key) {
         Cache<K,V> c = getCache();
-        return c.remove(key);
+        invalidated(key);
+        boolean removed = c.remove(key);
+        loaded.remove(key);
+        if (nearCache != null)
+            nearCache.invalidate(key);
+        if (cacheInvalidation != null)
+            cacheInvalidation.invalidate(name, key);
+        return removed;
+    }
+
+    /**
+     * Stores many entries with one putAll on the provider cache.
+     */
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        Cache<K,V> c = getCache();
+        entries.keySet().forEach(this::invalidated);
+        c.putAll(entries);
+        for (K key : entries.keySet()) {
+            loaded.remove(key);
+            if (nearCache != null)
+                nearCache.invalidate(key);
+            if (cacheInvalidation != null)
+                cacheInvalidation.invalidate(name, key);
+        }
     }
 
     public void put(K key, V value) {
-        getCache().put(key, value);
+        Cache<K,V> c = getCache();
+        invalidated(key);
+        c.put(key, value);
+        loaded.remove(key);
+        if (nearCache != null)
+            nearCache.invalidate(key);
+        if (cacheInvalidation != null)
+            cacheInvalidation.invalidate(name, key);
+    }
+
+    // applies invalidations received from other nodes without publishing them again.
+    void invalidateLocally(Collection<?> keys) {
+        Cache<K,V> c = getCache();
+        for (Object key : keys) {
+            invalidated(key);
+            c.remove((K) key);
+            loaded.remove(key);
+            if (nearCache != null)
+                nearCache.invalidate((K) key);
+        }
+    }
+
+    void clearLocally() {
+        getCache();
+        invalidatedAll();
+        cache.clear();
+        statistics.cleared();
+        loaded.clear();
+        if (nearCache != null)
+            nearCache.invalidateAll();
+    }
+
+    /**
+     * @return the near cache in front of the provider cache or null if it is not configured.
+     */
+    public NearCache<K,V> getNearCache() {
+        getCache();
+        return nearCache;
+    }
+
+    /**
+     * @return number of lookups found in the provider cache, i.e. after missing the near cache.
+     */
+    public long getHitCount() {
+        return getStatistics().getHitCount();
+    }
+
+    public long getMissCount() {
+        return getStatistics().getMissCount();
+    }
+
+    public double getHitRatio() {
+        return getStatistics().getHitRatio();
     }
 
-    protected synchronized Cache<K,V> getCache() {
-        if (cache != null)
+    /**
+     * @return statistics of the cache, shared by facades with the same name.
+     */
+    public CacheStatistics getStatistics() {
+        getCache();
+        return statistics;
+    }
+
+    protected Cache<K,V> getCache() {
+        Cache<K,V> c = cache;
+        if (c != null)
+            return c;
+        synchronized (this) {
+            if (cache != null)
+                return cache;
+            if (configuration == null) {
+                initPool();
+            }
+            statistics = CacheStatistics.of(name);
+            pruneAt = initialPruneAt();
+            generations = generationsByName.computeIfAbsent(name, n -> new AtomicLongArray(GENERATION_STRIPES));
+            if (configuration.getNearCacheMaxEntries() > 0) {
+                nearCache = nearCaches.computeIfAbsent(name,
+                        n -> new NearCache<>(configuration.getNearCacheMaxEntries(), configuration.getNearCacheExpiry()));
+                statistics.setNearCache(nearCache);
+            }
+            cache = configuration.getCache(name, keyClass, valueClass);
+            if (cacheInvalidation != null)
+                cacheInvalidation.register(this);
             return cache;
-        if (configuration == null) {
-            initPool();
         }
-        cache = configuration.getCache(name, keyClass, valueClass);
-        return cache;
+    }
+
+    private static class Loaded<V> {
+        final V value;
+        final long loadNanos;
+        final long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile boolean failed;
+        volatile long retryAt;
+
+        Loaded(V value, long loadNanos, long loadedAt) {
+            this.value = value;
+            this.loadNanos = loadNanos;
+            this.loadedAt = loadedAt;
+            this.retryAt = loadedAt;
+        }
+    }
+
+    private static class LoadExecutor {
+        static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "CacheFacade-load");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static class RefreshExecutor {
+        static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(4, 4, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1000), runnable -> {
+                    Thread thread = new Thread(runnable, "CacheFacade-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        static {
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import net.e6tech.elements.common.logging.Logger;
+import net.e6tech.elements.common.subscribe.Broadcast;
+import net.e6tech.elements.common.subscribe.Notice;
+import net.e6tech.elements.common.subscribe.Subscriber;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes key invalidations for CacheFacades to other nodes through a Broadcast, for example a ClusterNode's,
+ * so that a value written on one node is evicted from the local caches of the others instead of being served
+ * until it expires.  Invalidations are queued and published as one batch per interval, with duplicate keys
+ * coalesced.  When a cache has more than maxBatchKeys keys in a batch, the batch asks receivers to clear that
+ * cache instead.
+ *
+ * A facade opts in with CacheFacade.setCacheInvalidation; every facade registered for a cache name is
+ * invalidated, so that each drops its own records of loaded values.  Facades are held weakly, so registering
+ * does not keep a discarded facade alive.  Invalidations queued while stopped, i.e. before start or after
+ * shutdown, are dropped since nothing would publish them.
+ */
+public class CacheInvalidation implements Subscriber<CacheInvalidation.Batch> {
+    public static final String DEFAULT_TOPIC = CacheInvalidation.class.getName();
+    private static Logger logger = Logger.getLogger();
+
+    private Broadcast broadcast;
+    private String topic = DEFAULT_TOPIC;
+    private long interval = 100L;
+    private int maxBatchKeys = 1000;
+    private int maxPending = 10000;
+    private final String source = UUID.randomUUID().toString();
+    private Queue<Object[]> pending = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pendingCount = new AtomicInteger();
+    private AtomicBoolean flushScheduled = new AtomicBoolean();
+    private Map<String, Set<CacheFacade>> facades = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+    private LongAdder invalidations = new LongAdder();
+    private LongAdder dropped = new LongAdder();
+    private LongAdder coalesced = new LongAdder();
+    private LongAdder batchesPublished = new LongAdder();
+    private LongAdder batchesReceived = new LongAdder();
+
+    public Broadcast getBroadcast() {
+        return broadcast;
+    }
+
+    public void setBroadcast(Broadcast broadcast) {
+        this.broadcast = broadcast;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * @return milliseconds between batches.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException();
+        this.interval = interval;
+    }
+
+    public int getMaxBatchKeys() {
+        return maxBatchKeys;
+    }
+
+    public void setMaxBatchKeys(int maxBatchKeys) {
+        this.maxBatchKeys = maxBatchKeys;
+    }
+
+    /**
+     * @return number of queued invalidations that triggers a batch before the interval is up.
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CacheInvalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        broadcast.subscribe(topic, this);
+        scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler == null)
+            return;
+        ScheduledExecutorService s = scheduler;
+        scheduler = null;
+        s.shutdown();
+        flush();
+        broadcast.unsubscribe(topic, this);
+    }
+
+    void register(CacheFacade facade) {
+        facades.computeIfAbsent(facade.getName(), n -> Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>())))
+                .add(facade);
+    }
+
+    // facades registered for the cache that have not been garbage collected.
+    int facadeCount(String cacheName) {
+        return registered(cacheName).size();
+    }
+
+    private List<CacheFacade> registered(String cacheName) {
+        Set<CacheFacade> set = facades.get(cacheName);
+        if (set == null)
+            return Collections.emptyList();
+        synchronized (set) {
+            return new ArrayList<>(set);
+        }
+    }
+
+    /**
+     * Queues an invalidation of key in the named cache on other nodes.
+     */
+    public void invalidate(String cacheName, Object key) {
+        ScheduledExecutorService s = scheduler;
+        if (s == null) {
+            dropped.increment();
+            return;
+        }
+        invalidations.increment();
+        pending.offer(new Object[] { cacheName, key });
+        if (pendingCount.incrementAndGet() >= maxPending && flushScheduled.compareAndSet(false, true)) {
+            try {
+                s.execute(this::flush);
+            } catch (RejectedExecutionException ex) {
+                Logger.suppress(ex); // shutting down, which flushes
+            }
+        }
+    }
+
+    /**
+     * Queues clearing the named cache on other nodes.
+     */
+    public void invalidateAll(String cacheName) {
+        invalidate(cacheName, null);
+    }
+
+    /**
+     * Publishes queued invalidations as one batch.  Normally called by the scheduler.
+     */
+    public void flush() {
+        flushScheduled.set(false);
+        Map<String, Set<Object>> keys = new HashMap<>();
+        Set<String> cleared = new HashSet<>();
+        Object[] item;
+        int count = 0;
+        while ((item = pending.poll()) != null) {
+            count++;
+            String cacheName = (String) item[0];
+            if (cleared.contains(cacheName)) {
+                coalesced.increment();
+                continue;
+            }
+            Set<Object> set = keys.computeIfAbsent(cacheName, n -> new HashSet<>());
+            if (item[1] == null || !(item[1] instanceof Serializable) || set.size() >= maxBatchKeys) {
+                keys.remove(cacheName);
+                cleared.add(cacheName);
+            } else if (!set.add(item[1])) {
+                coalesced.increment();
+            }
+        }
+        pendingCount.addAndGet(-count);
+        if (count == 0)
+            return;
+
+        Batch batch = new Batch(source);
+        keys.forEach((name, set) -> batch.keys.put(name, new ArrayList<>(set)));
+        cleared.forEach(name -> batch.keys.put(name, null));
+        try {
+            broadcast.publish(topic, batch);
+            batchesPublished.increment();
+        } catch (Exception ex) {
+            logger.warn("Cannot publish cache invalidations", ex);
+        }
+    }
+
+    @Override
+    public void receive(Notice<Batch> notice) {
+        Batch batch = notice.getUserObject();
+        if (batch == null || source.equals(batch.source))
+            return;
+        batchesReceived.increment();
+        batch.keys.forEach((name, list) -> {
+            for (CacheFacade facade : registered(name)) {
+                if (list == null)
+                    facade.clearLocally();
+                else
+                    facade.invalidateLocally(list);
+            }
+        });
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return number of invalidations dropped because they were queued while stopped.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of invalidations dropped because the same key was already in the batch.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getBatchesPublished() {
+        return batchesPublished.sum();
+    }
+
+    public long getBatchesReceived() {
+        return batchesReceived.sum();
+    }
+
+    /**
+     * Invalidations published in one interval: cache name to keys, or to null when the whole cache is cleared.
+     */
+    public static class Batch implements Serializable {
+        private static final long serialVersionUID = -3101675021436829071L;
+        private String source;
+        private HashMap<String, ArrayList<Object>> keys = new HashMap<>();
+
+        public Batch() {
+        }
+
+        public Batch(String source) {
+            this.source = source;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public Map<String, ArrayList<Object>> getKeys() {
+            return keys;
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package net.e6tech.elements.common.cache;
 
 import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
 
 /**
  * Created by futeh.
@@ -25,5 +27,20 @@ public interface CacheProvider {
 
     String getProviderClassName();
 
+    /**
+     * Creates the CacheManager shared by configurations with the same cache manager key.
+     */
+    default CacheManager createCacheManager(CacheConfiguration configuration) {
+        return Caching.getCachingProvider(getProviderClassName()).getCacheManager();
+    }
+
+    /**
+     * Configurations with the same key share a CacheManager.  By default the key is the provider and the
+     * disk directory.
+     */
+    default String getCacheManagerKey(CacheConfiguration configuration) {
+        return (configuration.getDiskDirectory() == null) ? getProviderClassName() : getProviderClassName() + "|" + configuration.getDiskDirectory();
+    }
+
     <K,V> Cache<K,V> createCache(CacheConfiguration cachePool, String poolName, Class<K> keyClass, Class<V> valueClass);
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import net.e6tech.elements.common.util.concurrent.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Statistics of a named cache, shared by the CacheFacades using the cache and recorded by the CacheProvider
+ * that built it.  Counters are LongAdders so that recording adds little to a lookup.  Every instance is
+ * kept in a registry; the jmx module exposes them as MXBeans.
+ */
+public class CacheStatistics {
+    private static Map<String, CacheStatistics> registry = new ConcurrentHashMap<>();
+    private static List<Consumer<CacheStatistics>> listeners = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder failedLoads = new LongAdder();
+    final LongAdder coalescedLoads = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+    final LongAdder failedRefreshes = new LongAdder();
+    final LongAdder staleHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final AtomicLong entries = new AtomicLong();
+    private final LatencyHistogram loadTime = new LatencyHistogram();
+    private volatile LongSupplier size;
+    private volatile NearCache nearCache;
+
+    CacheStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the statistics for the named cache, created on first use.
+     */
+    public static CacheStatistics of(String name) {
+        CacheStatistics statistics = registry.get(name);
+        if (statistics != null)
+            return statistics;
+        boolean[] created = new boolean[1];
+        statistics = registry.computeIfAbsent(name, n -> {
+            created[0] = true;
+            return new CacheStatistics(n);
+        });
+        if (created[0]) {
+            for (Consumer<CacheStatistics> listener : listeners)
+                listener.accept(statistics);
+        }
+        return statistics;
+    }
+
+    public static Collection<CacheStatistics> getAll() {
+        return Collections.unmodifiableCollection(registry.values());
+    }
+
+    /**
+     * Calls listener with every existing and future CacheStatistics.
+     */
+    public static void addListener(Consumer<CacheStatistics> listener) {
+        listeners.add(listener);
+        registry.values().forEach(listener);
+    }
+
+    public static void removeListener(Consumer<CacheStatistics> listener) {
+        listeners.remove(listener);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Sets how the provider reports the number of entries in the cache.
+     */
+    public void setSize(LongSupplier size) {
+        this.size = size;
+    }
+
+    /**
+     * Reports the size as the entries counted by created and removed, for providers that deliver entry events
+     * but cannot count their entries cheaply.  The count is approximate while events are in flight.
+     * @param initial entries the cache already holds, e.g. from a persistent disk tier.
+     */
+    public void countEntries(long initial) {
+        entries.set(initial);
+        setSize(entries::get);
+    }
+
+    public void created() {
+        entries.incrementAndGet();
+    }
+
+    /**
+     * An entry removed, evicted or expired.  The count stays at 0 for events that arrive after a clear.
+     */
+    public void removed() {
+        entries.updateAndGet(n -> (n > 0) ? n - 1 : 0);
+    }
+
+    // the provider cache was cleared, which providers do not report entry by entry.
+    void cleared() {
+        entries.set(0);
+    }
+
+    public void evicted() {
+        evictions.increment();
+    }
+
+    public void expired() {
+        expirations.increment();
+    }
+
+    void loaded(long nanos, boolean failed) {
+        loadTime.record(nanos);
+        if (failed)
+            failedLoads.increment();
+    }
+
+    /**
+     * @return lookups found in the provider cache, i.e. after missing the near cache if there is one.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        return NearCache.ratio(getHitCount(), getMissCount());
+    }
+
+    public long getNearHitCount() {
+        NearCache near = nearCache;
+        return (near == null) ? 0L : near.getHitCount();
+    }
+
+    public long getNearMissCount() {
+        NearCache near = nearCache;
+        return (near == null) ? 0L : near.getMissCount();
+    }
+
+    public double getNearHitRatio() {
+        return NearCache.ratio(getNearHitCount(), getNearMissCount());
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getFailedLoadCount() {
+        return failedLoads.sum();
+    }
+
+    public long getCoalescedLoadCount() {
+        return coalescedLoads.sum();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public long getFailedRefreshCount() {
+        return failedRefreshes.sum();
+    }
+
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return entries evicted by the provider and the near cache to stay within their limits.
+     */
+    public long getEvictionCount() {
+        NearCache near = nearCache;
+        return evictions.sum() + ((near == null) ? 0L : near.getEvictionCount());
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return number of entries in the provider cache, or -1 if the provider does not report it.
+     */
+    public long getSize() {
+        LongSupplier supplier = size;
+        return (supplier == null) ? -1L : supplier.getAsLong();
+    }
+
+    public int getNearCacheSize() {
+        NearCache near = nearCache;
+        return (near == null) ? 0 : near.size();
+    }
+
+    public LatencyHistogram getLoadTime() {
+        return loadTime;
+    }
+
+    public double getAverageLoadTime(TimeUnit unit) {
+        return loadTime.getMean(unit);
+    }
+
+    public double getLoadTimePercentile(double percentile, TimeUnit unit) {
+        return loadTime.getPercentile(percentile, unit);
+    }
+
+    public String toString() {
+        return "name=" + name + " hits=" + getHitCount() + " misses=" + getMissCount()
+                + " nearHits=" + getNearHitCount() + " loads=" + getLoadCount()
+                + " evictions=" + getEvictionCount() + " expirations=" + getExpirationCount();
+    }
+}
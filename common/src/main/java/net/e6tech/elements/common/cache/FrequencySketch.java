@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+/**
+ * Approximate access frequencies in the style of TinyLFU: a count-min sketch of counters capped at 15
+ * whose values are halved after a sample period so that old popularity fades.  Updates are not
+ * synchronized; lost increments under contention only make the estimate slightly lower.
+ */
+class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb7be5e3b, 0x9e3779b9, 0x5bd1e995 };
+
+    private final byte[] table;
+    private final int mask;
+    private final int samplePeriod;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int entries = Math.max(16, Math.min(expectedEntries, 1 << 20));
+        int size = Integer.highestOneBit(entries * 16 - 1) << 1; // 16 counters per entry, rounded to a power of 2
+        table = new byte[size];
+        mask = size - 1;
+        samplePeriod = entries * 10;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int index = index(hash, seed);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= samplePeriod)
+            reset();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS)
+            frequency = Math.min(frequency, table[index(hash, seed)]);
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] >>= 1;
+        additions = 0;
+    }
+
+    private int index(int hash, int seed) {
+        int h = hash * seed;
+        h ^= h >>> 17;
+        return h & mask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small on-heap tier placed in front of a provider cache for very hot keys.  Entries live for a short
+ * time-to-live so values updated elsewhere, e.g. by another JVM, are picked up quickly.  Reads do not lock.
+ * When the number of entries exceeds maxEntries, one writer evicts a batch of entries, expired ones first
+ * and then those with the lowest estimated access frequency (TinyLFU), least recently used first.
+ */
+public class NearCache<K, V> {
+    private final Map<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long timeToLive;
+    private final FrequencySketch sketch;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries maximum number of entries
+     * @param timeToLive time-to-live in milliseconds
+     */
+    public NearCache(int maxEntries, long timeToLive) {
+        if (maxEntries <= 0 || timeToLive <= 0)
+            throw new IllegalArgumentException();
+        this.maxEntries = maxEntries;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    public V get(K key) {
+        sketch.increment(key);
+        Entry<V> entry = map.get(key);
+        if (entry != null) {
+            long now = System.nanoTime();
+            if (now - entry.expiresAt < 0) {
+                entry.accessed = now;
+                hits.increment();
+                return entry.value;
+            }
+            map.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            invalidate(key);
+            return;
+        }
+        long now = System.nanoTime();
+        map.put(key, new Entry<>(value, now + timeToLive, now));
+        if (map.size() > maxEntries)
+            evict();
+    }
+
+    public void invalidate(K key) {
+        map.remove(key);
+    }
+
+    public void invalidateAll() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        return ratio(getHitCount(), getMissCount());
+    }
+
+    static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return (total == 0) ? 0d : (double) hits / total;
+    }
+
+    // evicts down to 90% of maxEntries so that the scan is amortized over many puts.
+    private void evict() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            long now = System.nanoTime();
+            List<Candidate<K>> candidates = new ArrayList<>(map.size());
+            for (Map.Entry<K, Entry<V>> e : map.entrySet()) {
+                Entry<V> entry = e.getValue();
+                if (now - entry.expiresAt >= 0) {
+                    if (map.remove(e.getKey(), entry))
+                        evictions.increment();
+                } else {
+                    candidates.add(new Candidate<>(e.getKey(), sketch.frequency(e.getKey()), entry.accessed));
+                }
+            }
+            int target = maxEntries - Math.max(1, maxEntries / 10);
+            int excess = map.size() - target;
+            if (excess <= 0)
+                return;
+            candidates.sort(Comparator.<Candidate<K>>comparingInt(c -> c.frequency).thenComparingLong(c -> c.accessed));
+            for (int i = 0; i < excess && i < candidates.size(); i++) {
+                if (map.remove(candidates.get(i).key) != null)
+                    evictions.increment();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+        long accessed; // racy updates are fine, it only orders eviction
+
+        Entry(V value, long expiresAt, long accessed) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.accessed = accessed;
+        }
+    }
+
+    private static class Candidate<K> {
+        final K key;
+        final int frequency;
+        final long accessed;
+
+        Candidate(K key, int frequency, long accessed) {
+            this.key = key;
+            this.frequency = frequency;
+            this.accessed = accessed;
+        }
+    }
+}
@@ -18,71 +18,133 @@ package net.e6tech.elements.common.cache.ehcache;
 
 import net.e6tech.elements.common.cache.CacheConfiguration;
 import net.e6tech.elements.common.cache.CacheProvider;
+import net.e6tech.elements.common.cache.CacheStatistics;
+import org.ehcache.ValueSupplier;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.core.config.DefaultConfiguration;
+import org.ehcache.event.EventFiring;
+import org.ehcache.event.EventOrdering;
+import org.ehcache.event.EventType;
 import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
+import org.ehcache.expiry.Expiry;
+import org.ehcache.impl.config.persistence.CacheManagerPersistenceConfiguration;
 import org.ehcache.jsr107.Eh107Configuration;
 import org.ehcache.jsr107.EhcacheCachingProvider;
 
 import javax.cache.Cache;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.io.File;
+import java.util.EnumSet;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
 
 /**
+ * Caches are returned as created by Ehcache.  Expiry is left to Ehcache's time-to-live policy, which checks
+ * an entry when it is accessed and lets the eviction of each tier reclaim expired entries incrementally,
+ * so there is no need to sweep the whole cache.
  * Created by futeh.
  */
 public class EhcacheProvider implements CacheProvider {
 
-    private static ExecutorService executorService = Executors.newSingleThreadExecutor(r -> new Thread(r, "EhcacheProviderCleaner"));
-
     @Override
     public String getProviderClassName() {
         return EhcacheCachingProvider.class.getName();
     }
 
+    /**
+     * A disk tier needs a CacheManager configured with a persistence directory, so each directory gets its own.
+     */
+    @Override
+    public CacheManager createCacheManager(CacheConfiguration configuration) {
+        EhcacheCachingProvider cachingProvider = (EhcacheCachingProvider) Caching.getCachingProvider(getProviderClassName());
+        if (configuration.getDiskDirectory() == null)
+            return cachingProvider.getCacheManager();
+        File directory = new File(configuration.getDiskDirectory()).getAbsoluteFile();
+        ClassLoader classLoader = cachingProvider.getDefaultClassLoader();
+        return cachingProvider.getCacheManager(directory.toURI(),
+                new DefaultConfiguration(classLoader, new CacheManagerPersistenceConfiguration(directory)));
+    }
+
     public <K,V> Cache<K,V> createCache(CacheConfiguration cachePool, String poolName, Class<K> keyClass, Class<V> valueClass) {
 
+        // tiers from fastest to largest: heap in entries, then off-heap and disk in bytes.
         ResourcePoolsBuilder builder = (cachePool.getMaxEntries() > 0)
                 ? ResourcePoolsBuilder.heap(cachePool.getMaxEntries())
                 : ResourcePoolsBuilder.newResourcePoolsBuilder();
+        if (cachePool.getOffHeapBytes() > 0)
+            builder = builder.offheap(cachePool.getOffHeapBytes(), MemoryUnit.B);
+        if (cachePool.getDiskBytes() > 0)
+            builder = builder.disk(cachePool.getDiskBytes(), MemoryUnit.B, cachePool.isDiskPersistent());
 
         org.ehcache.config.CacheConfiguration cacheConfiguration = CacheConfigurationBuilder
                 .newCacheConfigurationBuilder(keyClass, valueClass, builder)
-                .withExpiry(Expirations.timeToLiveExpiration(Duration.of(cachePool.getExpiry(), TimeUnit.MILLISECONDS)))
+                .withExpiry((cachePool.getExpiryJitter() > 0)
+                        ? new JitteredExpiry<>(cachePool)
+                        : Expirations.timeToLiveExpiration(Duration.of(cachePool.getExpiry(), TimeUnit.MILLISECONDS)))
                 .build();
 
         Cache<K, V> cache = cachePool.getCacheManager().createCache(poolName, Eh107Configuration.fromEhcacheCacheConfiguration(cacheConfiguration));
-        return (Cache<K, V>) Proxy.newProxyInstance(Cache.class.getClassLoader(), new Class[] { Cache.class}, new CacheInvocationHandler<K,V>(cache, cachePool));
+        recordStatistics(cache, CacheStatistics.of(poolName));
+        return cache;
     }
 
-    private class CacheInvocationHandler<K, V> implements InvocationHandler {
-        Cache<K, V> cache;
-        long lastPut;
-        long expiry;
+    /*
+     * Time-to-live with jitter: each creation or update picks its own expiry.
+     */
+    private static class JitteredExpiry<K, V> implements Expiry<K, V> {
+        private final CacheConfiguration configuration;
+
+        JitteredExpiry(CacheConfiguration configuration) {
+            this.configuration = configuration;
+        }
+
+        @Override
+        public Duration getExpiryForCreation(K key, V value) {
+            return Duration.of(configuration.nextExpiry(), TimeUnit.MILLISECONDS);
+        }
 
-        CacheInvocationHandler(Cache<K, V> cache, CacheConfiguration cachePool) {
-            this.cache = cache;
-            this.expiry = cachePool.getExpiry();
-            this.lastPut = System.currentTimeMillis();
+        @Override
+        public Duration getExpiryForAccess(K key, ValueSupplier<? extends V> value) {
+            return null;
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            if (method.getName().startsWith("put")
-                    && System.currentTimeMillis() - lastPut > expiry) {
-                executorService.submit(() ->
-                    cache.iterator().forEachRemaining(entry -> {
-                        // expire entries by accessing
-                    })
-                );
-                lastPut = System.currentTimeMillis();
-            }
-            return method.invoke(cache, args);
+        public Duration getExpiryForUpdate(K key, ValueSupplier<? extends V> oldValue, V newValue) {
+            return Duration.of(configuration.nextExpiry(), TimeUnit.MILLISECONDS);
         }
     }
+
+    /*
+     * Events are delivered asynchronously so that puts and gets are not held up by them.  The size is kept as
+     * a count of created less removed entries, since iterating off-heap and disk tiers to count them is O(n).
+     * The count starts from one iteration when the cache is created, which finds the entries a persistent disk
+     * tier kept across a restart.
+     */
+    private <K, V> void recordStatistics(Cache<K, V> cache, CacheStatistics statistics) {
+        org.ehcache.Cache<K, V> ehcache = cache.unwrap(org.ehcache.Cache.class);
+        ehcache.getRuntimeConfiguration().registerCacheEventListener(event -> {
+                    switch (event.getType()) {
+                        case CREATED:
+                            statistics.created();
+                            break;
+                        case EVICTED:
+                            statistics.evicted();
+                            statistics.removed();
+                            break;
+                        case EXPIRED:
+                            statistics.expired();
+                            statistics.removed();
+                            break;
+                        default:
+                            statistics.removed();
+                            break;
+                    }
+                }, EventOrdering.UNORDERED, EventFiring.ASYNCHRONOUS,
+                EnumSet.of(EventType.CREATED, EventType.REMOVED, EventType.EVICTED, EventType.EXPIRED));
+        statistics.countEntries(StreamSupport.stream(ehcache.spliterator(), false).count());
+    }
 }
@@ -385,7 +385,7 @@ public class Atom implements Map<String, Object> {
 
     @Override
     public int size() {
-        return resourceManager.getBeans().size();
+        return resourceManager.getBeanCount();
     }
 
     @Override
@@ -395,12 +395,12 @@ public class Atom implements Map<String, Object> {
 
     @Override
     public boolean containsKey(Object key) {
-        return resourceManager.getBeans().containsKey(key);
+        return resourceManager.containsBean(key);
     }
 
     @Override
     public boolean containsValue(Object value) {
-        return resourceManager.getBeans().containsValue(value);
+        return resourceManager.containsBeanInstance(value);
     }
 
     public void waitFor(String beanName, Consumer consumer) {
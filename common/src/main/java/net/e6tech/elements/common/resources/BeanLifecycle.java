@@ -29,9 +29,10 @@ public class BeanLifecycle {
     private static final int BEAN_STARTED = 1;
     private static final int BEAN_LAUNCHED = 2;
 
-    private Map<String, Object> initializedBeans = new Hashtable<>();
-    private Map<String, Object> startedBeans = new Hashtable<>();
-    private Map<String, Object> launchedBeans = new Hashtable<>();
+    private TypeIndex initializedBeans = new TypeIndex();
+    private Set<Object> initialized = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private Set<Object> startedBeans = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private Set<Object> launchedBeans = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
     private Map<String, List<BeanListener>> namedBeanListeners = new Hashtable<>();
     private Map<Class, List<BeanListener>> classBeanListeners = new Hashtable<>();
 
@@ -45,11 +46,8 @@ public class BeanLifecycle {
     }
 
     public void addBeanListener(Class cls, BeanListener beanListener) {
-        for (Object bean : initializedBeans.values()) {
-            if (cls.isAssignableFrom(bean.getClass())) {
-                beanListener.initialized(bean);
-            }
-        }
+        for (Object bean : new ArrayList<>(initializedBeans.getAll(cls).values()))
+            beanListener.initialized(bean);
 
         List<BeanListener> listeners = classBeanListeners.computeIfAbsent(cls, n -> new Vector<>());
         listeners.add(beanListener);
@@ -64,33 +62,36 @@ public class BeanLifecycle {
 
     public void fireBeanInitialized(String beanName, Object bean) {
         fireBeanEvent(beanName, bean, BEAN_INITIALIZED);
-        initializedBeans.put(beanName, bean);
+        if (beanName != null)
+            initializedBeans.add(beanName, bean);
+        initialized.add(bean);
     }
 
     public boolean isBeanInitialized(Object bean) {
-        return initializedBeans.containsValue(bean);
+        return initialized.contains(bean);
     }
 
     public void fireBeanStarted(String beanName, Object bean) {
         fireBeanEvent(beanName, bean, BEAN_STARTED);
-        startedBeans.put(beanName, bean);
+        startedBeans.add(bean);
     }
 
     public boolean isBeanStarted(Object bean) {
-        return startedBeans.containsValue(bean);
+        return startedBeans.contains(bean);
     }
 
     public void fireBeanLaunched(String beanName, Object bean) {
         fireBeanEvent(beanName, bean, BEAN_LAUNCHED);
-        launchedBeans.put(beanName, bean);
+        launchedBeans.add(bean);
     }
 
     public boolean isBeanLaunched(Object bean) {
-        return launchedBeans.containsValue(bean);
+        return launchedBeans.contains(bean);
     }
 
     public void clearBeanListeners() {
         initializedBeans.clear();
+        initialized.clear();
         startedBeans.clear();
         launchedBeans.clear();
         namedBeanListeners.clear();
@@ -106,14 +107,18 @@ public class BeanLifecycle {
                 list.addAll(listeners);
             }
         }
-        for (Map.Entry<Class, List<BeanListener>> entry : classBeanListeners.entrySet()) {
+        if (!classBeanListeners.isEmpty()) {
+            // look up listeners by each supertype of bean instead of testing every registered class.
             if (list == null)
                 list = new ArrayList<>();
-            if (entry.getKey().isAssignableFrom(bean.getClass())) {
-                List<BeanListener> listeners = entry.getValue();
+            for (Class type : TypeIndex.typeClosure(bean.getClass())) {
+                List<BeanListener> listeners = classBeanListeners.get(type);
                 if (listeners != null)
                     list.addAll(listeners);
             }
+            List<BeanListener> listeners = classBeanListeners.get(Object.class);
+            if (listeners != null)
+                list.addAll(listeners);
         }
         if (list != null)
             list.forEach(beanListener -> notifyBeanListener(beanListener, bean, eventType));
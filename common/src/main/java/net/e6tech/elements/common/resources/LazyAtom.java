@@ -0,0 +1,94 @@
+/*
+Copyright 2015 Futeh Kao
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package net.e6tech.elements.common.resources;
+
+import net.e6tech.elements.common.logging.Logger;
+import net.e6tech.elements.common.util.SystemException;
+
+import java.util.function.Consumer;
+
+/**
+ * Placeholder for an atom declared with lazyAtom in a script.  The atom's closure is not run until
+ * get() is called, either directly or through ResourceManager.getAtom.  Only one thread builds the atom;
+ * other callers block until it is done.  If building fails, the failure is kept and rethrown to every
+ * subsequent caller because a partially built atom may have already registered some of its beans.
+ */
+public class LazyAtom {
+    private static Logger logger = Logger.getLogger();
+
+    private ResourceManager resourceManager;
+    private String name;
+    private Consumer<Atom> consumer;
+    private boolean warmUp;
+    private volatile Atom atom;
+    private volatile SystemException failure;
+
+    LazyAtom(ResourceManager resourceManager, String name, Consumer<Atom> consumer, boolean warmUp) {
+        this.resourceManager = resourceManager;
+        this.name = name;
+        this.consumer = consumer;
+        this.warmUp = warmUp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the atom should be built in the background after the ResourceManager is launched.
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    public boolean isInitialized() {
+        return atom != null;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public Atom get() {
+        Atom a = atom;
+        if (a != null)
+            return a;
+
+        // Building an atom registers beans and runs script closures, neither of which is thread safe,
+        // so it is serialized with script loading by locking on the ResourceManager.
+        synchronized (resourceManager) {
+            if (atom != null)
+                return atom;
+            if (failure != null)
+                throw failure;
+            try {
+                long start = System.currentTimeMillis();
+                a = resourceManager.buildAtom(name, consumer, null, false);
+                if (resourceManager.isLaunched())
+                    resourceManager.getScripting().onLaunched();
+                atom = a;
+                consumer = null;
+                logger.info("Lazy atom {} initialized in {}ms", name, (System.currentTimeMillis() - start));
+            } catch (RuntimeException ex) {
+                resourceManager.removeAtom(name);
+                failure = new SystemException("Lazy atom " + name + " failed to initialize", ex);
+                logger.error(failure.getMessage(), ex);
+                throw failure;
+            }
+        }
+        return a;
+    }
+}
@@ -57,9 +57,12 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
     private List<ResourceProvider> resourceProviders = new LinkedList<>();
     private AllocationMonitor allocation = new AllocationMonitor();
     private Map<String, ResourceManager> resourceManagers;
-    private Map<String, Atom> atoms = new LinkedHashMap<>();
+    private Map<String, Atom> atoms = Collections.synchronizedMap(new LinkedHashMap<>());
+    private Map<String, LazyAtom> lazyAtoms = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile boolean launched = false;
     private NotificationCenter notificationCenter = new NotificationCenter();
     private BeanLifecycle beanLifecycle = new BeanLifecycle();
+    private TypeIndex beanIndex = new TypeIndex(); // shadows script variables, kept current by a variable listener
     private PluginManager pluginManager = new PluginManager(this);
     private List<ResourceManagerListener> listeners = new LinkedList<>();
     private Map<Class, ClassInjectionInfo> injections = Collections.synchronizedMap(new HashMap<>()); // a cache to be used by Resources.
@@ -82,6 +85,10 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
     }
 
     private void selfInit(Properties properties) {
+        // every write to the binding, including assignments in scripts, updates the index.
+        getScripting().addVariableListener(beanIndex::add);
+        beanIndex.sync(getScripting().getVariables());
+
         String logDir = properties.getProperty(LOG_DIR_ABBREV);
         if (logDir != null)
             ThreadContext.put(LOG_DIR_ABBREV, logDir);
@@ -108,9 +115,9 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
         module.bindInstance(PluginManager.class, pluginManager);
         injector = module.build();
 
-        getScripting().put("notificationCenter", notificationCenter);
-        getScripting().put("interceptor", Interceptor.getInstance());
-        getScripting().put("pluginManager", pluginManager);
+        putBean("notificationCenter", notificationCenter);
+        putBean("interceptor", Interceptor.getInstance());
+        putBean("pluginManager", pluginManager);
     }
 
     public void addListener(ResourceManagerListener listener) {
@@ -185,6 +192,40 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
         getScripting().onLaunched();
         super.onLoaded();
         beanLifecycle.clearBeanListeners();
+        launched = true;
+        warmUpLazyAtoms();
+    }
+
+    public boolean isLaunched() {
+        return launched;
+    }
+
+    /**
+     * Builds lazy atoms declared with warmUp in a background thread so that they are likely to be ready
+     * by the time they are first used.  Failures are logged by LazyAtom and are reported again on first access.
+     */
+    protected void warmUpLazyAtoms() {
+        List<LazyAtom> list = new ArrayList<>();
+        synchronized (lazyAtoms) {
+            for (LazyAtom lazy : lazyAtoms.values())
+                if (lazy.isWarmUp() && !lazy.isInitialized())
+                    list.add(lazy);
+        }
+        if (list.isEmpty())
+            return;
+
+        Thread thread = new Thread(() -> {
+            createLoggerContext();
+            for (LazyAtom lazy : list) {
+                try {
+                    lazy.get();
+                } catch (RuntimeException ex) {
+                    Logger.suppress(ex);
+                }
+            }
+        }, "ResourceManager-" + name + "-warmUp");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -215,14 +256,22 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
     }
 
     public <T> T getAtomResource(String atomName, String resourceName) {
-        return (T) getAtoms().get(atomName).get(resourceName);
+        return (T) getAtom(atomName).get(resourceName);
     }
 
     public Map<String, Atom> getAtoms() {
         return Collections.unmodifiableMap(atoms);
     }
 
+    /**
+     * Returns the named atom.  If the atom is declared lazy, it is built on the first call.
+     * @param name atom name
+     * @return Atom or null if not found.
+     */
     public Atom getAtom(String name) {
+        LazyAtom lazy = lazyAtoms.get(name);
+        if (lazy != null)
+            return lazy.get();
         return atoms.get(name);
     }
 
@@ -230,8 +279,45 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
         return atoms.remove(name);
     }
 
-    @SuppressWarnings("squid:CommentedOutCodeLine")
+    public Map<String, LazyAtom> getLazyAtoms() {
+        return Collections.unmodifiableMap(lazyAtoms);
+    }
+
+    public LazyAtom getLazyAtom(String name) {
+        return lazyAtoms.get(name);
+    }
+
+    /**
+     * Registers a placeholder for an atom whose consumer is not run until the atom is first accessed.
+     * @param atomName name of the atom, required.
+     * @param consumer populates the atom when it is built.
+     * @param warmUp if true, the atom is built in the background after the ResourceManager is launched.
+     * @return LazyAtom
+     * @throws AlreadyBoundException if an atom or lazy atom of the same name is already defined.
+     */
+    public LazyAtom createLazyAtom(String atomName, Consumer<Atom> consumer, boolean warmUp) {
+        if (atomName == null)
+            throw new IllegalArgumentException("Lazy atom requires a name");
+        if (atoms.get(atomName) != null)
+            throw new AlreadyBoundException("Atom " + atomName + " is already defined");
+        LazyAtom lazy = new LazyAtom(this, atomName, consumer, warmUp);
+        if (lazyAtoms.putIfAbsent(atomName, lazy) != null)
+            throw new AlreadyBoundException("Lazy atom " + atomName + " is already defined");
+        return lazy;
+    }
+
+    /**
+     * @throws AlreadyBoundException if atomName is declared lazy; the lazy atom builds itself when accessed.
+     */
     public Atom createAtom(String atomName, Consumer<Atom> consumer, Atom prototypeAtom, boolean prototype) {
+        if (atomName != null && lazyAtoms.containsKey(atomName))
+            throw new AlreadyBoundException("Atom " + atomName + " is already defined as a lazy atom");
+        return buildAtom(atomName, consumer, prototypeAtom, prototype);
+    }
+
+    // called by LazyAtom as well, for its own name.
+    @SuppressWarnings("squid:CommentedOutCodeLine")
+    Atom buildAtom(String atomName, Consumer<Atom> consumer, Atom prototypeAtom, boolean prototype) {
         if (name != null && atoms.get(atomName) != null)
             return atoms.get(atomName);
         Atom atom = new Atom(this, prototypeAtom);
@@ -423,7 +509,7 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
     }
 
     protected <T> T addBean(String name, Object instance) {
-        if (getScripting().getVariables().get(name) != null) {
+        if (beanIndex.get(name) != null) {
             throw logger.systemException("bean with name=" + name + " already registered");
         }
 
@@ -434,7 +520,7 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
             Logger.suppress(ex);
         }
 
-        getScripting().put(name, instance);
+        putBean(name, instance);
 
         listeners.forEach(l -> l.beanAdded(name, instance));
 
@@ -446,24 +532,35 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
         listeners.forEach(l -> l.beanRemoved(name, instance));
     }
 
+    private void putBean(String name, Object instance) {
+        getScripting().put(name, instance);
+    }
+
+    int getBeanCount() {
+        return beanIndex.size();
+    }
+
+    boolean containsBean(Object name) {
+        return beanIndex.containsName(name);
+    }
+
+    boolean containsBeanInstance(Object instance) {
+        return beanIndex.containsObject(instance);
+    }
+
     @Override
     public <T> T getBean(String name) {
-        return (T) getScripting().getVariables().get(name);
+        return (T) beanIndex.get(name);
     }
 
     @Override
     public <T> T getBean(Class<T> cls) {
+        Map<String, T> map = beanIndex.getAll(cls);
         T value = null;
-        Map<String, Object> variables = getScripting().getVariables();
-        for (Map.Entry<String, Object> entry : variables.entrySet()) {
-            Object obj = entry.getValue();
-            if (obj == null)
-                continue;
-            if (cls.isAssignableFrom(obj.getClass())) {
-                if (value != null)
-                    throw new SystemException("Multiple objects can be assigned to " + cls);
-                value = (T) obj;
-            }
+        for (T obj : map.values()) {
+            if (value != null)
+                throw new SystemException("Multiple objects can be assigned to " + cls);
+            value = obj;
         }
         return value;
     }
@@ -473,12 +570,12 @@ public class ResourceManager extends AbstractScriptShell implements ResourcePool
     }
 
     public <T> Map<String, T> getBeans(Class<T> cls) {
-        Map<String, T> map = new HashMap<>();
-        getScripting().getVariables().forEach((key, value)-> {
-            if (cls == null || (value != null && cls.isAssignableFrom(value.getClass())))
-                map.put(key, (T) value);
-        });
-        return Collections.unmodifiableMap(map);
+        if (cls == null) {
+            Map<String, T> map = new HashMap<>();
+            getScripting().getVariables().forEach((key, value)-> map.put(key, (T) value));
+            return Collections.unmodifiableMap(map);
+        }
+        return Collections.unmodifiableMap(new HashMap<>(beanIndex.getAll(cls)));
     }
 
     public List listBeans() {
@@ -133,6 +133,29 @@ public abstract class ResourceManagerScript extends AbstractScriptBase<ResourceM
         return getShell().createAtom(name, consumer, prototype, false);
     }
 
+    /**
+     * Declares an atom that is not built until it is first accessed, e.g. via resourceManager.getAtom(name).
+     * @param name atom name
+     * @param closure atom definition
+     * @return placeholder for the atom
+     */
+    public LazyAtom lazyAtom(String name, Closure closure) {
+        return lazyAtom(name, false, closure);
+    }
+
+    /**
+     * Same as lazyAtom(name, closure).  If warmUp is true, the atom is built in a background thread
+     * after the ResourceManager is launched.
+     * @param name atom name
+     * @param warmUp whether to build the atom in the background after launch
+     * @param closure atom definition
+     * @return placeholder for the atom
+     */
+    public LazyAtom lazyAtom(String name, boolean warmUp, Closure closure) {
+        Consumer<Atom> consumer = atomConsumer(closure);
+        return getShell().createLazyAtom(name, consumer, warmUp);
+    }
+
     private Consumer<Atom> atomConsumer(Closure closure) {
         return atom -> {
             final Closure clonedClosure = closure.rehydrate(atom, closure.getOwner(), closure.getOwner());
@@ -0,0 +1,133 @@
+/*
+Copyright 2015 Futeh Kao
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package net.e6tech.elements.common.resources;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every superclass and interface of a registered object to the names it is registered under
+ * so that finding all objects assignable to a type is a single map lookup instead of a scan.
+ * The index is updated incrementally as objects are added and removed; lookups do not lock.
+ *
+ * An index may shadow a source map, e.g. script variables.  sync seeds it from the map once; after that, the
+ * owner of the map reports every write with add.
+ */
+class TypeIndex {
+    // kept on the classes themselves so that plugin and script class loaders can still be collected.
+    private static final ClassValue<Set<Class>> typeClosures = new ClassValue<Set<Class>>() {
+        @Override
+        protected Set<Class> computeValue(Class<?> cls) {
+            Set<Class> set = new LinkedHashSet<>();
+            collect(cls, set);
+            set.remove(Object.class);
+            return Collections.unmodifiableSet(set);
+        }
+    };
+
+    private Map<String, Object> named = new ConcurrentHashMap<>();
+    private Map<Class, Map<String, Object>> index = new ConcurrentHashMap<>();
+
+    /**
+     * @return the class itself and all of its superclasses and interfaces, except Object.
+     */
+    static Set<Class> typeClosure(Class cls) {
+        return typeClosures.get(cls);
+    }
+
+    private static void collect(Class cls, Set<Class> set) {
+        if (cls == null || !set.add(cls))
+            return;
+        collect(cls.getSuperclass(), set);
+        for (Class intf : cls.getInterfaces())
+            collect(intf, set);
+    }
+
+    synchronized void add(String name, Object object) {
+        Object existing = (object == null) ? named.remove(name) : named.put(name, object);
+        if (existing != null && existing != object)
+            removeTypes(name, existing);
+        if (object != null && existing != object) {
+            for (Class type : typeClosure(object.getClass()))
+                index.computeIfAbsent(type, t -> new ConcurrentHashMap<>()).put(name, object);
+        }
+    }
+
+    synchronized Object remove(String name) {
+        Object existing = named.remove(name);
+        if (existing != null)
+            removeTypes(name, existing);
+        return existing;
+    }
+
+    private void removeTypes(String name, Object object) {
+        for (Class type : typeClosure(object.getClass())) {
+            Map<String, Object> map = index.get(type);
+            if (map != null) {
+                map.remove(name, object);
+                if (map.isEmpty())
+                    index.remove(type);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        named.clear();
+        index.clear();
+    }
+
+    /**
+     * Reconciles the index with source.  Entries whose value no longer matches are replaced and
+     * names no longer in source are removed.
+     */
+    synchronized void sync(Map<String, Object> source) {
+        for (String name : new ArrayList<>(named.keySet())) {
+            if (!source.containsKey(name))
+                remove(name);
+        }
+        for (Map.Entry<String, Object> entry : new ArrayList<>(source.entrySet())) {
+            if (named.get(entry.getKey()) != entry.getValue())
+                add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    Object get(String name) {
+        return named.get(name);
+    }
+
+    /**
+     * @param type a class or interface.  Null or Object returns all objects.
+     * @return unmodifiable view of name to object for every object assignable to type.
+     */
+    <T> Map<String, T> getAll(Class<T> type) {
+        Map<String, ?> map = (type == null || type == Object.class) ? named : index.get(type);
+        if (map == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap((Map<String, T>) map);
+    }
+
+    int size() {
+        return named.size();
+    }
+
+    boolean containsName(Object name) {
+        return named.containsKey(name);
+    }
+
+    boolean containsObject(Object object) {
+        return named.containsValue(object);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.e6tech.elements.common.resources.plugin;
+
+import net.e6tech.elements.common.util.SystemException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+
+/**
+ * A plugin registration compiled into an instance factory.  The constructor of a class registration is
+ * resolved once into a MethodHandle so that creating a prototype does not go through Class.newInstance.
+ * A singleton created from a class is built, injected and initialized once, on first use.
+ * A registration by class name, e.g. from an indexed plugin jar, does not load the class until first use.
+ */
+class PluginEntry {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private final PluginPath path;
+    private final PluginScope scope;
+    private final String className;
+    private final ClassLoader classLoader;
+    private final boolean initializeSingleton;
+    private volatile Class type;
+    private MethodHandle constructor;
+    private boolean factory;
+    private volatile Object singleton;
+
+    private PluginEntry(PluginPath path, PluginScope scope, Class type, Object singleton, boolean initializeSingleton) {
+        this.path = path;
+        this.scope = scope;
+        this.className = type.getName();
+        this.classLoader = null;
+        this.singleton = singleton;
+        this.initializeSingleton = initializeSingleton;
+        resolve(type);
+    }
+
+    private PluginEntry(PluginPath path, PluginScope scope, String className, ClassLoader classLoader) {
+        this.path = path;
+        this.scope = scope;
+        this.className = className;
+        this.classLoader = classLoader;
+        this.initializeSingleton = true;
+    }
+
+    /**
+     * @param path plugin path
+     * @param instance an already injected and initialized plugin.
+     */
+    static PluginEntry ofInstance(PluginPath path, Object instance) {
+        return new PluginEntry(path, PluginScope.SINGLETON, instance.getClass(), instance, false);
+    }
+
+    static PluginEntry ofClass(PluginPath path, Class cls, PluginScope scope) {
+        return new PluginEntry(path, scope, cls, null, true);
+    }
+
+    static PluginEntry ofClassName(PluginPath path, String className, ClassLoader classLoader, PluginScope scope) {
+        return new PluginEntry(path, scope, className, classLoader);
+    }
+
+    static PluginEntry of(PluginPath path, Object lookup) {
+        if (lookup instanceof Class)
+            return ofClass(path, (Class) lookup, PluginScope.PROTOTYPE);
+        return ofInstance(path, lookup);
+    }
+
+    // constructor and factory are written before the volatile type so that a thread that reads type sees them.
+    private void resolve(Class cls) {
+        factory = PluginFactory.class.isAssignableFrom(cls);
+        if (singleton == null)
+            constructor = constructor(cls);
+        type = cls;
+    }
+
+    private Class resolve() {
+        Class cls = type;
+        if (cls != null)
+            return cls;
+        synchronized (this) {
+            if (type == null) {
+                try {
+                    resolve(classLoader.loadClass(className));
+                } catch (ClassNotFoundException e) {
+                    throw new SystemException("Cannot load plugin class " + className + " for " + path, e);
+                }
+            }
+            return type;
+        }
+    }
+
+    private static MethodHandle constructor(Class cls) {
+        try {
+            Constructor constructor = cls.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return lookup.unreflectConstructor(constructor);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new SystemException("Plugin class " + cls.getName() + " requires a no-arg constructor", e);
+        }
+    }
+
+    PluginPath getPath() {
+        return path;
+    }
+
+    PluginScope getScope() {
+        return scope;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    boolean isResolved() {
+        return type != null;
+    }
+
+    Class getType() {
+        return resolve();
+    }
+
+    boolean isFactory() {
+        resolve();
+        return factory;
+    }
+
+    /**
+     * @return the registered instance, or the registered class if no instance has been created.
+     */
+    Object getValue() {
+        Object obj = singleton;
+        return (obj != null) ? obj : resolve();
+    }
+
+    Plugin get(PluginManager manager, Object ... args) {
+        resolve();
+        if (scope == PluginScope.PROTOTYPE) {
+            Plugin plugin = newInstance();
+            manager.inject(plugin, args);
+            plugin.initialize(path);
+            return plugin;
+        }
+
+        Object obj = singleton;
+        if (obj == null) {
+            synchronized (this) {
+                obj = singleton;
+                if (obj == null) {
+                    Plugin plugin = newInstance();
+                    manager.getResourceManager().inject(plugin);
+                    if (initializeSingleton)
+                        plugin.initialize(path);
+                    singleton = plugin;
+                    obj = plugin;
+                }
+            }
+        }
+        return (Plugin) obj;
+    }
+
+    private Plugin newInstance() {
+        try {
+            return (Plugin) constructor.invoke();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SystemException("Cannot instantiate plugin " + className + " for " + path, e);
+        }
+    }
+}
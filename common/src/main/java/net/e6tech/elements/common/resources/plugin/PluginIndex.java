@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.e6tech.elements.common.resources.plugin;
+
+import net.e6tech.elements.common.logging.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Builds an index of the classes and plugins provided by a plugin jar.  A jar declares its plugins
+ * in META-INF/elements/plugins, one per line, in the form
+ *
+ *     pluginPath = implementationClass
+ *
+ * where pluginPath consists of segments separated by '/' and each segment is either a class name or
+ * className:name, e.g. com.acme.Model:default/com.acme.PricingPlugin.  Lines starting with '#' are ignored.
+ *
+ * Indexes are written to the cache directory, one per jar path, together with the size, modification time and
+ * SHA-1 checksum of the jar.  A jar whose size and modification time are unchanged is not opened again.  A jar that
+ * was only touched is checksummed, and its index reused if the checksum still matches; otherwise it is rescanned.
+ */
+public class PluginIndex {
+    private static Logger logger = Logger.getLogger();
+
+    public static final String DESCRIPTOR = "META-INF/elements/plugins";
+    private static final String INDEX_EXTENSION = ".index";
+    private static final String CLASS_LINE = "C ";
+    private static final String PLUGIN_LINE = "P ";
+    private static final String JAR_LINE = "J ";
+    private static final String CLASS_EXTENSION = ".class";
+
+    private File cacheDirectory;
+    private AtomicInteger cacheHits = new AtomicInteger();
+    private AtomicInteger scans = new AtomicInteger();
+
+    public PluginIndex() {
+        this(new File(System.getProperty("user.home"), ".elements" + File.separator + "plugin-index"));
+    }
+
+    /**
+     * @param cacheDirectory where indexes are stored.  If null, indexes are not cached.
+     */
+    public PluginIndex(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public int getScans() {
+        return scans.get();
+    }
+
+    public JarIndex index(File jar) throws IOException {
+        long size = jar.length();
+        long modified = jar.lastModified();
+        String checksum = null;
+        File cached = null;
+        if (cacheDirectory != null) {
+            MessageDigest digest = sha1();
+            digest.update(jar.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+            cached = new File(cacheDirectory, hex(digest) + INDEX_EXTENSION);
+        }
+
+        if (cached != null && cached.isFile()) {
+            try {
+                JarIndex index = read(jar, cached);
+                if (index.size != size || index.modified != modified) {
+                    // only pay for a checksum when the jar may have changed
+                    checksum = (index.size == size) ? checksum(jar) : null;
+                    if (index.checksum.equals(checksum)) {
+                        index.modified = modified;
+                        rewrite(index, cached);
+                    } else {
+                        index = null;
+                    }
+                }
+                if (index != null) {
+                    cacheHits.incrementAndGet();
+                    return index;
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot read plugin index " + cached + ", rescanning " + jar, ex);
+            }
+        }
+
+        JarIndex index = scan(jar, (checksum == null) ? checksum(jar) : checksum);
+        index.size = size;
+        index.modified = modified;
+        scans.incrementAndGet();
+        if (cached != null)
+            rewrite(index, cached);
+        return index;
+    }
+
+    static String checksum(File file) throws IOException {
+        MessageDigest digest = sha1();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) >= 0)
+                digest.update(buffer, 0, len);
+        }
+        return hex(digest);
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(MessageDigest digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest())
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    private JarIndex scan(File jar, String checksum) throws IOException {
+        JarIndex index = new JarIndex(jar, checksum);
+        try (JarFile jarFile = new JarFile(jar)) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.endsWith(CLASS_EXTENSION) && !name.startsWith("META-INF/")) {
+                    index.classes.add(name.substring(0, name.length() - CLASS_EXTENSION.length()).replace('/', '.'));
+                }
+            }
+
+            JarEntry descriptor = jarFile.getJarEntry(DESCRIPTOR);
+            if (descriptor != null) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(jarFile.getInputStream(descriptor), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        parseDescriptorLine(index, line);
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private void parseDescriptorLine(JarIndex index, String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#"))
+            return;
+        int eq = trimmed.indexOf('=');
+        if (eq <= 0 || eq == trimmed.length() - 1) {
+            logger.warn("Invalid plugin declaration '{}' in {}", line, index.getJar());
+            return;
+        }
+        index.plugins.put(trimmed.substring(0, eq).trim(), trimmed.substring(eq + 1).trim());
+    }
+
+    private JarIndex read(File jar, File cached) throws IOException {
+        List<String> lines = Files.readAllLines(cached.toPath(), StandardCharsets.UTF_8);
+        String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+        if (header.length != 4 || !lines.get(0).startsWith(JAR_LINE))
+            throw new IOException("Corrupted plugin index " + cached);
+        JarIndex index = new JarIndex(jar, header[3]);
+        try {
+            index.size = Long.parseLong(header[1]);
+            index.modified = Long.parseLong(header[2]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Corrupted plugin index " + cached, ex);
+        }
+        for (String line : lines) {
+            if (line.startsWith(CLASS_LINE)) {
+                index.classes.add(line.substring(CLASS_LINE.length()));
+            } else if (line.startsWith(PLUGIN_LINE)) {
+                String[] pair = line.substring(PLUGIN_LINE.length()).split(" ");
+                if (pair.length != 2)
+                    throw new IOException("Corrupted plugin index " + cached);
+                index.plugins.put(pair[0], pair[1]);
+            }
+        }
+        return index;
+    }
+
+    private void rewrite(JarIndex index, File cached) {
+        try {
+            write(index, cached);
+        } catch (IOException ex) {
+            logger.warn("Cannot write plugin index " + cached, ex);
+        }
+    }
+
+    private void write(JarIndex index, File cached) throws IOException {
+        if (!cacheDirectory.exists() && !cacheDirectory.mkdirs() && !cacheDirectory.exists())
+            throw new IOException("Cannot create directory " + cacheDirectory);
+        // write to a temp file and rename so that a concurrent reader never sees a partial index
+        File tmp = File.createTempFile(index.getChecksum(), ".tmp", cacheDirectory);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            writer.write(JAR_LINE + index.size + " " + index.modified + " " + index.checksum + "\n");
+            for (String cls : index.classes)
+                writer.write(CLASS_LINE + cls + "\n");
+            for (Map.Entry<String, String> entry : index.plugins.entrySet())
+                writer.write(PLUGIN_LINE + entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Parses a plugin path declared in a descriptor.
+     * @param expression e.g. com.acme.Model:default/com.acme.PricingPlugin
+     * @param classLoader used to load the classes in the path
+     * @return PluginPath
+     * @throws ClassNotFoundException if a class in the path cannot be loaded
+     */
+    public static PluginPath parsePath(String expression, ClassLoader classLoader) throws ClassNotFoundException {
+        PluginPath path = null;
+        for (String segment : expression.split("/")) {
+            String className = segment.trim();
+            String name = null;
+            int colon = className.indexOf(':');
+            if (colon >= 0) {
+                name = className.substring(colon + 1).trim();
+                className = className.substring(0, colon).trim();
+            }
+            Class cls = classLoader.loadClass(className);
+            path = (path == null) ? PluginPath.of(cls, name) : path.and(cls, name);
+        }
+        if (path == null)
+            throw new IllegalArgumentException("Empty plugin path");
+        return path;
+    }
+
+    public static class JarIndex {
+        private File jar;
+        private String checksum;
+        private long size;
+        private long modified;
+        private List<String> classes = new ArrayList<>();
+        private Map<String, String> plugins = new LinkedHashMap<>();
+
+        JarIndex(File jar, String checksum) {
+            this.jar = jar;
+            this.checksum = checksum;
+        }
+
+        public File getJar() {
+            return jar;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public List<String> getClasses() {
+            return Collections.unmodifiableList(classes);
+        }
+
+        /**
+         * @return map of plugin path expression to implementation class name.
+         */
+        public Map<String, String> getPlugins() {
+            return Collections.unmodifiableMap(plugins);
+        }
+    }
+}
@@ -24,45 +24,74 @@ import net.e6tech.elements.common.resources.*;
 import net.e6tech.elements.common.util.SystemException;
 import net.e6tech.elements.common.util.file.FileUtil;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.lang.reflect.Field;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 /**
  * Created by futeh.
+ *
+ * Registrations are kept in a copy-on-write registry that is shared by every PluginManager created
+ * through from(Resources), so lookups on request threads never lock.  Each registration is compiled into
+ * a PluginEntry that knows its scope and how to create its instance.
  */
 @SuppressWarnings({"squid:MethodCyclomaticComplexity", "squid:S134"})
 public class PluginManager {
 
     private static final String DEFAULT_PLUGIN = "defaultPlugin";
     private static final Object NULL_OBJECT = new Object();
+    private static Logger logger = Logger.getLogger();
 
     private PluginClassLoader classLoader;
     private ResourceManager resourceManager;
     private Resources resources;
-    private Map<PluginPath, Object> plugins = new HashMap<>();
-    private Map<Class, Object> defaultPlugins = new HashMap<>();
+    private Registry registry;
+    private PluginIndex pluginIndex = new PluginIndex();
 
     public PluginManager(ResourceManager resourceManager) {
         this.resourceManager = resourceManager;
         classLoader = new PluginClassLoader(resourceManager.getClass().getClassLoader());
+        registry = new Registry();
+    }
+
+    private PluginManager(PluginManager manager, Resources resources) {
+        this.resourceManager = manager.resourceManager;
+        this.classLoader = manager.classLoader;
+        this.registry = manager.registry;
+        this.pluginIndex = manager.pluginIndex;
+        this.resources = resources;
     }
 
     public PluginManager from(Resources resources) {
-        PluginManager plugin = new PluginManager(resourceManager);
-        plugin.resources = resources;
-        plugin.defaultPlugins = defaultPlugins;
-        plugin.classLoader = classLoader;
-        plugin.plugins = plugins;
-        return plugin;
+        return new PluginManager(this, resources);
+    }
+
+    ResourceManager getResourceManager() {
+        return resourceManager;
+    }
+
+    public PluginIndex getPluginIndex() {
+        return pluginIndex;
+    }
+
+    public void setPluginIndex(PluginIndex pluginIndex) {
+        this.pluginIndex = pluginIndex;
     }
 
+    /**
+     * Adds the jars found in directories to the plugin class loader.  Each jar is indexed through PluginIndex
+     * so that the class loader can find a class without searching every jar, and the plugins a jar declares
+     * in its descriptor are registered without loading their classes.
+     * @param directories directories or jar files; see FileUtil.listFiles for wildcards.
+     */
     public void loadPlugins(String[] directories) {
         for (String dir: directories) {
             String[] paths;
@@ -72,15 +101,17 @@ public class PluginManager {
                 throw new SystemException(e);
             }
             for (String p : paths) {
-                String fullPath;
+                File file;
                 try {
-                    fullPath = new File(p).getCanonicalPath();
+                    file = new File(p).getCanonicalFile();
                 } catch (IOException e) {
                     continue;
                 }
 
                 try {
-                    classLoader.addURL(Paths.get(fullPath).toUri().toURL());
+                    PluginIndex.JarIndex index = pluginIndex.index(file);
+                    classLoader.addIndex(file.toPath().toUri().toURL(), index);
+                    registerIndexedPlugins(index);
                 } catch (IOException e) {
                     throw new SystemException(e);
                 }
@@ -88,75 +119,83 @@ public class PluginManager {
         }
     }
 
+    private void registerIndexedPlugins(PluginIndex.JarIndex index) {
+        for (Map.Entry<String, String> entry : index.getPlugins().entrySet()) {
+            try {
+                PluginPath path = PluginIndex.parsePath(entry.getKey(), classLoader);
+                registry.put(path, PluginEntry.ofClassName(path, entry.getValue(), classLoader, PluginScope.PROTOTYPE));
+            } catch (ClassNotFoundException | RuntimeException e) {
+                logger.warn("Cannot register plugin " + entry.getKey() + " declared in " + index.getJar(), e);
+            }
+        }
+    }
+
     public ClassLoader getPluginClassLoader() {
         return classLoader;
     }
 
     protected Optional getDefaultPlugin(Class type) {
-        Object lookup = defaultPlugins.get(type);
+        return getDefaultEntry(type).map(PluginEntry::getValue);
+    }
+
+    private Optional<PluginEntry> getDefaultEntry(Class type) {
+        Object lookup = registry.defaults.get(type);
         if (lookup == NULL_OBJECT)
             return Optional.empty();
 
         if (lookup == null) {
-            while (type != null && !type.equals(Object.class)) {
+            Class cls = type;
+            while (cls != null && !cls.equals(Object.class)) {
                 try {
-                    Field field = type.getField(DEFAULT_PLUGIN);
-                    lookup = field.get(null);
-                    defaultPlugins.put(type, lookup);
+                    Field field = cls.getField(DEFAULT_PLUGIN);
+                    Object value = field.get(null);
+                    if (value != null)
+                        lookup = PluginEntry.of(PluginPath.of(type, DEFAULT_PLUGIN), value);
                     break;
                 } catch (NoSuchFieldException | IllegalAccessException e1) {
                     Logger.suppress(e1);
                 }
-                type = type.getSuperclass();
+                cls = cls.getSuperclass();
             }
-            if (lookup == null)
-                defaultPlugins.put(type, NULL_OBJECT);
+            if (lookup == null) {
+                registry.defaults.putIfAbsent(type, NULL_OBJECT);
+                return Optional.empty();
+            }
+            Object existing = registry.defaults.putIfAbsent(type, lookup);
+            if (existing != null)
+                lookup = existing;
+            if (lookup == NULL_OBJECT)
+                return Optional.empty();
         }
 
-        return Optional.ofNullable(lookup);
+        return Optional.of((PluginEntry) lookup);
     }
 
     public <T extends Plugin> Optional<T> get(PluginPaths<T> paths, Object ... args) {
-        Object lookup = null;
-        PluginPath pluginPath = null;
+        PluginEntry entry = null;
+        Map<PluginPath, PluginEntry> plugins = registry.plugins;
 
         // look up from paths
         for (PluginPath path : paths.getPaths()) {
-            lookup = plugins.get(path);
-            if (lookup != null) {
-                pluginPath = path;
+            entry = plugins.get(path);
+            if (entry != null)
                 break;
-            }
         }
 
-
         // if still null, look up from default plugin
-        if (lookup == null) {
-            // get default plugin
-            Optional defaultPlugin = getDefaultPlugin(paths.getType());
-            if (!defaultPlugin.isPresent())
+        if (entry == null) {
+            Optional<PluginEntry> defaultEntry = getDefaultEntry(paths.getType());
+            if (!defaultEntry.isPresent())
                 return Optional.empty();
-            lookup = defaultPlugin.get();
-            pluginPath = PluginPath.of(paths.getType(), DEFAULT_PLUGIN);
+            entry = defaultEntry.get();
         }
 
-        T plugin;
-        if (lookup instanceof Class) {
-            try {
-                plugin = (T) ((Class) lookup).newInstance();
-                inject(plugin, args);
-                plugin.initialize(pluginPath);
-            } catch (Exception e) {
-                throw new SystemException(e);
-            }
-        } else {
-            plugin = (T) lookup;
-        }
+        T plugin = (T) entry.get(this, args);
 
-        if (plugin instanceof PluginFactory) {
+        if (entry.isFactory()) {
             plugin = ((PluginFactory) plugin).create(resources);
             inject(plugin, args);
-            plugin.initialize(pluginPath);
+            plugin.initialize(entry.getPath());
         }
 
         return Optional.of(plugin);
@@ -202,31 +241,82 @@ public class PluginManager {
         return get(PluginPaths.of(path), args);
     }
 
-    public synchronized <T extends Plugin> void add(PluginPath<T> path, Class<T> cls) {
-        plugins.put(path, cls);
+    /**
+     * Registers a class as a prototype plugin; every get returns a new instance.
+     */
+    public <T extends Plugin> void add(PluginPath<T> path, Class<T> cls) {
+        add(path, cls, PluginScope.PROTOTYPE);
+    }
+
+    public <T extends Plugin> void add(PluginPath<T> path, Class<T> cls, PluginScope scope) {
+        registry.put(path, PluginEntry.ofClass(path, cls, scope));
     }
 
-    public synchronized <T extends Plugin> void add(PluginPath<T> path, T singleton) {
-        plugins.put(path, singleton);
+    public <T extends Plugin> void add(PluginPath<T> path, T singleton) {
         resourceManager.inject(singleton);
         singleton.initialize(path);
+        registry.put(path, PluginEntry.ofInstance(path, singleton));
+    }
+
+    public Object remove(PluginPath path) {
+        PluginEntry entry = registry.remove(path);
+        return (entry == null) ? null : entry.getValue();
     }
 
-    public synchronized <T extends Plugin, U extends T> void addDefault(Class<T> cls, U singleton) {
-        defaultPlugins.put(cls, singleton);
+    public <T extends Plugin, U extends T> void addDefault(Class<T> cls, U singleton) {
+        PluginPath<T> path = PluginPath.of(cls, DEFAULT_PLUGIN);
         resourceManager.inject(singleton);
-        singleton.initialize(PluginPath.of(cls, DEFAULT_PLUGIN));
+        singleton.initialize(path);
+        registry.defaults.put(cls, PluginEntry.ofInstance(path, singleton));
+    }
+
+    public <T extends Plugin, U extends T> void addDefault(Class<T> cls, Class<U> implClass) {
+        addDefault(cls, implClass, PluginScope.PROTOTYPE);
     }
 
-    public synchronized <T extends Plugin, U extends T> void addDefault(Class<T> cls, Class<U> implClass) {
-        defaultPlugins.put(cls, implClass);
+    public <T extends Plugin, U extends T> void addDefault(Class<T> cls, Class<U> implClass, PluginScope scope) {
+        registry.defaults.put(cls, PluginEntry.ofClass(PluginPath.of(cls, DEFAULT_PLUGIN), implClass, scope));
     }
 
     public Object removeDefault(Class cls) {
-        return defaultPlugins.remove(cls);
+        Object lookup = registry.defaults.remove(cls);
+        return (lookup instanceof PluginEntry) ? ((PluginEntry) lookup).getValue() : null;
     }
 
+    /**
+     * Plugins are registered mostly while scripts are loading and looked up on every request afterward.
+     * Writes copy the map and publish it through a volatile field so that reads are lock free.
+     * Default plugins are discovered lazily from a defaultPlugin field so they live in a concurrent map instead.
+     */
+    private static class Registry {
+        private volatile Map<PluginPath, PluginEntry> plugins = Collections.emptyMap();
+        private final Map<Class, Object> defaults = new ConcurrentHashMap<>();
+
+        synchronized void put(PluginPath path, PluginEntry entry) {
+            Map<PluginPath, PluginEntry> copy = new HashMap<>(plugins);
+            copy.put(path, entry);
+            plugins = copy;
+        }
+
+        synchronized PluginEntry remove(PluginPath path) {
+            if (!plugins.containsKey(path))
+                return null;
+            Map<PluginPath, PluginEntry> copy = new HashMap<>(plugins);
+            PluginEntry entry = copy.remove(path);
+            plugins = copy;
+            return entry;
+        }
+    }
+
+    /**
+     * Class loader for plugin jars.  Jars added through addIndex are looked up through their index: a class is read
+     * from the one jar that contains it and defined only when it is first requested, and a class that is not in any
+     * index fails immediately instead of searching every jar.
+     */
     public static class PluginClassLoader extends URLClassLoader {
+        private Map<String, JarSource> indexedClasses = new ConcurrentHashMap<>();
+        private List<JarSource> sources = new CopyOnWriteArrayList<>();
+        private volatile boolean unindexedURLs = false;
 
         public PluginClassLoader(ClassLoader parent) {
             super(new URL[0], parent);
@@ -234,8 +324,90 @@ public class PluginManager {
 
         @Override
         public void addURL(URL url) {
+            unindexedURLs = true;
+            super.addURL(url);
+        }
+
+        public void addIndex(URL url, PluginIndex.JarIndex index) {
+            JarSource source = new JarSource(index.getJar(), url);
+            sources.add(source);
+            for (String cls : index.getClasses())
+                indexedClasses.putIfAbsent(cls, source);
+            // still register the url so that getResource works for the jar.
             super.addURL(url);
         }
 
+        public boolean isDefined(String className) {
+            return findLoadedClass(className) != null;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            JarSource source = indexedClasses.get(name);
+            if (source == null) {
+                if (unindexedURLs)
+                    return super.findClass(name);
+                throw new ClassNotFoundException(name);
+            }
+
+            byte[] bytes;
+            try {
+                bytes = source.read(name.replace('.', '/') + ".class");
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                String packageName = name.substring(0, dot);
+                if (getPackage(packageName) == null) {
+                    try {
+                        definePackage(packageName, null, null, null, null, null, null, null);
+                    } catch (IllegalArgumentException e) {
+                        Logger.suppress(e); // defined concurrently
+                    }
+                }
+            }
+            return defineClass(name, bytes, 0, bytes.length, source.codeSource);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (JarSource source : sources)
+                source.close();
+            super.close();
+        }
+    }
+
+    private static class JarSource {
+        private File file;
+        private CodeSource codeSource;
+        private JarFile jarFile;
+
+        JarSource(File file, URL url) {
+            this.file = file;
+            this.codeSource = new CodeSource(url, (CodeSigner[]) null);
+        }
+
+        synchronized byte[] read(String entryName) throws IOException {
+            if (jarFile == null)
+                jarFile = new JarFile(file);
+            JarEntry entry = jarFile.getJarEntry(entryName);
+            if (entry == null)
+                throw new FileNotFoundException(entryName + " in " + file);
+            try (InputStream in = jarFile.getInputStream(entry)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 4096);
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = in.read(buffer)) >= 0)
+                    out.write(buffer, 0, len);
+                return out.toByteArray();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if (jarFile != null)
+                jarFile.close();
+            jarFile = null;
+        }
     }
 }
@@ -29,7 +29,7 @@ public class PluginPath<T> {
     private String name;
     private String toString;
     private int hash = 0;
-    private LinkedList<PluginPath> path;
+    private volatile LinkedList<PluginPath> path;
 
     protected PluginPath(Class<T> cls, String name) {
         this.type = cls;
@@ -79,13 +79,15 @@ public class PluginPath<T> {
     public List<PluginPath> list() {
         if (path != null)
             return path;
-        path = new LinkedList<>();
+        // build into a local list so that a concurrent caller never sees a partially filled path
+        LinkedList<PluginPath> list = new LinkedList<>();
         PluginPath p = this;
         while (p != null) {
-            path.addFirst(p);
+            list.addFirst(p);
             p = p.parent;
         }
-        return path;
+        path = list;
+        return list;
     }
 
     public String path() {
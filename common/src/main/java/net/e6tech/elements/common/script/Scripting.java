@@ -25,6 +25,7 @@ import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
 import javax.script.Bindings;
 import javax.script.ScriptContext;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
 import javax.script.SimpleScriptContext;
 import java.io.*;
 import java.nio.file.Files;
@@ -32,6 +33,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
 /**
  * Created by futeh.
@@ -96,6 +99,19 @@ public class Scripting {
         return engine.remove(key);
     }
 
+    /**
+     * Calls listener with the name and the new value of every variable written from now on, including
+     * assignments made by scripts.  The value is null when the variable is removed, and a GString is passed
+     * as a String, as getVariables returns it.
+     */
+    public void addVariableListener(BiConsumer<String, Object> listener) {
+        engine.variables.listeners.add(listener);
+    }
+
+    public void removeVariableListener(BiConsumer<String, Object> listener) {
+        engine.variables.listeners.remove(listener);
+    }
+
     public Properties getProperties() {
         return engine.getProperties();
     }
@@ -336,6 +352,7 @@ public class Scripting {
 
     // This class encapsulates the differences between GroovyShell and GroovyScriptEngineImpl.
     private static class GroovyEngine {
+        Variables variables = new Variables();
         GroovyShell shell;
         GroovyScriptEngineImpl scriptEngine;
         ScriptContext scriptContext;
@@ -357,7 +374,7 @@ public class Scripting {
             }
 
             if (useGroovyShell) {
-                Binding binding = new Binding();
+                Binding binding = new Binding(variables);
                 for (Map.Entry entry : properties.entrySet()) {
                     binding.setVariable(entry.getKey().toString(), entry.getValue());
                 }
@@ -365,6 +382,7 @@ public class Scripting {
             } else {
                 scriptEngine = new GroovyScriptEngineImpl(loader);
                 scriptContext = new SimpleScriptContext();
+                scriptContext.setBindings(new SimpleBindings(variables), ScriptContext.ENGINE_SCOPE);
                 for (Map.Entry entry : properties.entrySet()) {
                     scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).put(entry.getKey().toString(), entry.getValue());
                 }
@@ -490,4 +508,77 @@ public class Scripting {
             return path.toString();
         }
     }
+
+    /*
+     * The variables of the binding.  Scripts assign variables through the binding, so every write goes through
+     * put or remove here and is passed on to the listeners.  Writes through the views, entry.setValue, compute
+     * and merge are not seen; neither the binding nor Scripting uses them.
+     */
+    private static class Variables extends LinkedHashMap<String, Object> {
+        private static final long serialVersionUID = 4468513947395621458L;
+        private final transient List<BiConsumer<String, Object>> listeners = new CopyOnWriteArrayList<>();
+
+        private void changed(String key, Object value) {
+            if (listeners.isEmpty())
+                return;
+            Object object = (value instanceof GString) ? value.toString() : value;
+            for (BiConsumer<String, Object> listener : listeners)
+                listener.accept(key, object);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object existing = super.put(key, value);
+            changed(key, value);
+            return existing;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> map) {
+            map.forEach(this::put);
+        }
+
+        @Override
+        public Object putIfAbsent(String key, Object value) {
+            Object existing = get(key);
+            return (existing == null) ? put(key, value) : existing;
+        }
+
+        @Override
+        public Object replace(String key, Object value) {
+            return containsKey(key) ? put(key, value) : null;
+        }
+
+        @Override
+        public boolean replace(String key, Object oldValue, Object newValue) {
+            if (!containsKey(key) || !Objects.equals(get(key), oldValue))
+                return false;
+            put(key, newValue);
+            return true;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            if (!containsKey(key))
+                return null;
+            Object existing = super.remove(key);
+            changed((String) key, null);
+            return existing;
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            if (!containsKey(key) || !Objects.equals(get(key), value))
+                return false;
+            remove(key);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            List<String> keys = new ArrayList<>(keySet());
+            super.clear();
+            keys.forEach(key -> changed(key, null));
+        }
+    }
 }
@@ -23,10 +23,7 @@ import java.beans.IntrospectionException;
 import java.beans.PropertyDescriptor;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static java.util.Locale.ENGLISH;
 
@@ -35,11 +32,25 @@ import static java.util.Locale.ENGLISH;
  *
  *  ${var:default} expands to default if var not defined, to var if var is defined.
  *  ${var:+default}  expands to "" if var is not defined, to default if var is defined.
+ *
+ *  The template is parsed once into a list of literal and variable segments.  build renders the segments
+ *  in a single pass so that the same TextSubstitution can be reused with different bindings.  In strict mode,
+ *  a variable without a default that cannot be resolved causes build to throw a SystemException instead of
+ *  expanding to "".
  */
 public class TextSubstitution {
 
+    private static final String BEGIN = "${";
+    private static final char END = '}';
+    private static final int VAR_SIZE_ESTIMATE = 16;
+
     private Map<String, Var> variables = new LinkedHashMap<>();
     private Map<String, Var> declared = new LinkedHashMap<>();
+    private List<Object> segments = new ArrayList<>(); // either String or Var
+    private int literalLength;
+    private int varCount;
+    private volatile int lastLength;
+    private boolean strict = false;
     private String template;
 
     // NOTE.  If template ever gets modified, parseVariableNames needs to be called.
@@ -70,96 +81,129 @@ public class TextSubstitution {
         return this;
     }
 
+    public boolean isStrict() {
+        return strict;
+    }
+
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    public TextSubstitution strict(boolean strict) {
+        setStrict(strict);
+        return this;
+    }
+
+    public Set<String> getVariableNames() {
+        return Collections.unmodifiableSet(variables.keySet());
+    }
+
     public String build(Object binding) {
         if (template == null)
             return "";
-        String text = template;
-        for (Map.Entry<String, Var> entry : variables.entrySet()) {
-            Var var = entry.getValue();
-            text = replaceVariable(entry.getKey(), var.build(binding), text);
+        int estimate = Math.max(lastLength, literalLength + VAR_SIZE_ESTIMATE * varCount);
+        StringBuilder builder = new StringBuilder(estimate);
+        for (Object segment : segments) {
+            if (segment instanceof String) {
+                builder.append((String) segment);
+            } else {
+                ((Var) segment).build(binding, strict, builder);
+            }
         }
-        return text;
+        lastLength = builder.length();
+        return builder.toString();
     }
 
-    private String replaceVariable(String key, String value, String text) {
-        return text.replace("${" + key + "}", value);
-    }
-
-    @SuppressWarnings({"squid:MethodCyclomaticComplexity", "squid:S135", "squid:S3776"})
     private void parseVariableNames(String text) {
         variables.clear();
-        List<String> expressions = new LinkedList<>();
+        segments.clear();
+        literalLength = 0;
+        varCount = 0;
+        if (text == null)
+            return;
         int pos = 0;
         int max = text.length();
         while (pos < max) {
-            pos = text.indexOf("${", pos);
-            if (pos == -1)
+            int start = text.indexOf(BEGIN, pos);
+            if (start == -1)
                 break;
-            int end = text.indexOf('}', pos + 2);
+            int end = text.indexOf(END, start + 2);
             if (end == -1)
                 break;
-            String name = text.substring(pos + 2, end);
-            expressions.add(name);
+            addLiteral(text.substring(pos, start));
+            String expression = text.substring(start + 2, end);
+            segments.add(variables.computeIfAbsent(expression, this::parseVariable));
+            varCount++;
             pos = end + 1;
         }
+        if (pos < max)
+            addLiteral(text.substring(pos));
+    }
 
-        for (String expression : expressions) {
-            String key = expression;
-            String defVal = null;
-            String strategy = null;
-            if (expression.contains(":+")) {
-                int index = expression.indexOf(":+");
-                if (index >= 0) {
-                    key = expression.substring(0, index).trim();
-                    defVal = expression.substring(index + 2);
-                    strategy = ":+";
-                }
-            } else if (expression.contains(":")) {
-                int index = expression.indexOf(':');
-                if (index >= 0) {
-                    key = expression.substring(0, index).trim();
-                    defVal = expression.substring(index + 1);
-                    strategy = ":";
-                }
-            }
+    private void addLiteral(String literal) {
+        if (literal.isEmpty())
+            return;
+        segments.add(literal);
+        literalLength += literal.length();
+    }
 
-            // computing leading white spaces. only matter for expressions without ':' or ':+'
-            int index = 0;
-            for (int i = 0; i < key.length(); i++) {
-                if (!Character.isWhitespace(key.codePointAt(i))) {
-                    index = i;
-                    break;
-                }
+    @SuppressWarnings({"squid:MethodCyclomaticComplexity", "squid:S3776"})
+    private Var parseVariable(String expression) {
+        String key = expression;
+        String defVal = null;
+        String strategy = null;
+        if (expression.contains(":+")) {
+            int index = expression.indexOf(":+");
+            if (index >= 0) {
+                key = expression.substring(0, index).trim();
+                defVal = expression.substring(index + 2);
+                strategy = ":+";
             }
-            String leadingSpaces = key.substring(0, index);
-
-            // computing trailing white spaces. only matter for expressions without ':' or ':+'
-            index = key.length();
-            for (int i = key.length() - 1; i >=0 ; i--) {
-                if (!Character.isWhitespace(key.codePointAt(i))) {
-                    index = i + 1;
-                    break;
-                }
+        } else if (expression.contains(":")) {
+            int index = expression.indexOf(':');
+            if (index >= 0) {
+                key = expression.substring(0, index).trim();
+                defVal = expression.substring(index + 1);
+                strategy = ":";
             }
-            String trailingSpaces = "";
-            if (index < key.length())
-                trailingSpaces = key.substring(index);
-
-            String[] tokens = key.split("\\.");
-            Var var = declared.get(tokens[0]);
-            if (var == null) {
-                var = new Var(expression);
-            } else {
-                var = new Var(var); // essentially clone var.
+        }
+
+        // computing leading white spaces. only matter for expressions without ':' or ':+'
+        int index = 0;
+        for (int i = 0; i < key.length(); i++) {
+            if (!Character.isWhitespace(key.codePointAt(i))) {
+                index = i;
+                break;
             }
+        }
+        String leadingSpaces = key.substring(0, index);
 
-            var.leading = leadingSpaces;
-            var.trailing = trailingSpaces;
-            var.defaultValue = defVal;
-            var.strategy = strategy;
-            var.path = tokens;
-            variables.put(expression, var);
+        // computing trailing white spaces. only matter for expressions without ':' or ':+'
+        index = key.length();
+        for (int i = key.length() - 1; i >=0 ; i--) {
+            if (!Character.isWhitespace(key.codePointAt(i))) {
+                index = i + 1;
+                break;
+            }
         }
+        String trailingSpaces = "";
+        if (index < key.length())
+            trailingSpaces = key.substring(index);
+
+        String[] tokens = key.split("\\.");
+        Var var = declared.get(tokens[0]);
+        if (var == null) {
+            var = new Var(expression);
+        } else {
+            var = new Var(var); // essentially clone var.
+        }
+
+        var.leading = leadingSpaces;
+        var.trailing = trailingSpaces;
+        var.defaultValue = defVal;
+        var.strategy = strategy;
+        var.path = tokens;
+        return var;
     }
 
     public static String capitalize(String name) {
@@ -207,7 +251,7 @@ public class TextSubstitution {
         }
 
         @SuppressWarnings({"squid:MethodCyclomaticComplexity", "squid:S135", "squid:S1141", "squid:S134", "squid:S3776"})
-        public String build(Object object) {
+        void build(Object object, boolean strict, StringBuilder builder) {
             Object result = object;
             PropertyDescriptor desc;
             for (String comp : path) {
@@ -238,20 +282,20 @@ public class TextSubstitution {
 
             if (result == null) {
                 // variable not defined
-                if (":+".equals(strategy)) {
-                    return "";
-                } else if (":".equals(strategy)) {
-                    return (defaultValue == null) ? "" : defaultValue;
+                if (":".equals(strategy) && defaultValue != null) {
+                    builder.append(defaultValue);
+                } else if (strategy == null && strict) {
+                    throw new SystemException("Variable ${" + name + "} is not defined");
                 }
-                return "";
             } else {
                 // variable is defined
                 if (":+".equals(strategy)) {
-                    return defaultValue;
+                    builder.append(defaultValue);
                 } else if (":".equals(strategy)) {
-                    return result.toString();
+                    builder.append(result);
+                } else {
+                    builder.append(leading).append(result).append(trailing);
                 }
-                return leading + result.toString() + trailing;
             }
         }
     }
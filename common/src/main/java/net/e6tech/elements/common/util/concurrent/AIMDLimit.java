@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Additive increase, multiplicative decrease.  The limit grows by one per round of limit calls while the
+ * limit is in use, and is multiplied by backoffRatio when a call is dropped or takes longer than timeout.
+ * Only reacts to failures, so it suits downstreams that time out or reject when overloaded.
+ */
+public class AIMDLimit implements ConcurrencyLimit {
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private double backoffRatio = 0.9;
+    private long timeout = TimeUnit.SECONDS.toNanos(5);
+    private double estimate;
+    private volatile int limit;
+
+    public AIMDLimit() {
+        this(20);
+    }
+
+    public AIMDLimit(int initialLimit) {
+        estimate = initialLimit;
+        limit = initialLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    public void setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0d || backoffRatio >= 1d)
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @return round trip time in nanoseconds beyond which a call counts as dropped.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized void onSample(long rtt, int inflight, boolean dropped) {
+        if (dropped || rtt > timeout)
+            estimate = Math.max(minLimit, estimate * backoffRatio);
+        else if (inflight * 2 >= estimate) // don't grow while the limit isn't reached
+            estimate = Math.min(maxLimit, estimate + 1d / estimate);
+        limit = (int) estimate;
+    }
+
+    @Override
+    public String toString() {
+        return "AIMD " + limit;
+    }
+}
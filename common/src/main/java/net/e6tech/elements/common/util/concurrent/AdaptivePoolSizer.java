@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import net.e6tech.elements.common.logging.Logger;
+
+import java.util.concurrent.*;
+
+/**
+ * Resizes a ThreadPool within bounds from its measured load by setting the core number of threads of its
+ * ThreadPoolExecutor.  The maximum is raised when the core size needs it and otherwise left alone.  Only
+ * executors with an unbounded queue, such as those of fixedThreadPool, can be sized: the others add threads
+ * beyond the core size on their own when their queue is full, which resizing the core would defeat.
+ *
+ * Every interval it takes the arrival rate and
+ * the mean execution time of the tasks since the previous interval; by Little's law, their product is the
+ * number of threads kept busy.  The target is that number plus headroom, plus enough threads to drain the
+ * current queue within one interval.
+ *
+ * To avoid oscillating, the pool grows at once but at most doubles per interval, and it shrinks only after
+ * the target has stayed below its size for shrinkAfter intervals in a row.
+ */
+public class AdaptivePoolSizer {
+    private static Logger logger = Logger.getLogger();
+
+    private final ThreadPool pool;
+    private final int minThreads;
+    private final int maxThreads;
+    private long interval = 1000L;
+    private double headroom = 0.2;
+    private int shrinkAfter = 3;
+    private ScheduledFuture<?> schedule;
+
+    private long lastSampleAt;
+    private long lastSubmitted;
+    private long lastCompleted;
+    private long lastExecutionNanos;
+    private double serviceNanos;
+    private int belowCount;
+
+    public AdaptivePoolSizer(ThreadPool pool, int minThreads, int maxThreads) {
+        if (minThreads <= 0 || maxThreads < minThreads)
+            throw new IllegalArgumentException("Invalid bounds " + minThreads + ".." + maxThreads);
+        if (!(pool.<ExecutorService>unwrap() instanceof ThreadPoolExecutor))
+            throw new IllegalArgumentException("Pool " + pool.getName() + " is not backed by a ThreadPoolExecutor");
+        if (pool.<ThreadPoolExecutor>unwrap().getQueue().remainingCapacity() != Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Pool " + pool.getName() + " does not have an unbounded queue");
+        this.pool = pool;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return milliseconds between resizes.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException();
+        this.interval = interval;
+    }
+
+    /**
+     * @return fraction of the busy threads added as spare capacity.  0.2 keeps threads about 83% busy.
+     */
+    public double getHeadroom() {
+        return headroom;
+    }
+
+    public void setHeadroom(double headroom) {
+        if (headroom < 0)
+            throw new IllegalArgumentException();
+        this.headroom = headroom;
+    }
+
+    public int getShrinkAfter() {
+        return shrinkAfter;
+    }
+
+    public void setShrinkAfter(int shrinkAfter) {
+        if (shrinkAfter <= 0)
+            throw new IllegalArgumentException();
+        this.shrinkAfter = shrinkAfter;
+    }
+
+    public synchronized void start() {
+        if (schedule != null)
+            return;
+        sample(System.nanoTime());
+        resize(clamp(executor().getCorePoolSize()));
+        schedule = Scheduler.INSTANCE.scheduleWithFixedDelay(() -> {
+            try {
+                adjust();
+            } catch (Exception ex) {
+                logger.warn("Cannot resize thread pool " + pool.getName(), ex);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel(false);
+            schedule = null;
+        }
+    }
+
+    private ThreadPoolExecutor executor() {
+        return pool.unwrap();
+    }
+
+    private int clamp(int size) {
+        return Math.max(minThreads, Math.min(maxThreads, size));
+    }
+
+    private void sample(long now) {
+        lastSampleAt = now;
+        lastSubmitted = pool.getSubmittedCount();
+        lastCompleted = pool.getCompletedCount();
+        lastExecutionNanos = pool.getExecutionTime().getTotal(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes a sample and resizes the pool.  Called every interval once started.
+     * @return the new size of the pool.
+     */
+    public synchronized int adjust() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleAt;
+        if (elapsed <= 0)
+            return executor().getCorePoolSize();
+        long submitted = pool.getSubmittedCount() - lastSubmitted;
+        long completed = pool.getCompletedCount() - lastCompleted;
+        long executionNanos = pool.getExecutionTime().getTotal(TimeUnit.NANOSECONDS) - lastExecutionNanos;
+        sample(now);
+        ThreadPoolExecutor executor = executor();
+        return adjust(elapsed, submitted, completed, executionNanos, executor.getQueue().size(), executor.getActiveCount());
+    }
+
+    // resizes the pool from the load measured over the last elapsed nanoseconds.
+    synchronized int adjust(long elapsed, long submitted, long completed, long executionNanos, int queued, int active) {
+        if (completed > 0)
+            serviceNanos = (double) executionNanos / completed;
+
+        int current = executor().getCorePoolSize();
+        int target;
+        if (serviceNanos == 0d) {
+            // nothing has completed yet: grow only if every thread is stuck and tasks are waiting.
+            target = (queued > 0 && active >= current) ? current + 1 : current;
+        } else {
+            double arrivalRate = (double) submitted / elapsed;
+            double busy = arrivalRate * serviceNanos;
+            double drain = queued * serviceNanos / TimeUnit.MILLISECONDS.toNanos(interval);
+            target = (int) Math.ceil(busy * (1 + headroom) + drain);
+        }
+        return resize(next(current, target));
+    }
+
+    // applies the growth limit and the shrink delay to target.
+    int next(int current, int target) {
+        int size = clamp(target);
+        if (size > current) {
+            belowCount = 0;
+            return Math.min(size, Math.max(current * 2, current + 1));
+        } else if (size < current) {
+            belowCount++;
+            if (belowCount < shrinkAfter)
+                return current;
+            belowCount = 0;
+            return size;
+        }
+        belowCount = 0;
+        return current;
+    }
+
+    private int resize(int size) {
+        ThreadPoolExecutor executor = executor();
+        if (size > executor.getMaximumPoolSize())
+            executor.setMaximumPoolSize(size);
+        if (size != executor.getCorePoolSize())
+            executor.setCorePoolSize(size);
+        return size;
+    }
+
+    private static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AdaptivePoolSizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -16,48 +16,125 @@
 
 package net.e6tech.elements.common.util.concurrent;
 
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.implementation.MethodDelegation;
+import net.bytebuddy.implementation.bind.annotation.Pipe;
+import net.bytebuddy.implementation.bind.annotation.RuntimeType;
+import net.bytebuddy.matcher.ElementMatchers;
+import net.e6tech.elements.common.inject.Inject;
 import net.e6tech.elements.common.logging.Logger;
+import net.e6tech.elements.common.notification.NotificationCenter;
 import net.e6tech.elements.common.reflection.Reflection;
 import net.e6tech.elements.common.util.SystemException;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Proxy;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 /**
+ * Spreads calls over a number of services.
+ *
+ * With the default EXCLUSIVE strategy, a service is checked out for the duration of a call, so a caller
+ * waits, up to timeout, while every service is busy.  The other strategies share services between
+ * concurrent calls:
+ * LEAST_OUTSTANDING picks the service with the fewest calls in progress;
+ * POWER_OF_TWO picks two services at random and uses the one with the lower latency EWMA multiplied by its
+ * calls in progress plus one, so slow services get less traffic;
+ * WEIGHTED_ROUND_ROBIN rotates through the services in proportion to their weights.
+ *
+ * A service is ejected, i.e. stopped and taken out of rotation, after consecutiveFailures calls in a row
+ * throw IOException, when its error rate over errorRateWindow reaches errorRateThreshold, or when the
+ * optional health check fails; the health check runs every healthCheckInterval.  An ejected service is
+ * restarted, and probed if there is a health check, after recoveryPeriod, doubling with each ejection up to
+ * maxEjectionTime.  At most maxEjectionPercent of the services are ejected at a time, though always at least
+ * one.  Ejections and reinstatements are published to the NotificationCenter as HealthNotifications.
  * Created by futeh.
  */
 public abstract class Balancer<T> {
 
+    public enum Strategy {
+        EXCLUSIVE,
+        LEAST_OUTSTANDING,
+        POWER_OF_TWO,
+        WEIGHTED_ROUND_ROBIN
+    }
+
+    /**
+     * Probes a service.  Returning false or throwing means the service is unhealthy.
+     */
+    @FunctionalInterface
+    public interface HealthCheck<T> {
+        boolean check(T service) throws Exception;
+    }
+
+    private static final double EWMA_ALPHA = 0.3;
+    private static final double EWMA_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final String DISPATCHER_FIELD = "dispatcher";
+    private static final Map<Class, Class> dispatchClasses = new ConcurrentHashMap<>();
+
     private BlockingQueue<T> liveList = new LinkedBlockingQueue<>();
-    private BlockingQueue<T>  deadList = new LinkedBlockingQueue<>();
+    private volatile Object[] liveNodes = new Object[0]; // copied on write so that selecting does not allocate
+    private Map<T, Node<T>> nodes = Collections.synchronizedMap(new IdentityHashMap<>());
+    private Strategy strategy = Strategy.EXCLUSIVE;
     private long timeout = 3000L;
     private long recoveryPeriod = 60000L;
+    private long maxEjectionTime = 600000L;
+    private int consecutiveFailures = 1;
+    private double errorRateThreshold = 0d;
+    private int errorRateMinimumCalls = 20;
+    private long errorRateWindow = 10000L;
+    private int maxEjectionPercent = 100;
+    private HealthCheck<T> healthCheck;
+    private long healthCheckInterval = 10000L;
+    private NotificationCenter notificationCenter;
+    private LongSupplier clock = System::currentTimeMillis;
     private Thread recoveryThread;
     private volatile boolean stopped = false;
+    private final LongAdder ejections = new LongAdder();
+    private final LongAdder reinstatements = new LongAdder();
+    private final LongAdder healthCheckFailures = new LongAdder();
 
+    /**
+     * Returns an implementation of T that forwards each call to a service through execute.  The class is
+     * generated once per interface and calls the service method directly rather than through reflection.
+     * An IOException thrown by a service counts as a failure and is rethrown as is after the retries.
+     */
     @SuppressWarnings({"unchecked"})
     public T getService() {
-        Class cls = Reflection.getParametrizedType(getClass(), 0);
-        return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { cls },
-                (proxy,  method, args)->
-                     execute(service -> {
-                        try {
-                            return method.invoke(service, args);
-                        } catch (IllegalAccessException e) {
-                            throw new SystemException(e);
-                        } catch (InvocationTargetException e) {
-                            Logger.suppress(e);
-                            throw new SystemException(e.getCause());
-                        }
-                    })
-                );
+        Class<T> cls = Reflection.getParametrizedType(getClass(), 0);
+        Class<?> dispatchClass = dispatchClasses.computeIfAbsent(cls, Balancer::newDispatchClass);
+        try {
+            T service = (T) dispatchClass.newInstance();
+            Field field = dispatchClass.getDeclaredField(DISPATCHER_FIELD);
+            field.setAccessible(true);
+            field.set(service, new Dispatcher<>(this));
+            return service;
+        } catch (Exception e) {
+            throw new SystemException(e);
+        }
+    }
+
+    private static Class<?> newDispatchClass(Class<?> cls) {
+        // a class implementing a non-public interface has to be defined in the interface's package.
+        ClassLoadingStrategy<ClassLoader> strategy = Modifier.isPublic(cls.getModifiers())
+                ? ClassLoadingStrategy.Default.WRAPPER : ClassLoadingStrategy.Default.INJECTION;
+        return new ByteBuddy()
+                .subclass(cls)
+                .method(ElementMatchers.not(ElementMatchers.isDeclaredBy(Object.class)))
+                .intercept(MethodDelegation.withDefaultConfiguration()
+                        .withBinders(Pipe.Binder.install(Forwarder.class))
+                        .toField(DISPATCHER_FIELD))
+                .defineField(DISPATCHER_FIELD, Dispatcher.class, Visibility.PRIVATE)
+                .make()
+                .load(cls.getClassLoader(), strategy)
+                .getLoaded();
     }
 
     public long getTimeout() {
@@ -68,6 +145,9 @@ public abstract class Balancer<T> {
         this.timeout = timeout;
     }
 
+    /**
+     * @return milliseconds a service stays ejected the first time.  Each further ejection doubles it.
+     */
     public long getRecoveryPeriod() {
         return recoveryPeriod;
     }
@@ -76,77 +156,394 @@ public abstract class Balancer<T> {
         this.recoveryPeriod = recoveryPeriod;
     }
 
+    /**
+     * @return longest time in milliseconds a service stays ejected.  A service that has stayed in rotation
+     * for this long starts again from recoveryPeriod the next time it is ejected.
+     */
+    public long getMaxEjectionTime() {
+        return maxEjectionTime;
+    }
+
+    public void setMaxEjectionTime(long maxEjectionTime) {
+        this.maxEjectionTime = maxEjectionTime;
+    }
+
+    /**
+     * @return number of calls in a row that must fail for a service to be ejected.  0 disables it.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public void setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * @return fraction of failed calls within errorRateWindow at which a service is ejected.  0 disables it.
+     */
+    public double getErrorRateThreshold() {
+        return errorRateThreshold;
+    }
+
+    public void setErrorRateThreshold(double errorRateThreshold) {
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    /**
+     * @return number of calls within errorRateWindow before the error rate is considered.
+     */
+    public int getErrorRateMinimumCalls() {
+        return errorRateMinimumCalls;
+    }
+
+    public void setErrorRateMinimumCalls(int errorRateMinimumCalls) {
+        this.errorRateMinimumCalls = errorRateMinimumCalls;
+    }
+
+    public long getErrorRateWindow() {
+        return errorRateWindow;
+    }
+
+    public void setErrorRateWindow(long errorRateWindow) {
+        this.errorRateWindow = errorRateWindow;
+    }
+
+    public int getMaxEjectionPercent() {
+        return maxEjectionPercent;
+    }
+
+    public void setMaxEjectionPercent(int maxEjectionPercent) {
+        if (maxEjectionPercent < 0 || maxEjectionPercent > 100)
+            throw new IllegalArgumentException();
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    public HealthCheck<T> getHealthCheck() {
+        return healthCheck;
+    }
+
+    public void setHealthCheck(HealthCheck<T> healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    /**
+     * @return milliseconds between health checks of services in rotation.
+     */
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public LongSupplier getClock() {
+        return clock;
+    }
+
+    /**
+     * Source of millisecond timestamps for ejections, health checks and error rate windows,
+     * System.currentTimeMillis by default.
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public NotificationCenter getNotificationCenter() {
+        return notificationCenter;
+    }
+
+    @Inject(optional = true)
+    public void setNotificationCenter(NotificationCenter notificationCenter) {
+        this.notificationCenter = notificationCenter;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets how services are selected.  Must be called before services are added.
+     */
+    public void setStrategy(Strategy strategy) {
+        if (!nodes.isEmpty())
+            throw new IllegalStateException("Strategy must be set before services are added");
+        this.strategy = strategy;
+    }
+
     public void addService(T service) {
-        liveList.add(service);
+        addService(service, 1);
+    }
+
+    /**
+     * @param weight relative share of calls under WEIGHTED_ROUND_ROBIN.  Ignored by the other strategies.
+     */
+    public void addService(T service, int weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("weight must be positive");
+        Node<T> node = new Node<>(service, weight);
+        nodes.put(service, node);
+        if (strategy == Strategy.EXCLUSIVE)
+            liveList.add(service);
+        else
+            addLive(node);
+    }
+
+    /**
+     * @return calls in progress on service, or 0 under EXCLUSIVE.
+     */
+    public int getOutstanding(T service) {
+        Node<T> node = nodes.get(service);
+        return (node == null) ? 0 : node.outstanding.get();
+    }
+
+    /**
+     * @return exponentially weighted moving average of the latency of service in nanoseconds.
+     */
+    public double getLatencyEwma(T service) {
+        Node<T> node = nodes.get(service);
+        return (node == null) ? 0d : node.ewma;
+    }
+
+    public boolean isEjected(T service) {
+        Node<T> node = nodes.get(service);
+        return node != null && node.ejected;
+    }
+
+    public int getEjectedCount() {
+        int count = 0;
+        for (Node<T> node : nodeList())
+            if (node.ejected)
+                count++;
+        return count;
+    }
+
+    public long getEjectionCount() {
+        return ejections.sum();
+    }
+
+    public long getReinstatementCount() {
+        return reinstatements.sum();
+    }
+
+    public long getHealthCheckFailureCount() {
+        return healthCheckFailures.sum();
+    }
+
+    private List<Node<T>> nodeList() {
+        synchronized (nodes) {
+            return new ArrayList<>(nodes.values());
+        }
     }
 
     public void start() {
-        Iterator<T> iterator = liveList.iterator();
         stopped = false;
-        while (iterator.hasNext()) {
-            T service = iterator.next();
+        for (Node<T> node : nodeList()) {
             try {
-               start(service);
+                start(node.service);
             } catch (Exception th) {
                 Logger.suppress(th);
-                iterator.remove();
-                recover(service);
+                eject(node, "cannot start: " + th.getMessage(), true);
             }
         }
+        if (healthCheck != null)
+            startRecoveryThread();
     }
 
-    public void stop() {
+    public synchronized void stop() {
         stopped = true;
+        if (recoveryThread != null) {
+            recoveryThread.interrupt();
+            recoveryThread = null;
+        }
     }
 
     protected abstract void start(T service) throws IOException;
 
     protected abstract void stop(T service) throws IOException;
 
+    private synchronized void startRecoveryThread() {
+        if (recoveryThread == null && !stopped) {
+            recoveryThread = new Thread(this::recoverTask, getClass().getSimpleName() + "-health");
+            recoveryThread.setDaemon(true);
+            recoveryThread.start();
+        }
+    }
+
     @SuppressWarnings("squid:S899")
     private void recoverTask() {
-        List<T> list = new LinkedList<>();
+        long lastCheck = clock.getAsLong();
         while (!stopped) {
-            list.clear();
-            T service = deadList.poll();
+            long period = (healthCheck != null) ? Math.min(recoveryPeriod, healthCheckInterval) : recoveryPeriod;
             try {
-                start(service);
-                liveList.offer(service);
-            } catch (Exception ex) {
-                Logger.suppress(ex);
-                try {
-                    stop(service);
-                } catch (Exception e) {
-                    Logger.suppress(e);
-                }
-                list.add(service);
-            }
-
-            list.forEach(h -> deadList.offer(h));
-            try {
-                Thread.sleep(recoveryPeriod);
+                Thread.sleep(Math.max(1L, Math.min(period, recoveryPeriod / 4 + 1)));
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
             }
+            long now = clock.getAsLong();
+            boolean checkLive = healthCheck != null && now - lastCheck >= healthCheckInterval;
+            if (checkLive)
+                lastCheck = now;
+            for (Node<T> node : nodeList()) {
+                if (stopped)
+                    break;
+                if (node.ejected) {
+                    if (now >= node.ejectedUntil)
+                        tryReinstate(node);
+                } else {
+                    if (checkLive && !probe(node))
+                        eject(node, "health check failed", false);
+                    else if (node.ejectionCount > 0 && now - node.reinstatedAt >= maxEjectionTime)
+                        node.ejectionCount = 0;
+                }
+            }
         }
     }
 
-    protected synchronized void recover(T service) {
+    private boolean probe(Node<T> node) {
+        if (healthCheck == null)
+            return true;
+        try {
+            if (healthCheck.check(node.service))
+                return true;
+        } catch (Exception ex) {
+            Logger.suppress(ex);
+        }
+        healthCheckFailures.increment();
+        return false;
+    }
+
+    private void tryReinstate(Node<T> node) {
+        try {
+            start(node.service);
+            if (probe(node)) {
+                reinstate(node);
+                return;
+            }
+        } catch (Exception ex) {
+            Logger.suppress(ex);
+        }
+        stopService(node.service);
+        synchronized (this) {
+            node.ejectionCount++;
+            node.ejectedUntil = clock.getAsLong() + ejectionTime(node);
+        }
+    }
+
+    private long ejectionTime(Node<T> node) {
+        int doublings = Math.min(Math.max(node.ejectionCount - 1, 0), 30);
+        return Math.min(recoveryPeriod << doublings, Math.max(recoveryPeriod, maxEjectionTime));
+    }
+
+    private void stopService(T service) {
         try {
             stop(service);
         } catch (Exception e) {
             Logger.suppress(e);
         }
-        deadList.offer(service);
-        if (recoveryThread == null) {
-            recoveryThread = new Thread(this::recoverTask);
-            recoveryThread.start();
+    }
+
+    /**
+     * Ejects service regardless of maxEjectionPercent.
+     */
+    protected void recover(T service) {
+        Node<T> node = nodes.get(service);
+        if (node != null)
+            eject(node, "recover", true);
+    }
+
+    /*
+     * Takes node out of rotation unless too many services are ejected already.
+     * @return true if it was ejected.
+     */
+    private boolean eject(Node<T> node, String reason, boolean force) {
+        synchronized (this) {
+            if (node.ejected)
+                return true;
+            if (!force) {
+                int total = nodes.size();
+                int limit = (maxEjectionPercent == 0) ? 0 : Math.max(1, total * maxEjectionPercent / 100);
+                if (getEjectedCount() >= limit)
+                    return false;
+            }
+            node.ejected = true;
+            node.ejectionCount++;
+            node.ejectedUntil = clock.getAsLong() + ejectionTime(node);
+            node.resetFailures();
+            if (strategy == Strategy.EXCLUSIVE) {
+                synchronized (node) {
+                    liveList.remove(node.service);
+                }
+            } else {
+                removeLive(node);
+            }
         }
+        ejections.increment();
+        stopService(node.service);
+        publish(node, HealthNotification.State.EJECTED, reason);
+        startRecoveryThread();
+        return true;
+    }
+
+    private void reinstate(Node<T> node) {
+        synchronized (this) {
+            if (!node.ejected)
+                return;
+            node.ejected = false;
+            node.reinstatedAt = clock.getAsLong();
+            node.resetFailures();
+            if (strategy == Strategy.EXCLUSIVE) {
+                synchronized (node) {
+                    // a service checked out is put back by the caller.
+                    if (!node.checkedOut && !liveList.contains(node.service))
+                        liveList.offer(node.service);
+                }
+            } else {
+                addLive(node);
+            }
+        }
+        reinstatements.increment();
+        publish(node, HealthNotification.State.REINSTATED, "recovered");
+    }
+
+    private synchronized void addLive(Node<T> node) {
+        Object[] live = Arrays.copyOf(liveNodes, liveNodes.length + 1);
+        live[live.length - 1] = node;
+        liveNodes = live;
+    }
+
+    private synchronized void removeLive(Node<T> node) {
+        List<Object> live = new ArrayList<>(Arrays.asList(liveNodes));
+        live.remove(node);
+        liveNodes = live.toArray();
     }
 
+    private void publish(Node<T> node, HealthNotification.State state, String reason) {
+        if (notificationCenter != null)
+            notificationCenter.fireNotification(new HealthNotification(this, node.service, state, reason));
+    }
+
+    /*
+     * Records the outcome of a call and ejects the service if it fails too often.  Only IOException counts
+     * as a failure; a call that throws anything else is not recorded either way.
+     */
+    private void completed(Node<T> node, boolean failed) {
+        if (node.record(failed, consecutiveFailures, errorRateThreshold, errorRateMinimumCalls, errorRateWindow, clock))
+            eject(node, "calls failed", false);
+    }
+
+    /**
+     * Calls submit with a service.  A call that throws IOException is retried with another service, up to
+     * once per service, after which the last IOException is thrown.
+     */
     public <R> R execute(Submit<T, R> submit) throws IOException {
-        while (true) {
+        if (strategy != Strategy.EXCLUSIVE)
+            return executeShared(submit);
+
+        IOException last = null;
+        for (int attempt = 0; attempt < Math.max(1, nodes.size()); attempt++) {
             T service;
             try {
                 service = liveList.poll(timeout, TimeUnit.MILLISECONDS);
@@ -156,17 +553,117 @@ public abstract class Balancer<T> {
             }
 
             if (service == null)
-                throw new IOException("No service available");
+                break;
 
+            Node<T> node = nodes.get(service);
+            synchronized (node) {
+                node.checkedOut = true;
+            }
+            long start = System.nanoTime();
             try {
                 R ret = submit.apply(service);
-                liveList.offer(service);
+                completed(node, false);
+                return ret;
+            } catch (IOException ex) {
+                Logger.suppress(ex);
+                last = ex;
+                completed(node, true);
+            } finally {
+                node.record(start, System.nanoTime());
+                synchronized (node) {
+                    node.checkedOut = false;
+                    if (!node.ejected && !liveList.contains(service))
+                        liveList.offer(service);
+                }
+            }
+        }
+        throw (last != null) ? last : new IOException("No service available");
+    }
+
+    private <R> R executeShared(Submit<T, R> submit) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt < Math.max(1, nodes.size()); attempt++) {
+            Node<T> node = select();
+            if (node == null)
+                break;
+
+            node.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                R ret = submit.apply(node.service);
+                completed(node, false);
                 return ret;
             } catch (IOException ex) {
                 Logger.suppress(ex);
-                recover(service);
+                last = ex;
+                completed(node, true);
+            } finally {
+                node.outstanding.decrementAndGet();
+                node.record(start, System.nanoTime());
             }
         }
+        throw (last != null) ? last : new IOException("No service available");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<T> select() {
+        Object[] live = liveNodes;
+        if (live.length == 0)
+            return null;
+        if (live.length == 1)
+            return (Node<T>) live[0];
+        switch (strategy) {
+            case LEAST_OUTSTANDING:
+                return leastOutstanding(live);
+            case POWER_OF_TWO:
+                return powerOfTwo(live);
+            default:
+                return weightedRoundRobin(live);
+        }
+    }
+
+    // starts at a random node so that ties do not all go to the first one.
+    @SuppressWarnings("unchecked")
+    private Node<T> leastOutstanding(Object[] live) {
+        int offset = ThreadLocalRandom.current().nextInt(live.length);
+        Node<T> selected = null;
+        for (int i = 0; i < live.length; i++) {
+            Node<T> node = (Node<T>) live[(offset + i) % live.length];
+            if (selected == null || node.outstanding.get() < selected.outstanding.get())
+                selected = node;
+        }
+        return selected;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<T> powerOfTwo(Object[] live) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(live.length);
+        int second = random.nextInt(live.length - 1);
+        if (second >= first)
+            second++;
+        Node<T> a = (Node<T>) live[first];
+        Node<T> b = (Node<T>) live[second];
+        // until both have latencies, compare calls in progress so that a new node is not flooded.
+        if (a.ewma == 0d || b.ewma == 0d)
+            return (a.outstanding.get() <= b.outstanding.get()) ? a : b;
+        return (a.cost() <= b.cost()) ? a : b;
+    }
+
+    // smooth weighted round robin: each pick raises every node by its weight and lowers the pick by the total.
+    @SuppressWarnings("unchecked")
+    private synchronized Node<T> weightedRoundRobin(Object[] live) {
+        int total = 0;
+        Node<T> selected = null;
+        for (Object object : live) {
+            Node<T> node = (Node<T>) object;
+            node.currentWeight += node.weight;
+            total += node.weight;
+            if (selected == null || node.currentWeight > selected.currentWeight)
+                selected = node;
+        }
+        selected.currentWeight -= total;
+        return selected;
     }
 
     @FunctionalInterface
@@ -174,4 +671,100 @@ public abstract class Balancer<T> {
         R apply(T t) throws IOException;
     }
 
+    /**
+     * Implemented by a generated class that calls the intercepted method, with the intercepted arguments,
+     * directly on service.  Exceptions thrown by the service method propagate unchanged.
+     */
+    public interface Forwarder {
+        Object to(Object service);
+    }
+
+    // must be public for the generated classes
+    public static class Dispatcher<T> {
+        private final Balancer<T> balancer;
+
+        public Dispatcher(Balancer<T> balancer) {
+            this.balancer = balancer;
+        }
+
+        @RuntimeType
+        public Object dispatch(@Pipe Forwarder forwarder) throws IOException {
+            return balancer.execute(forwarder::to);
+        }
+    }
+
+    private static class Node<T> {
+        final T service;
+        final int weight;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile double ewma;
+        volatile long recordedAt;
+        int currentWeight;
+        volatile boolean ejected;
+        volatile boolean checkedOut;
+        int ejectionCount;
+        volatile long ejectedUntil;
+        volatile long reinstatedAt;
+        final AtomicInteger failures = new AtomicInteger();
+        private long windowStart;
+        private int windowCalls;
+        private int windowErrors;
+
+        Node(T service, int weight) {
+            this.service = service;
+            this.weight = weight;
+        }
+
+        // races between concurrent updates lose a sample at worst.
+        void record(long start, long end) {
+            long nanos = end - start;
+            double current = ewma;
+            ewma = (current == 0d) ? nanos : current + EWMA_ALPHA * (nanos - current);
+            recordedAt = end;
+        }
+
+        /*
+         * @return true if the service should be ejected, either because the last consecutiveFailures calls
+         * failed or because the error rate within the current window reached errorRateThreshold.
+         */
+        boolean record(boolean failed, int consecutiveFailures, double errorRateThreshold, int minimumCalls, long window, LongSupplier clock) {
+            boolean eject = false;
+            if (failed) {
+                int count = failures.incrementAndGet();
+                eject = consecutiveFailures > 0 && count >= consecutiveFailures;
+            } else if (failures.get() != 0) {
+                failures.set(0); // avoids a write, shared between callers, on every successful call
+            }
+
+            if (errorRateThreshold > 0d) {
+                synchronized (this) {
+                    long now = clock.getAsLong();
+                    if (now - windowStart >= window) {
+                        windowStart = now;
+                        windowCalls = 0;
+                        windowErrors = 0;
+                    }
+                    windowCalls++;
+                    if (failed)
+                        windowErrors++;
+                    if (windowCalls >= minimumCalls && windowErrors >= errorRateThreshold * windowCalls)
+                        eject = true;
+                }
+            }
+            return eject;
+        }
+
+        synchronized void resetFailures() {
+            failures.set(0);
+            windowStart = 0;
+            windowCalls = 0;
+            windowErrors = 0;
+        }
+
+        // the latency decays while a node is not used, so that a slow node is tried again eventually.
+        double cost() {
+            double decay = Math.exp(-(System.nanoTime() - recordedAt) / EWMA_DECAY_NANOS);
+            return ewma * decay * (outstanding.get() + 1);
+        }
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+/**
+ * Decides how many calls a ConcurrencyLimiter lets through at once.  Adaptive implementations adjust the
+ * limit from the round trip time of each completed call.
+ */
+public interface ConcurrencyLimit {
+
+    int getLimit();
+
+    /**
+     * @param rtt round trip time of a call in nanoseconds
+     * @param inflight number of calls in progress when the call started, including itself
+     * @param dropped true if the call failed in a way that indicates overload, e.g. a timeout
+     */
+    void onSample(long rtt, int inflight, boolean dropped);
+
+    default String getAlgorithm() {
+        return getClass().getSimpleName();
+    }
+
+    static ConcurrencyLimit fixed(int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("limit must be positive");
+        return new ConcurrencyLimit() {
+            @Override
+            public int getLimit() {
+                return limit;
+            }
+
+            @Override
+            public void onSample(long rtt, int inflight, boolean dropped) {
+                // fixed
+            }
+
+            @Override
+            public String getAlgorithm() {
+                return "Fixed";
+            }
+
+            @Override
+            public String toString() {
+                return "fixed " + limit;
+            }
+        };
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of calls in progress to a downstream, a bulkhead whose size is set by a ConcurrencyLimit.
+ * tryAcquire returns a Permit, or null right away when the limit is reached; acquire waits up to a timeout.
+ * The caller completes the permit with success, dropped or ignore, and the round trip time is fed back to
+ * the limit.
+ *
+ * Partitions reserve a share of the limit for a kind of call.  A call in a partition below its share is
+ * admitted while the limit allows; any other call only while capacity remains beyond the unused shares of
+ * the partitions, so a flood of one kind of call cannot starve the others.  The number of calls in progress
+ * never exceeds the limit.
+ *
+ * Limiters created by limiter(name, limit) are registered by name; listeners added with addListener are told
+ * about each one, which is how they are exposed through JMX.
+ */
+public class ConcurrencyLimiter {
+    private static Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private static List<Consumer<ConcurrencyLimiter>> listeners = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final ConcurrencyLimit limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private LongSupplier clock = System::nanoTime;
+    private Predicate<Throwable> overload = th -> th instanceof TimeoutException
+            || th instanceof SocketTimeoutException
+            || th instanceof RejectedExecutionException;
+
+    public ConcurrencyLimiter(String name, ConcurrencyLimit limit) {
+        this.name = name;
+        this.limit = limit;
+    }
+
+    public static ConcurrencyLimiter limiter(String name, Supplier<ConcurrencyLimit> limit) {
+        ConcurrencyLimiter limiter = limiters.get(name);
+        if (limiter != null)
+            return limiter;
+        boolean[] created = new boolean[1];
+        limiter = limiters.computeIfAbsent(name, n -> {
+            created[0] = true;
+            return new ConcurrencyLimiter(name, limit.get());
+        });
+        if (created[0]) {
+            for (Consumer<ConcurrencyLimiter> listener : listeners)
+                listener.accept(limiter);
+        }
+        return limiter;
+    }
+
+    public static Collection<ConcurrencyLimiter> getLimiters() {
+        return Collections.unmodifiableCollection(limiters.values());
+    }
+
+    /**
+     * Calls listener with every existing and future limiter created by limiter(name, limit).
+     */
+    public static void addListener(Consumer<ConcurrencyLimiter> listener) {
+        listeners.add(listener);
+        limiters.values().forEach(listener);
+    }
+
+    public static void removeListener(Consumer<ConcurrencyLimiter> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reserves share, between 0 and 1, of the limit for calls made with the partition's name.  The shares of
+     * all partitions may add up to at most 1.
+     */
+    public synchronized ConcurrencyLimiter partition(String partitionName, double share) {
+        if (share <= 0d || share > 1d)
+            throw new IllegalArgumentException("share must be greater than 0 and at most 1");
+        double total = share;
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            if (!entry.getKey().equals(partitionName))
+                total += entry.getValue().share;
+        }
+        if (total > 1d + 1e-9)
+            throw new IllegalArgumentException("shares of the partitions of " + name + " add up to " + total + ", more than 1");
+        partitions.put(partitionName, new Partition(share));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ConcurrencyLimit getConcurrencyLimit() {
+        return limit;
+    }
+
+    public int getLimit() {
+        return limit.getLimit();
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public Set<String> getPartitions() {
+        return Collections.unmodifiableSet(partitions.keySet());
+    }
+
+    public int getInflight(String partitionName) {
+        return getPartition(partitionName).inflight.get();
+    }
+
+    /**
+     * @return number of calls reserved for the partition at the current limit.
+     */
+    public int getLimit(String partitionName) {
+        return getPartition(partitionName).limit(limit.getLimit());
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public LongSupplier getClock() {
+        return clock;
+    }
+
+    /**
+     * Source of nanosecond timestamps for round trip times, System.nanoTime by default.
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public Predicate<Throwable> getOverload() {
+        return overload;
+    }
+
+    /**
+     * Decides which exceptions thrown from call mean the downstream is overloaded; those complete the permit
+     * as dropped and others are ignored.  By default, timeouts and rejections.
+     */
+    public void setOverload(Predicate<Throwable> overload) {
+        this.overload = overload;
+    }
+
+    private Partition getPartition(String partitionName) {
+        Partition partition = partitions.get(partitionName);
+        if (partition == null)
+            throw new IllegalArgumentException("No partition named " + partitionName);
+        return partition;
+    }
+
+    /**
+     * @return a permit, or null if the limit is reached.
+     */
+    public Permit tryAcquire() {
+        return tryAcquire(null);
+    }
+
+    /**
+     * @param partitionName name of a partition or null.
+     * @return a permit, or null if the limit is reached and the partition is using its share.
+     */
+    public Permit tryAcquire(String partitionName) {
+        Permit permit = admit(partitionName == null ? null : getPartition(partitionName));
+        if (permit == null)
+            rejected.increment();
+        return permit;
+    }
+
+    public Permit acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(null, timeout, unit);
+    }
+
+    /**
+     * Waits up to timeout for a call to complete when the limit is reached.
+     * @return a permit, or null if none became available in time.
+     */
+    public Permit acquire(String partitionName, long timeout, TimeUnit unit) throws InterruptedException {
+        Partition partition = (partitionName == null) ? null : getPartition(partitionName);
+        Permit permit = admit(partition);
+        if (permit != null)
+            return permit;
+
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while ((permit = admit(partition)) == null && remaining > 0)
+                remaining = released.awaitNanos(remaining);
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+        if (permit == null)
+            rejected.increment();
+        return permit;
+    }
+
+    /**
+     * Runs callable if the limit allows, otherwise throws RejectedExecutionException without waiting.
+     */
+    public <V> V call(Callable<V> callable) throws Exception {
+        return call(null, callable);
+    }
+
+    public <V> V call(String partitionName, Callable<V> callable) throws Exception {
+        Permit permit = tryAcquire(partitionName);
+        if (permit == null)
+            throw new RejectedExecutionException("Concurrency limit of " + name + " reached: " + limit.getLimit());
+        try {
+            V value = callable.call();
+            permit.success();
+            return value;
+        } catch (Exception ex) {
+            if (overload.test(ex))
+                permit.dropped();
+            else
+                permit.ignore();
+            throw ex;
+        } catch (Error error) {
+            permit.ignore();
+            throw error;
+        }
+    }
+
+    private Permit admit(Partition partition) {
+        while (true) {
+            int current = inflight.get();
+            int max = limit.getLimit();
+            if (current >= max || current + reserved(partition, max) >= max)
+                return null;
+            if (inflight.compareAndSet(current, current + 1)) {
+                if (partition != null)
+                    partition.inflight.incrementAndGet();
+                accepted.increment();
+                return new Permit(partition, current + 1, clock.getAsLong());
+            }
+        }
+    }
+
+    /*
+     * @return the capacity held back from a call in partition, or outside any partition if null: the unused
+     * shares of the partitions, unless the call's own partition is below its share.  The partitions are read
+     * without locking, so concurrent calls may briefly take a little of the reserved capacity.
+     */
+    private int reserved(Partition partition, int max) {
+        if (partitions.isEmpty() || (partition != null && partition.inflight.get() < partition.limit(max)))
+            return 0;
+        int reserved = 0;
+        for (Partition p : partitions.values())
+            reserved += Math.max(0, p.limit(max) - p.inflight.get());
+        return reserved;
+    }
+
+    /*
+     * Wakes every waiter rather than one: the one woken may be in a partition that still cannot be admitted
+     * while another could, and the sample fed to the limit just before may have raised it by more than one.
+     */
+    private void release(Permit permit) {
+        if (permit.partition != null)
+            permit.partition.inflight.decrementAndGet();
+        inflight.decrementAndGet();
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + inflight.get() + "/" + limit;
+    }
+
+    private static class Partition {
+        final double share;
+        final AtomicInteger inflight = new AtomicInteger();
+
+        Partition(double share) {
+            this.share = share;
+        }
+
+        int limit(int total) {
+            return Math.max(1, (int) Math.ceil(total * share));
+        }
+    }
+
+    /**
+     * A call admitted by the limiter.  Exactly one of success, dropped and ignore must be called when the call
+     * completes; later calls have no effect.
+     */
+    public class Permit {
+        private final Partition partition;
+        private final int inflightAtStart;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Permit(Partition partition, int inflightAtStart, long start) {
+            this.partition = partition;
+            this.inflightAtStart = inflightAtStart;
+            this.start = start;
+        }
+
+        /**
+         * The call completed; its round trip time is fed to the limit.
+         */
+        public void success() {
+            complete(true, false);
+        }
+
+        /**
+         * The call failed because the downstream is overloaded, e.g. it timed out.
+         */
+        public void dropped() {
+            complete(true, true);
+        }
+
+        /**
+         * The call failed for a reason unrelated to load; its round trip time is not used.
+         */
+        public void ignore() {
+            complete(false, false);
+        }
+
+        private void complete(boolean sample, boolean drop) {
+            if (!completed.compareAndSet(false, true))
+                return;
+            if (drop)
+                dropped.increment();
+            if (sample)
+                limit.onSample(clock.getAsLong() - start, inflightAtStart, drop);
+            release(this);
+        }
+    }
+}
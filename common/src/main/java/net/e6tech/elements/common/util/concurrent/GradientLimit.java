@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+/**
+ * Gradient limit.  Compares each round trip time with the shortest one seen: the gradient
+ * tolerance * rttNoLoad / rtt, kept between 0.5 and 1, scales the limit down as latency rises, and a queue
+ * allowance of sqrt(limit) lets the limit grow while latency stays within tolerance.  Unlike VegasLimit, which
+ * moves in steps, the limit moves in proportion to how far latency is off, so it settles quickly after a
+ * change in the downstream.  rttNoLoad is the minimum over the previous probeMultiplier * limit calls.
+ */
+public class GradientLimit implements ConcurrencyLimit {
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private double tolerance = 1.5;
+    private double smoothing = 0.2;
+    private int probeMultiplier = 30;
+    private double estimate;
+    private volatile int limit;
+    private long rttNoLoad;
+    private long probeMin = Long.MAX_VALUE;
+    private long samples;
+
+    public GradientLimit() {
+        this(20);
+    }
+
+    public GradientLimit(int initialLimit) {
+        estimate = initialLimit;
+        limit = initialLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return how many times rttNoLoad the round trip time may get before the limit shrinks.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        if (tolerance < 1d)
+            throw new IllegalArgumentException("tolerance must be at least 1");
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return weight, between 0 and 1, of a new limit against the current one.
+     */
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    public int getProbeMultiplier() {
+        return probeMultiplier;
+    }
+
+    public void setProbeMultiplier(int probeMultiplier) {
+        this.probeMultiplier = probeMultiplier;
+    }
+
+    /**
+     * @return round trip time in nanoseconds taken to be without queueing.
+     */
+    public synchronized long getRttNoLoad() {
+        return rttNoLoad;
+    }
+
+    @Override
+    public synchronized void onSample(long rtt, int inflight, boolean dropped) {
+        if (rtt <= 0)
+            return;
+        probeMin = Math.min(probeMin, rtt);
+        if (rttNoLoad == 0 || rtt < rttNoLoad)
+            rttNoLoad = rtt;
+        if (++samples >= probeMultiplier * estimate) {
+            rttNoLoad = probeMin;
+            probeMin = Long.MAX_VALUE;
+            samples = 0;
+        }
+
+        if (!dropped && inflight * 2 < estimate)
+            return; // not enough load to tell
+
+        double gradient = dropped ? 0.5 : Math.max(0.5, Math.min(1d, tolerance * rttNoLoad / rtt));
+        double next = estimate * gradient + Math.sqrt(estimate);
+        next = estimate * (1d - smoothing) + next * smoothing;
+        estimate = Math.max(minLimit, Math.min(maxLimit, next));
+        limit = (int) estimate;
+    }
+
+    @Override
+    public String toString() {
+        return "Gradient " + limit;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.e6tech.elements.common.util.concurrent;
+
+import net.e6tech.elements.common.notification.Notification;
+
+/**
+ * Published by a Balancer when a service is ejected or put back into rotation.
+ */
+public class HealthNotification implements Notification {
+    private static final long serialVersionUID = -1716258349251745382L;
+
+    public enum State {
+        EJECTED,
+        REINSTATED
+    }
+
+    private transient Object source;
+    private transient Object service;
+    private State state;
+    private String reason;
+
+    public HealthNotification(Object source, Object service, State state, String reason) {
+        this.source = source;
+        this.service = service;
+        this.state = state;
+        this.reason = reason;
+    }
+
+    @Override
+    public Object source() {
+        return source;
+    }
+
+    public Object getService() {
+        return service;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "HealthNotification{" + state + " " + service + ": " + reason + "}";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import net.e6tech.elements.common.resources.Provision;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A RateLimiter per key, e.g. per client or per endpoint, kept in a bounded map.  By default idle limiters are
+ * dropped after their refill time without use.  A limiter used only through tryAcquire is full again by then,
+ * the same as a new one, so dropping it does not change behavior.  acquire with a timeout, however, books
+ * permits ahead of now, up to the timeout, and a limiter dropped while holding them gives its key a fresh
+ * burst too early.  When waiting, pass an idleTimeout of at least the refill time plus the longest timeout
+ * given to acquire.  When the map is full the least recently used limiter is dropped, which can also give
+ * its key a fresh burst.
+ */
+public class KeyedRateLimiter<K> {
+    private final LoadingCache<K, RateLimiter> limiters;
+
+    public KeyedRateLimiter(double permitsPerSecond, int burst, long maximumSize) {
+        this(permitsPerSecond, burst, maximumSize, RateLimiter.Clock.SYSTEM);
+    }
+
+    public KeyedRateLimiter(double permitsPerSecond, int burst, long maximumSize, RateLimiter.Clock clock) {
+        this(key -> new RateLimiter(permitsPerSecond, burst, clock), maximumSize,
+                new RateLimiter(permitsPerSecond, burst, clock).getRefillTime(), TimeUnit.NANOSECONDS, clock);
+    }
+
+    /**
+     * @param factory creates the limiter for a key
+     * @param idleTimeout how long an unused limiter is kept: its refill time, plus the longest timeout given to
+     *                    acquire if any
+     */
+    public KeyedRateLimiter(Function<K, RateLimiter> factory, long maximumSize, long idleTimeout, TimeUnit unit,
+                            RateLimiter.Clock clock) {
+        limiters = CacheBuilder.newBuilder()
+                .concurrencyLevel(Provision.cacheBuilderConcurrencyLevel)
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleTimeout, unit)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return clock.nanoTime();
+                    }
+                })
+                .build(new CacheLoader<K, RateLimiter>() {
+                    @Override
+                    public RateLimiter load(K key) {
+                        return factory.apply(key);
+                    }
+                });
+    }
+
+    public RateLimiter get(K key) {
+        return limiters.getUnchecked(key);
+    }
+
+    public boolean tryAcquire(K key) {
+        return get(key).tryAcquire();
+    }
+
+    public boolean tryAcquire(K key, int permits) {
+        return get(key).tryAcquire(permits);
+    }
+
+    public boolean acquire(K key, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        return get(key).acquire(permits, timeout, unit);
+    }
+
+    /**
+     * @return approximate number of limiters held.
+     */
+    public long size() {
+        limiters.cleanUp();
+        return limiters.size();
+    }
+
+    public void remove(K key) {
+        limiters.invalidate(key);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with power-of-two buckets, each a LongAdder, so that recording is a couple of
+ * uncontended increments and can stay on in production.  Percentiles are approximate: they are interpolated
+ * within the bucket that contains them, so the error is bounded by the bucket's width.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds.  Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal(TimeUnit unit) {
+        return unit.convert(total.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public double getMean(TimeUnit unit) {
+        long n = count.sum();
+        return (n == 0) ? 0d : (double) total.sum() / n / unit.toNanos(1);
+    }
+
+    public double getMax(TimeUnit unit) {
+        return (double) max.get() / unit.toNanos(1);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public double getPercentile(double percentile, TimeUnit unit) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (n == 0)
+            return 0d;
+        double rank = Math.max(1d, Math.ceil(n * Math.min(100d, Math.max(0d, percentile)) / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0 && seen + counts[i] >= rank) {
+                // bucket i holds values in [2^(i-1), 2^i - 1]
+                double low = (i == 0) ? 0d : (double) (1L << (i - 1));
+                double high = (i == 0) ? 0d : (i >= 63 ? (double) Long.MAX_VALUE : (double) ((1L << i) - 1));
+                double value = low + (high - low) * (rank - seen) / counts[i];
+                return Math.min(value, max.get()) / unit.toNanos(1);
+            }
+            seen += counts[i];
+        }
+        return getMax(unit);
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets)
+            bucket.reset();
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limiter implemented with the generic cell rate algorithm.  The only state is the
+ * theoretical arrival time of the next permit, advanced by a compare and set, so acquiring never locks and
+ * never blocks unless asked to wait.  Each permit pushes the arrival time forward by 1 / rate seconds; a
+ * request is allowed while the arrival time is no more than burst permits ahead of now, so up to burst
+ * permits are available after a quiet period and the long run rate never exceeds rate.
+ *
+ * Time comes from a Clock so that tests can use a virtual one.
+ */
+public class RateLimiter {
+
+    /**
+     * Source of time in nanoseconds.  sleep is used by acquire to wait for permits.
+     */
+    @FunctionalInterface
+    public interface Clock {
+        Clock SYSTEM = System::nanoTime;
+
+        long nanoTime();
+
+        default void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    private final Clock clock;
+    private final AtomicLong arrival;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long interval;
+    private volatile int burst;
+
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, 1);
+    }
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, Clock.SYSTEM);
+    }
+
+    public RateLimiter(double permitsPerSecond, int burst, Clock clock) {
+        this.clock = clock;
+        arrival = new AtomicLong(clock.nanoTime());
+        setRate(permitsPerSecond);
+        setBurst(burst);
+    }
+
+    public double getRate() {
+        return TimeUnit.SECONDS.toNanos(1) / (double) interval;
+    }
+
+    public void setRate(double permitsPerSecond) {
+        if (permitsPerSecond <= 0d)
+            throw new IllegalArgumentException("rate must be positive");
+        interval = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @param burst number of permits that can be acquired at once after a quiet period.
+     */
+    public void setBurst(int burst) {
+        if (burst <= 0)
+            throw new IllegalArgumentException("burst must be positive");
+        this.burst = burst;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of permits that tryAcquire would grant now.
+     */
+    public int getAvailablePermits() {
+        long ahead = Math.max(0L, arrival.get() - clock.nanoTime());
+        return (int) Math.max(0L, burst - (ahead + interval - 1) / interval);
+    }
+
+    /**
+     * @return nanoseconds after which burst permits are available again, i.e. how long the limiter takes to
+     * fill up from empty.
+     */
+    public long getRefillTime() {
+        return interval * burst;
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    public boolean tryAcquire(int permits) {
+        return reserve(permits, 0L) >= 0;
+    }
+
+    /**
+     * Reserves permits if they become available within timeout, without waiting.
+     * @return nanoseconds the caller must wait before using the permits, or -1 if they are not available in
+     * time, in which case nothing is reserved.
+     */
+    public long tryReserve(int permits, long timeout, TimeUnit unit) {
+        return reserve(permits, unit.toNanos(timeout));
+    }
+
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(1, timeout, unit);
+    }
+
+    /**
+     * Waits up to timeout for permits.  Returns false right away if they cannot be available in time.
+     */
+    public boolean acquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(permits, unit.toNanos(timeout));
+        if (wait < 0)
+            return false;
+        if (wait > 0)
+            clock.sleep(wait);
+        return true;
+    }
+
+    private long reserve(int permits, long maxWait) {
+        int b = burst;
+        long t = interval;
+        if (permits <= 0 || permits > b)
+            throw new IllegalArgumentException("permits must be between 1 and burst " + b + ": " + permits);
+        long now = clock.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now) + t * permits;
+            long wait = next - now - t * b;
+            if (wait > maxWait) {
+                rejected.increment();
+                return -1L;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                acquired.add(permits);
+                return Math.max(0L, wait);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter " + getRate() + "/s burst " + burst;
+    }
+}
@@ -16,58 +16,103 @@
 
 package net.e6tech.elements.common.util.concurrent;
 
+import net.e6tech.elements.common.logging.Logger;
 import net.e6tech.elements.common.resources.BindClass;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
+ * Named executors.  Every task is timed: how long it waited in the queue and how long it ran.  Submitted,
+ * completed and rejected tasks are counted, and for ThreadPoolExecutors the queue length, busy threads and
+ * saturation are available.  Pools created by the static methods are registered by name; listeners added
+ * with addListener are told about each one, which is how they are exposed through JMX.
  * Created by futeh.
  */
 @BindClass(ExecutorService.class)
-public class ThreadPool implements java.util.concurrent.ThreadFactory, ExecutorService  {
+public class ThreadPool extends AbstractExecutorService implements java.util.concurrent.ThreadFactory {
 
-    private static Map<String, ThreadPool> cachedThreadPools = new HashMap<>();
-    private static Map<String, ThreadPool> rateLimitedThreadPools = new HashMap<>();
-    private static Map<String, ThreadPool> fixedThreadPools = new HashMap<>();
+    public static final String CACHED = "cached";
+    public static final String RATE_LIMITED = "rateLimited";
+    public static final String FIXED = "fixed";
+
+    private static Map<String, ThreadPool> cachedThreadPools = new ConcurrentHashMap<>();
+    private static Map<String, ThreadPool> rateLimitedThreadPools = new ConcurrentHashMap<>();
+    private static Map<String, ThreadPool> fixedThreadPools = new ConcurrentHashMap<>();
+    private static List<Consumer<ThreadPool>> listeners = new CopyOnWriteArrayList<>();
 
     private ThreadGroup threadGroup;
     private String name;
+    private String kind = "custom";
     private boolean daemon = true;
     private ExecutorService executorService;
+    private volatile AdaptivePoolSizer sizer;
+    private volatile RateLimiter rateLimiter;
+    private long maxRateDelay;
+    private final Set<Task> delayed = ConcurrentHashMap.newKeySet(); // waiting for a rate permit
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram executionTime = new LatencyHistogram();
 
     protected ThreadPool(ThreadGroup threadGroup, String name, Function<ThreadFactory, ExecutorService> newPool) {
         this.threadGroup = threadGroup;
         this.name = name;
         this.executorService = newPool.apply(this);
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) executorService;
+            executor.setRejectedExecutionHandler(new CountingHandler(executor.getRejectedExecutionHandler()));
+        }
     }
 
     protected ThreadPool(String name, Function<ThreadFactory, ExecutorService> newPool) {
         this(Thread.currentThread().getThreadGroup(), name, newPool);
     }
 
+    // lookups of existing pools only read the map.
+    private static ThreadPool lookup(Map<String, ThreadPool> pools, String name, String kind, Supplier<ThreadPool> newPool) {
+        ThreadPool pool = pools.get(name);
+        if (pool != null)
+            return pool;
+        boolean[] created = new boolean[1];
+        pool = pools.computeIfAbsent(name, n -> {
+            created[0] = true;
+            ThreadPool p = newPool.get();
+            p.kind = kind;
+            return p;
+        });
+        if (created[0]) {
+            for (Consumer<ThreadPool> listener : listeners)
+                listener.accept(pool);
+        }
+        return pool;
+    }
+
     /**
      * Return a thread pool that supports unlimited number of threads.  It will create threads as needed.
      * The default keep alive time for a thread is 60 seconds.
      * @param name name of the pool
      * @return ThreadPool
      */
-    public static synchronized ThreadPool cachedThreadPool(String name) {
-        return cachedThreadPools.computeIfAbsent(name, poolName ->
+    public static ThreadPool cachedThreadPool(String name) {
+        return lookup(cachedThreadPools, name, CACHED, () ->
                 new ThreadPool(name, Executors::newCachedThreadPool));
     }
 
     /*
-     *
+     * Bounds the number of threads and queued tasks rather than the rate; combine with rateLimit to limit the
+     * rate at which tasks start.
      * Using this type of threadPool may result in RejectedExecutionException when submitting a task.
      */
-    @SuppressWarnings("squid:S1602")
-    public static synchronized ThreadPool rateLimitedThreadPool(String name, int threadCoreSize, int threadMaxSize, long threadKeepAliveSec, int threadQueueSize) {
-        return rateLimitedThreadPools.computeIfAbsent(name, poolName -> {
-            return new ThreadPool(name, p ->
-                new ThreadPoolExecutor(threadCoreSize, threadMaxSize, threadKeepAliveSec, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threadQueueSize), p));
-        });
+    public static ThreadPool rateLimitedThreadPool(String name, int threadCoreSize, int threadMaxSize, long threadKeepAliveSec, int threadQueueSize) {
+        return lookup(rateLimitedThreadPools, name, RATE_LIMITED, () ->
+                new ThreadPool(name, p ->
+                    new ThreadPoolExecutor(threadCoreSize, threadMaxSize, threadKeepAliveSec, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threadQueueSize), p)));
     }
 
     /**
@@ -77,11 +122,44 @@ public class ThreadPool implements java.util.concurrent.ThreadFactory, ExecutorS
      * @param nThreads number of threads
      * @return ThreadPool
      */
-    public static synchronized ThreadPool fixedThreadPool(String name, int nThreads) {
-        return fixedThreadPools.computeIfAbsent(name, poolName ->
+    public static ThreadPool fixedThreadPool(String name, int nThreads) {
+        return lookup(fixedThreadPools, name, FIXED, () ->
                 new ThreadPool(name, p -> Executors.newFixedThreadPool(nThreads, p)));
     }
 
+    /**
+     * @return every pool created by cachedThreadPool, rateLimitedThreadPool and fixedThreadPool.
+     */
+    public static Collection<ThreadPool> getThreadPools() {
+        List<ThreadPool> list = new ArrayList<>(cachedThreadPools.values());
+        list.addAll(rateLimitedThreadPools.values());
+        list.addAll(fixedThreadPools.values());
+        return list;
+    }
+
+    /**
+     * Calls listener with every existing and future pool created by the static methods.
+     */
+    public static void addListener(Consumer<ThreadPool> listener) {
+        listeners.add(listener);
+        getThreadPools().forEach(listener);
+    }
+
+    public static void removeListener(Consumer<ThreadPool> listener) {
+        listeners.remove(listener);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return cached, rateLimited, fixed, or custom for pools not created by the static methods.
+     */
+    public String getKind() {
+        return kind;
+    }
+
     public ThreadPool daemon() {
         return daemon(true);
     }
@@ -100,11 +178,44 @@ public class ThreadPool implements java.util.concurrent.ThreadFactory, ExecutorS
         if (handler == null)
             throw new NullPointerException();
         if (executorService instanceof ThreadPoolExecutor) {
-            ((ThreadPoolExecutor) executorService).setRejectedExecutionHandler(handler);
+            ((ThreadPoolExecutor) executorService).setRejectedExecutionHandler(new CountingHandler(handler));
         }
         return this;
     }
 
+    /**
+     * Resizes the pool between minThreads and maxThreads from its measured load.  See AdaptivePoolSizer.
+     */
+    public synchronized ThreadPool adaptive(int minThreads, int maxThreads) {
+        if (sizer != null)
+            sizer.stop();
+        sizer = new AdaptivePoolSizer(this, minThreads, maxThreads);
+        sizer.start();
+        return this;
+    }
+
+    public AdaptivePoolSizer getSizer() {
+        return sizer;
+    }
+
+    /**
+     * Starts tasks no faster than rateLimiter allows, independently of the number of threads.  A task that
+     * has to wait for a permit is handed to the pool once the permit is due, so no thread is held while it
+     * waits.  A task that would wait longer than maxDelay is rejected.
+     *
+     * If the pool rejects a task when its permit is due, or is shut down while the task waits, the Future
+     * returned by submit for the task is cancelled.  shutdownNow returns the waiting tasks instead.
+     */
+    public ThreadPool rateLimit(RateLimiter rateLimiter, long maxDelay, TimeUnit unit) {
+        this.maxRateDelay = unit.toNanos(maxDelay);
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
     public <T extends ExecutorService> T unwrap() {
         return (T) executorService;
     }
@@ -117,14 +228,124 @@ public class ThreadPool implements java.util.concurrent.ThreadFactory, ExecutorS
         return thread;
     }
 
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return time tasks spent in the queue before a thread picked them up.
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    public LatencyHistogram getExecutionTime() {
+        return executionTime;
+    }
+
+    private ThreadPoolExecutor threadPoolExecutor() {
+        return (executorService instanceof ThreadPoolExecutor) ? (ThreadPoolExecutor) executorService : null;
+    }
+
+    /**
+     * @return number of tasks waiting for a thread, or 0 if the executor is not a ThreadPoolExecutor.
+     */
+    public int getQueueLength() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        return (executor == null) ? 0 : executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        return (executor == null) ? 0 : executor.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        return (executor == null) ? 0 : executor.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        return (executor == null) ? 0 : executor.getLargestPoolSize();
+    }
+
+    public int getMaximumPoolSize() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        return (executor == null) ? 0 : executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return fraction of the capacity in use: busy threads out of the maximum, or with a bounded queue, busy
+     * threads and queued tasks out of the maximum threads and queue slots.  1 means new tasks are queued
+     * without bound or rejected.
+     */
+    public double getSaturation() {
+        ThreadPoolExecutor executor = threadPoolExecutor();
+        if (executor == null)
+            return 0d;
+        double active = executor.getActiveCount();
+        double max = executor.getMaximumPoolSize();
+        BlockingQueue<Runnable> queue = executor.getQueue();
+        int queued = queue.size();
+        long capacity = (long) queued + queue.remainingCapacity();
+        if (capacity >= Integer.MAX_VALUE)
+            return Math.min(1d, active / max);
+        return Math.min(1d, (active + queued) / (max + capacity));
+    }
+
+    /**
+     * Tasks still waiting for a rate permit are rejected.
+     */
     @Override
     public void shutdown() {
+        if (sizer != null)
+            sizer.stop();
         executorService.shutdown();
+        for (Task task : drainDelayed()) {
+            rejected.increment();
+            abandon(task);
+        }
     }
 
+    /**
+     * @return the tasks that never ran, including those waiting for a rate permit.  Tasks submitted with
+     * submit are returned as their Futures.
+     */
     @Override
     public List<Runnable> shutdownNow() {
-        return Collections.emptyList();
+        if (sizer != null)
+            sizer.stop();
+        List<Runnable> tasks = executorService.shutdownNow();
+        List<Runnable> list = new ArrayList<>(tasks.size());
+        for (Runnable task : tasks)
+            list.add((task instanceof Task) ? ((Task) task).command : task);
+        for (Task task : drainDelayed())
+            list.add(task.command);
+        return list;
+    }
+
+    private List<Task> drainDelayed() {
+        List<Task> list = new ArrayList<>();
+        for (Task task : delayed) {
+            if (delayed.remove(task))
+                list.add(task);
+        }
+        return list;
+    }
+
+    // no one runs task, so a Future for it is cancelled rather than left for its caller to wait on forever.
+    private void abandon(Task task) {
+        if (task.command instanceof Future)
+            ((Future<?>) task.command).cancel(false);
     }
 
     @Override
@@ -143,42 +364,96 @@ public class ThreadPool implements java.util.concurrent.ThreadFactory, ExecutorS
     }
 
     @Override
-    public <T> Future<T> submit(Callable<T> task) {
-        return executorService.submit(task);
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        submitted.increment();
+        Task task = new Task(command);
+        RateLimiter limiter = rateLimiter;
+        long delay = (limiter == null) ? 0L : limiter.tryReserve(1, maxRateDelay, TimeUnit.NANOSECONDS);
+        if (delay < 0) {
+            rejected.increment();
+            throw new RejectedExecutionException("Rate limit of " + name + " exceeded");
+        } else if (delay == 0) {
+            dispatch(task);
+        } else {
+            delayed.add(task);
+            Scheduler.INSTANCE.schedule(() -> {
+                if (!delayed.remove(task))
+                    return; // taken by shutdown
+                try {
+                    dispatch(task);
+                } catch (RejectedExecutionException ex) {
+                    // the executor's handler has already seen the task
+                    Logger.suppress(ex);
+                    abandon(task);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+            // shutdown may have drained the waiting tasks before this one was added
+            if (isShutdown() && delayed.remove(task)) {
+                rejected.increment();
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+        }
     }
 
-    @Override
-    public <T> Future<T> submit(Runnable task, T result) {
-        return executorService.submit(task, result);
+    private void dispatch(Task task) {
+        try {
+            executorService.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // ThreadPoolExecutors count rejections in their handler
+            if (threadPoolExecutor() == null)
+                rejected.increment();
+            throw ex;
+        }
     }
 
-    @Override
-    public Future<?> submit(Runnable task) {
-        return executorService.submit(task);
+    public String toString() {
+        return name + " queue=" + getQueueLength() + " active=" + getActiveCount() + " submitted=" + getSubmittedCount()
+                + " completed=" + getCompletedCount() + " rejected=" + getRejectedCount()
+                + " waitMs=" + waitTime.getMean(TimeUnit.MILLISECONDS) + " executionMs=" + executionTime.getMean(TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        return executorService.invokeAll(tasks);
-    }
+    private class Task implements Runnable {
+        private final Runnable command;
+        private final long queuedAt = System.nanoTime();
 
-    @Override
-    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-        return executorService.invokeAll(tasks, timeout, unit);
-    }
+        Task(Runnable command) {
+            this.command = command;
+        }
 
-    @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        return executorService.invokeAny(tasks);
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waitTime.record(start - queuedAt);
+            try {
+                command.run();
+            } finally {
+                executionTime.record(System.nanoTime() - start);
+                completed.increment();
+            }
+        }
     }
 
-    @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return executorService.invokeAny(tasks, timeout, unit);
+    private class CountingHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler handler;
+
+        CountingHandler(RejectedExecutionHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            rejected.increment();
+            handler.rejectedExecution(runnable, executor);
+        }
     }
 
-    @Override
-    public void execute(Runnable command) {
-        executorService.execute(command);
+    private static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ThreadPool-rateLimit");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 }
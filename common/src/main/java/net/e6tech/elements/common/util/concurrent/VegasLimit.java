@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+/**
+ * TCP Vegas style limit.  The shortest round trip time seen is taken as the time without queueing, from which
+ * the number of calls queued at the downstream is estimated as limit * (1 - rttNoLoad / rtt).  The limit grows
+ * while fewer than alpha calls are queued and shrinks when more than beta are, where alpha and beta grow with
+ * log10 of the limit.  rttNoLoad is the minimum over the previous probeMultiplier * limit calls, so that the
+ * limit follows a downstream that has become slower for good.  That relies on lulls in the load: a downstream
+ * kept saturated all the time shows no round trip time without queueing.
+ */
+public class VegasLimit implements ConcurrencyLimit {
+    private int maxLimit = 1000;
+    private double smoothing = 1.0;
+    private int probeMultiplier = 30;
+    private double estimate;
+    private volatile int limit;
+    private long rttNoLoad;
+    private long probeMin = Long.MAX_VALUE;
+    private long samples;
+
+    public VegasLimit() {
+        this(20);
+    }
+
+    public VegasLimit(int initialLimit) {
+        estimate = initialLimit;
+        limit = initialLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return weight, between 0 and 1, of a new limit against the current one.
+     */
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    public int getProbeMultiplier() {
+        return probeMultiplier;
+    }
+
+    public void setProbeMultiplier(int probeMultiplier) {
+        this.probeMultiplier = probeMultiplier;
+    }
+
+    /**
+     * @return round trip time in nanoseconds taken to be without queueing.
+     */
+    public synchronized long getRttNoLoad() {
+        return rttNoLoad;
+    }
+
+    @Override
+    public synchronized void onSample(long rtt, int inflight, boolean dropped) {
+        if (rtt <= 0)
+            return;
+        probeMin = Math.min(probeMin, rtt);
+        if (rttNoLoad == 0 || rtt < rttNoLoad)
+            rttNoLoad = rtt;
+        if (++samples >= probeMultiplier * estimate) {
+            rttNoLoad = probeMin;
+            probeMin = Long.MAX_VALUE;
+            samples = 0;
+        }
+
+        double log = Math.max(1d, Math.log10(estimate));
+        double next;
+        if (dropped) {
+            next = estimate - log;
+        } else if (inflight * 2 < estimate) {
+            return; // not enough load to tell
+        } else {
+            double queued = Math.ceil(estimate * (1d - (double) rttNoLoad / rtt));
+            if (queued <= log)
+                next = estimate + 6 * log;
+            else if (queued < 3 * log)
+                next = estimate + log;
+            else if (queued > 6 * log)
+                next = estimate - log;
+            else
+                return;
+        }
+        next = Math.max(1d, Math.min(maxLimit, next));
+        estimate = (1d - smoothing) * estimate + smoothing * next;
+        limit = (int) estimate;
+    }
+
+    @Override
+    public String toString() {
+        return "Vegas " + limit;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor;
+
+import net.e6tech.elements.common.resources.Resources;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a single Genesis.async call, through Patterns.ask against direct execution.  The gc profiler
+ * reports the allocation per call as gc.alloc.rate.norm.  Run main to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GenesisBenchmark {
+
+    @Param({"false", "true"})
+    boolean directExecution;
+
+    Genesis genesis;
+
+    @Setup
+    public void setup() {
+        genesis = new Genesis();
+        genesis.setName("GenesisBenchmark");
+        genesis.setMaxCapacity(1);
+        genesis.setDirectExecution(directExecution);
+        genesis.initialize((Resources) null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        genesis.shutdown();
+    }
+
+    @Benchmark
+    public Integer roundTrip() throws Exception {
+        return genesis.async(() -> 1).toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().include(GenesisBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .build()).run();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor.pool;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FairQueueTest {
+
+    private Events.Task task(String name, int lane, Object key) {
+        return new Events.Task(null, name, lane, key);
+    }
+
+    private String drain(FairQueue queue) {
+        StringBuilder builder = new StringBuilder();
+        Events.Task task;
+        while ((task = queue.poll()) != null)
+            builder.append(task.getWork());
+        return builder.toString();
+    }
+
+    @Test
+    public void lanes() {
+        FairQueue queue = new FairQueue(3, key -> 1);
+        queue.add(task("c", 2, null));
+        queue.add(task("b", 1, null));
+        queue.add(task("a", 0, null));
+        queue.add(task("d", 2, null));
+        assertEquals(4, queue.size());
+        assertEquals(2, queue.size(2));
+        assertEquals("abcd", drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void weightedKeys() {
+        Map<Object, Integer> weights = new HashMap<>();
+        weights.put("A", 3);
+        FairQueue queue = new FairQueue(1, key -> weights.getOrDefault(key, 1));
+        for (int i = 0; i < 6; i++)
+            queue.add(task("a", 0, "A"));
+        for (int i = 0; i < 3; i++)
+            queue.add(task("b", 0, "B"));
+        queue.add(task("n", 0, null));
+        // A was first, so goes first; each round A gets three turns to the others' one
+        assertEquals("aaabnaaabb", drain(queue));
+    }
+
+    @Test
+    public void dropOldest() {
+        FairQueue queue = new FairQueue(2, key -> 1);
+        queue.add(task("urgent", 0, "A"));
+        queue.add(task("b1", 1, "B"));
+        queue.add(task("c1", 1, "C"));
+        queue.add(task("c2", 1, "C"));
+        assertEquals("c1", queue.dropOldest(1).getWork()); // the key with the most work in the last lane
+        assertEquals("b1", queue.dropOldest(0).getWork());
+        assertEquals("c2", queue.dropOldest(1).getWork());
+        assertNull(queue.dropOldest(1)); // only more urgent work is left
+        assertEquals(1, queue.size());
+        assertEquals("urgent", queue.dropOldest(0).getWork());
+        assertNull(queue.dropOldest(0));
+        assertEquals(0, queue.size());
+    }
+}
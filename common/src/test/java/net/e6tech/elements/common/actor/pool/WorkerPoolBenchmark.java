@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.actor.pool;
+
+import net.e6tech.elements.common.actor.Genesis;
+import net.e6tech.elements.common.resources.Resources;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tasks per second through Genesis.async for tasks that do almost nothing, with workers taking one queued task
+ * at a time against taking batches.  Each operation is 1000 tasks.  Run main to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WorkerPoolBenchmark {
+    private static final int TASKS = 1000;
+
+    @Param({"1", "8"})
+    int batchSize;
+
+    Genesis genesis;
+
+    @Setup
+    public void setup() {
+        genesis = new Genesis();
+        genesis.setName("WorkerPoolBenchmark");
+        genesis.setMaxCapacity(4);
+        genesis.setBatchSize(batchSize);
+        genesis.initialize((Resources) null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        genesis.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void shortTasks() throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture[TASKS];
+        for (int i = 0; i < TASKS; i++) {
+            final int id = i;
+            futures[i] = genesis.async(() -> id).toCompletableFuture();
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    }
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().include(WorkerPoolBenchmark.class.getSimpleName()).forks(1).build()).run();
+    }
+}
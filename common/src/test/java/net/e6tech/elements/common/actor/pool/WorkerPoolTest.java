@@ -19,6 +19,7 @@ package net.e6tech.elements.common.actor.pool;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.pattern.AskTimeoutException;
 import akka.pattern.Patterns;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -27,6 +28,11 @@ import net.e6tech.elements.common.resources.Resources;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Created by futeh.
@@ -75,4 +81,263 @@ public class WorkerPoolTest {
 
         Thread.sleep(20000L);
     }
+
+    private Genesis genesis(int maxCapacity, int maxQueueSize, WorkerPoolConfig.Overflow overflow) {
+        Genesis genesis = new Genesis();
+        genesis.setName("Genesis");
+        genesis.setMaxCapacity(maxCapacity);
+        genesis.setMaxQueueSize(maxQueueSize);
+        genesis.setOverflow(overflow);
+        genesis.initialize((Resources) null);
+        return genesis;
+    }
+
+    private Runnable await(CountDownLatch latch) {
+        return () -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private Throwable failure(CompletionStage<?> stage) throws Exception {
+        try {
+            stage.toCompletableFuture().get(2, TimeUnit.SECONDS);
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+    }
+
+    @Test
+    public void reject() throws Exception {
+        Genesis genesis = genesis(1, 2, WorkerPoolConfig.Overflow.REJECT);
+        CountDownLatch latch = new CountDownLatch(1);
+        CompletionStage<Void> running = genesis.async(await(latch));
+        Thread.sleep(100L);
+        CompletionStage<Integer> first = genesis.async(() -> 1);
+        CompletionStage<Integer> second = genesis.async(() -> 2);
+        CompletionStage<Integer> third = genesis.async(() -> 3);
+        assertTrue(failure(third) instanceof RejectedExecutionException);
+        assertEquals(2, genesis.getWorkerPoolStatistics().getQueueDepth());
+        latch.countDown();
+        assertNull(failure(running));
+        assertEquals(1, (int) first.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(2, (int) second.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(1, genesis.getWorkerPoolStatistics().getRejectedCount());
+        assertEquals(0, genesis.getWorkerPoolStatistics().getQueueDepth());
+        genesis.shutdown();
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        Genesis genesis = genesis(1, 2, WorkerPoolConfig.Overflow.DROP_OLDEST);
+        CountDownLatch latch = new CountDownLatch(1);
+        genesis.async(await(latch));
+        Thread.sleep(100L);
+        CompletionStage<Integer> first = genesis.async(() -> 1);
+        CompletionStage<Integer> second = genesis.async(() -> 2);
+        CompletionStage<Integer> third = genesis.async(() -> 3);
+        assertTrue(failure(first) instanceof RejectedExecutionException);
+        latch.countDown();
+        assertEquals(2, (int) second.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(3, (int) third.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(1, genesis.getWorkerPoolStatistics().getDroppedCount());
+        genesis.shutdown();
+    }
+
+    @Test
+    public void dropOldestByPriority() throws Exception {
+        Genesis genesis = new Genesis();
+        genesis.setName("Genesis");
+        genesis.setMaxCapacity(1);
+        genesis.setMaxQueueSize(2);
+        genesis.setOverflow(WorkerPoolConfig.Overflow.DROP_OLDEST);
+        genesis.setLanes(2);
+        genesis.initialize((Resources) null);
+        CountDownLatch latch = new CountDownLatch(1);
+        genesis.async(await(latch));
+        Thread.sleep(100L);
+        CompletionStage<Integer> bulk = genesis.async(() -> 1, 1, null);
+        CompletionStage<Integer> urgent = genesis.async(() -> 2, 0, null);
+        CompletionStage<Integer> urgentToo = genesis.async(() -> 3, 0, null);
+        assertTrue(failure(bulk) instanceof RejectedExecutionException); // dropped for a more urgent task
+        // the queue holds only more urgent tasks, so a bulk task is rejected rather than dropping one of them
+        assertTrue(failure(genesis.async(() -> 4, 1, null)) instanceof RejectedExecutionException);
+        latch.countDown();
+        assertEquals(2, (int) urgent.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(3, (int) urgentToo.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(1, genesis.getWorkerPoolStatistics().getDroppedCount());
+        assertEquals(1, genesis.getWorkerPoolStatistics().getRejectedCount());
+        genesis.shutdown();
+    }
+
+    @Test
+    public void block() throws Exception {
+        Genesis genesis = genesis(1, 2, WorkerPoolConfig.Overflow.BLOCK);
+        CountDownLatch latch = new CountDownLatch(1);
+        CompletionStage<Void> running = genesis.async(await(latch), 2000L);
+        CompletionStage<Integer> queued = genesis.async(() -> 1, 2000L);
+
+        long start = System.currentTimeMillis();
+        CompletionStage<Integer> blocked = genesis.async(() -> 2, 100L);
+        assertTrue(System.currentTimeMillis() - start >= 100L); // the caller waited
+        assertTrue(failure(blocked) instanceof RejectedExecutionException);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<CompletionStage<Integer>> waiting = executor.submit(() -> genesis.async(() -> 3, 2000L));
+        Thread.sleep(100L);
+        assertFalse(waiting.isDone());
+        latch.countDown();
+        assertEquals(3, (int) waiting.get(1, TimeUnit.SECONDS).toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertNull(failure(running));
+        assertEquals(1, (int) queued.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        executor.shutdown();
+        genesis.shutdown();
+    }
+
+    @Test
+    public void blockAfterTimeout() throws Exception {
+        for (boolean direct : new boolean[] {true, false}) {
+            Genesis genesis = new Genesis();
+            genesis.setName("Genesis");
+            genesis.setMaxCapacity(1);
+            genesis.setMaxQueueSize(2);
+            genesis.setOverflow(WorkerPoolConfig.Overflow.BLOCK);
+            genesis.setDirectExecution(direct);
+            genesis.initialize((Resources) null);
+
+            CountDownLatch latch = new CountDownLatch(1);
+            CompletionStage<Void> running = genesis.async(await(latch), 2000L);
+            CompletionStage<Integer> queued = genesis.async(() -> 1, 100L, 0, "key");
+            assertTrue(failure(queued) instanceof AskTimeoutException);
+
+            // the caller gave up, but the task is still queued and keeps its room
+            assertTrue(failure(genesis.async(() -> 2, 100L)) instanceof RejectedExecutionException);
+            latch.countDown();
+            assertNull(failure(running));
+            assertEquals(3, (int) genesis.async(() -> 3, 1000L).toCompletableFuture().get(1, TimeUnit.SECONDS));
+            assertEquals(4, (int) genesis.async(() -> 4, 1000L).toCompletableFuture().get(1, TimeUnit.SECONDS));
+            genesis.shutdown();
+        }
+    }
+
+    @Test
+    public void batches() throws Exception {
+        Genesis genesis = genesis(2, 1000, WorkerPoolConfig.Overflow.REJECT);
+        CountDownLatch latch = new CountDownLatch(1);
+        genesis.async(await(latch));
+        genesis.async(await(latch));
+        Thread.sleep(100L);
+        List<CompletionStage<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final int id = i;
+            results.add(genesis.async(() -> {
+                if (id == 50)
+                    throw new AssertionError("task " + id);
+                return id;
+            }));
+        }
+        Thread.sleep(100L);
+        assertEquals(100, genesis.getWorkerPoolStatistics().getQueueDepth());
+        latch.countDown();
+        // an Error fails its own task only, not the rest of its batch
+        for (int i = 0; i < 100; i++) {
+            if (i == 50)
+                assertTrue(failure(results.get(i)) instanceof AssertionError);
+            else
+                assertEquals(i, (int) results.get(i).toCompletableFuture().get(1, TimeUnit.SECONDS));
+        }
+        WorkerPoolStatistics statistics = genesis.getWorkerPoolStatistics();
+        assertTrue(statistics.getBatchCount() <= 100 / 8 + 8, "batches " + statistics.getBatchCount());
+        assertTrue(statistics.getWaitTime().getCount() >= 100);
+        // every task was queued while the workers were held for about 100ms
+        assertTrue(statistics.getWaitTime().getMean(TimeUnit.MILLISECONDS) >= 50d);
+        genesis.shutdown();
+    }
+
+    /*
+     * One worker, held busy while 20 bulk tasks and then an urgent task are queued.  All tasks share the null
+     * key so that only the lanes tell them apart.
+     * @return the position in which the urgent task ran.
+     */
+    private int urgentPosition(int lanes) throws Exception {
+        Genesis genesis = new Genesis();
+        genesis.setName("Genesis");
+        genesis.setMaxCapacity(1);
+        genesis.setLanes(lanes);
+        genesis.initialize((Resources) null);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        List<CompletionStage<Void>> stages = new ArrayList<>();
+        stages.add(genesis.async(await(latch), 10000L, lanes - 1, null));
+        List<String> completed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 20; i++)
+            stages.add(genesis.async(() -> { completed.add("bulk"); }, 10000L, lanes - 1, null));
+        stages.add(genesis.async(() -> { completed.add("urgent"); }, 10000L, 0, null));
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (genesis.getWorkerPoolStatistics().getQueueDepth() < 21 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        assertEquals(21, genesis.getWorkerPoolStatistics().getQueueDepth());
+        latch.countDown();
+        for (CompletionStage<Void> stage : stages)
+            stage.toCompletableFuture().get(10, TimeUnit.SECONDS);
+        genesis.shutdown();
+        return completed.indexOf("urgent");
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void priorityLanes() throws Exception {
+        assertEquals(20, urgentPosition(1));
+        assertEquals(0, urgentPosition(2)); // ahead of the bulk tasks queued before it
+    }
+
+    @Test
+    public void fairAcrossKeys() throws Exception {
+        Genesis genesis = genesis(1, 1000, WorkerPoolConfig.Overflow.REJECT);
+        CountDownLatch latch = new CountDownLatch(1);
+        genesis.async(await(latch));
+        Thread.sleep(100L);
+        List<String> completed = new CopyOnWriteArrayList<>();
+        List<CompletionStage<Void>> stages = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            stages.add(genesis.async(() -> { completed.add("flood"); }, 0, "flood"));
+        for (int i = 0; i < 5; i++)
+            stages.add(genesis.async(() -> { completed.add("other"); }, 0, "other"));
+        latch.countDown();
+        for (CompletionStage<Void> stage : stages)
+            stage.toCompletableFuture().get(2, TimeUnit.SECONDS);
+        // the flood and the other key alternate, so the other key is done within the first ten
+        assertEquals(9, completed.lastIndexOf("other"), completed.toString());
+        genesis.shutdown();
+    }
+
+    @Test
+    public void directExecution() throws Exception {
+        for (boolean direct : new boolean[] {true, false}) {
+            Genesis genesis = new Genesis();
+            genesis.setName("Genesis");
+            genesis.setMaxCapacity(1);
+            genesis.setDirectExecution(direct);
+            genesis.initialize((Resources) null);
+
+            assertEquals(42, (int) genesis.async(() -> 42).toCompletableFuture().get(1, TimeUnit.SECONDS));
+            assertNull(failure(genesis.async(() -> sleep(1L))));
+            assertTrue(failure(genesis.async(() -> { throw new IllegalStateException(); })) instanceof IllegalStateException);
+            assertTrue(failure(genesis.async(() -> sleep(500L), 100L)) instanceof AskTimeoutException);
+            assertTrue(failure(genesis.async(() -> 1, 100L, 0, "key")) instanceof AskTimeoutException); // waits behind the sleep
+            assertEquals(2, (int) genesis.async(() -> 2, 0, "key").toCompletableFuture().get(1, TimeUnit.SECONDS));
+            genesis.shutdown();
+        }
+    }
 }
@@ -24,13 +24,17 @@ import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
 import org.junit.jupiter.api.Test;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import net.e6tech.elements.common.util.SystemException;
 
-import static org.junit.jupiter.api.Assertions.assertNotNull;
-import static org.junit.jupiter.api.Assertions.assertNull;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Tests for ehcache and CacheFacade.
@@ -108,4 +112,542 @@ public class CacheFacadeTest {
         v = cache2.get("a");
         assertTrue(v == null);
     }
+
+    @Test
+    public void singleFlight() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("singleFlight") {}.initPool();
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<String>> futures = runConcurrently(100, () -> facade.get("key", () -> {
+            calls.incrementAndGet();
+            Thread.sleep(200L);
+            return "value";
+        }));
+        for (Future<String> future : futures)
+            assertEquals("value", future.get());
+        assertEquals(1, calls.get());
+        assertEquals(1, facade.getLoadCount());
+        assertTrue(facade.getCoalescedLoadCount() > 0);
+    }
+
+    @Test
+    public void singleFlightFailure() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("singleFlightFailure") {}.initPool();
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<String>> futures = runConcurrently(20, () -> facade.get("key", () -> {
+            calls.incrementAndGet();
+            Thread.sleep(200L);
+            throw new IllegalStateException("load failed");
+        }));
+        for (Future<String> future : futures) {
+            ExecutionException ex = assertThrows(ExecutionException.class, future::get);
+            assertTrue(ex.getCause() instanceof SystemException);
+            assertTrue(ex.getCause().getCause() instanceof IllegalStateException);
+        }
+        assertEquals(calls.get(), facade.getFailedLoadCount());
+        assertNull(facade.get("key"));
+        assertEquals("value", facade.get("key", () -> "value"));
+    }
+
+    @Test
+    public void loadTimeout() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("loadTimeout") {}
+                .initPool(pool -> pool.setLoadTimeout(50L));
+        CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> leader = executor.submit(() -> facade.get("key", () -> {
+            started.countDown();
+            Thread.sleep(500L);
+            return "value";
+        }));
+        started.await();
+        SystemException ex = assertThrows(SystemException.class, () -> facade.get("key", () -> "other"));
+        assertTrue(ex.getCause() instanceof TimeoutException);
+
+        // the caller that started the load is bounded too, while the load still populates the cache
+        ExecutionException owner = assertThrows(ExecutionException.class, leader::get);
+        assertTrue(owner.getCause().getCause() instanceof TimeoutException);
+        Thread.sleep(600L);
+        assertEquals("value", facade.get("key"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void invalidatedDuringLoad() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("invalidatedDuringLoad") {}
+                .initPool(pool -> pool.setNearCacheMaxEntries(10));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        for (boolean write : new boolean[] {false, true}) {
+            CountDownLatch loading = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            Future<String> load = executor.submit(() -> facade.get("key", () -> {
+                loading.countDown();
+                proceed.await();
+                return "stale";
+            }));
+            loading.await();
+            if (write)
+                facade.put("key", "fresh");
+            else
+                facade.remove("key");
+            proceed.countDown();
+            assertEquals("stale", load.get()); // the caller still gets what it loaded
+            assertEquals(write ? "fresh" : null, facade.get("key"));
+        }
+
+        // a batch load as well
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        facade.remove("key");
+        Future<Map<String, String>> batch = executor.submit(() -> facade.getAll(Arrays.asList("key", "other"), keys -> {
+            loading.countDown();
+            proceed.await();
+            Map<String, String> map = new HashMap<>();
+            keys.forEach(k -> map.put(k, "stale"));
+            return map;
+        }));
+        loading.await();
+        facade.put("key", "fresh");
+        proceed.countDown();
+        assertEquals("stale", batch.get().get("key"));
+        assertEquals("fresh", facade.get("key"));
+        assertEquals("stale", facade.get("other"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void hungLoader() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("hungLoader") {}
+                .initPool(pool -> pool.setLoadTimeout(50L));
+        CountDownLatch hung = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        SystemException ex = assertThrows(SystemException.class, () -> facade.get("key", () -> {
+            hung.await();
+            return "hung";
+        }));
+        assertTrue(ex.getCause() instanceof TimeoutException);
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+
+        // the hung load no longer holds the key
+        assertEquals("value", facade.get("key", () -> "value"));
+        hung.countDown();
+    }
+
+    @Test
+    public void nearCache() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("nearCache") {}
+                .initPool(pool -> {
+                    pool.setNearCacheMaxEntries(100);
+                    pool.setNearCacheExpiry(100L);
+                });
+        CacheFacade<String, String> other = new CacheFacade<String, String>("nearCache") {}
+                .initPool(pool -> pool.setNearCacheMaxEntries(100));
+        NearCache<String, String> near = facade.getNearCache();
+        assertSame(near, other.getNearCache());
+
+        facade.put("a", "1");
+        for (int i = 0; i < 10; i++)
+            assertEquals("1", facade.get("a"));
+        assertEquals(1, facade.getHitCount());
+        assertEquals(9, near.getHitCount());
+
+        other.put("a", "2");
+        assertEquals("2", facade.get("a"));
+        other.remove("a");
+        assertNull(facade.get("a"));
+
+        facade.put("b", "1");
+        facade.get("b");
+        facade.getCache().put("b", "2"); // bypasses the near cache
+        assertEquals("1", facade.get("b"));
+        Thread.sleep(150L);
+        assertEquals("2", facade.get("b"));
+    }
+
+    @Test
+    public void nearCacheReadRacingWrite() {
+        CacheFacade<String, String> other = new CacheFacade<String, String>("nearCacheRace") {}
+                .initPool(pool -> pool.setNearCacheMaxEntries(100));
+        // reads "old" from the provider cache while another facade writes "new" before the near cache is filled
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("nearCacheRace") {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected javax.cache.Cache<String, String> getCache() {
+                javax.cache.Cache<String, String> c = super.getCache();
+                return (javax.cache.Cache<String, String>) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[] {javax.cache.Cache.class}, (proxy, method, args) -> {
+                            if ("get".equals(method.getName()) && "a".equals(args[0]) && c.get("a") == null) {
+                                other.put("a", "new");
+                                return "old";
+                            }
+                            return method.invoke(c, args);
+                        });
+            }
+        }.initPool(pool -> pool.setNearCacheMaxEntries(100));
+
+        assertEquals("old", facade.get("a"));
+        assertEquals("new", facade.get("a"));
+        assertEquals("new", other.get("a"));
+    }
+
+    @Test
+    public void nearCacheEviction() {
+        NearCache<Integer, Integer> near = new NearCache<>(100, 60000L);
+        // hot keys read less often than LRU would need to keep them survive a scan of keys read once
+        for (int i = 0; i < 10; i++) {
+            near.put(i, i);
+            for (int j = 0; j < 3; j++)
+                near.get(i);
+        }
+        for (int i = 10; i < 10000; i++) {
+            if (i % 200 == 0) {
+                for (int j = 0; j < 10; j++)
+                    assertEquals(Integer.valueOf(j), near.get(j));
+            }
+            near.get(i);
+            near.put(i, i);
+            assertTrue(near.size() <= 100);
+        }
+        for (int i = 0; i < 10; i++)
+            assertEquals(Integer.valueOf(i), near.get(i));
+        assertTrue(near.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void diskTier() throws Exception {
+        Path dir = Files.createTempDirectory("cache-disk");
+        try {
+            CacheConfiguration configuration = tieredConfiguration(dir);
+            CacheFacade<Long, String> facade = new CacheFacade<Long, String>("diskTier") {};
+            facade.setCacheConfiguration(configuration);
+            for (long i = 0; i < 100; i++)
+                facade.put(i, "value" + i);
+            configuration.closeCacheManager();
+
+            // a new CacheManager for the same directory sees the entries written before the restart
+            configuration = tieredConfiguration(dir);
+            facade = new CacheFacade<Long, String>("diskTier") {};
+            facade.setCacheConfiguration(configuration);
+            awaitSize(facade.getStatistics(), 100);
+            for (long i = 0; i < 100; i++)
+                assertEquals("value" + i, facade.get(i));
+            configuration.closeCacheManager();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void offHeapLimit() {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setMaxEntries(10);
+        configuration.setOffHeapBytes(1024L * 1024L);
+        CacheFacade<Long, String> facade = new CacheFacade<Long, String>("offHeapLimit") {};
+        facade.setCacheConfiguration(configuration);
+
+        char[] chars = new char[10 * 1024];
+        java.util.Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        for (long i = 0; i < 500; i++)
+            facade.put(i, value);
+
+        int count = 0;
+        for (javax.cache.Cache.Entry<Long, String> entry : facade.getCache())
+            count++;
+        assertTrue(count > 0);
+        assertTrue(count < 150, "off-heap tier holds " + count + " entries of 10KB in 1MB");
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("refreshAhead") {}
+                .initPool(pool -> {
+                    pool.setExpiry(1000L);
+                    pool.setRefreshAheadFactor(0.5);
+                });
+        AtomicInteger version = new AtomicInteger();
+        Callable<String> loader = () -> {
+            Thread.sleep(200L);
+            return "v" + version.incrementAndGet();
+        };
+        assertEquals("v1", facade.get("key", loader));
+
+        Thread.sleep(600L);
+        long start = System.currentTimeMillis();
+        assertEquals("v1", facade.get("key", loader)); // triggers the refresh without waiting for it
+        assertTrue(System.currentTimeMillis() - start < 100L);
+        Thread.sleep(400L);
+        assertEquals("v2", facade.get("key", loader));
+        assertEquals(1, facade.getRefreshCount());
+    }
+
+    private void awaitSize(CacheStatistics statistics, long size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (statistics.getSize() != size && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        assertEquals(size, statistics.getSize());
+    }
+
+    @Test
+    public void size() throws Exception {
+        CacheFacade<Integer, String> facade = new CacheFacade<Integer, String>("size") {}.initPool();
+        for (int i = 0; i < 10; i++)
+            facade.put(i, "value" + i);
+        facade.put(0, "updated");
+        awaitSize(facade.getStatistics(), 10);
+        for (int i = 0; i < 3; i++)
+            facade.remove(i);
+        awaitSize(facade.getStatistics(), 7);
+        facade.clearLocally();
+        awaitSize(facade.getStatistics(), 0);
+
+        // removals reported after the clear do not take the count below 0
+        facade.getStatistics().removed();
+        facade.put(0, "value0");
+        awaitSize(facade.getStatistics(), 1);
+    }
+
+    @Test
+    public void refreshAheadRecordsBounded() throws Exception {
+        CacheFacade<Integer, String> facade = new CacheFacade<Integer, String>("refreshAheadRecordsBounded") {}
+                .initPool(pool -> {
+                    pool.setMaxEntries(10);
+                    pool.setRefreshAheadFactor(0.5);
+                });
+        for (int i = 0; i < 1000; i++) {
+            final int id = i;
+            facade.get(i, () -> "value" + id);
+            assertTrue(facade.loadedSize() <= 20);
+        }
+
+        CacheFacade<Integer, String> expiring = new CacheFacade<Integer, String>("refreshAheadRecordsExpiring") {}
+                .initPool(pool -> {
+                    pool.setMaxEntries(0);
+                    pool.setOffHeapBytes(16L * 1024 * 1024);
+                    pool.setExpiry(20L);
+                    pool.setRefreshAheadFactor(0.5);
+                });
+        for (int i = 0; i < 5000; i++) {
+            final int id = i;
+            expiring.get(i, () -> "value" + id);
+            if (i % 1000 == 999)
+                Thread.sleep(30L);
+        }
+        assertTrue(expiring.loadedSize() <= 2048, "records " + expiring.loadedSize());
+    }
+
+    @Test
+    public void refreshFailure() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("refreshFailure") {}
+                .initPool(pool -> {
+                    pool.setExpiry(300L);
+                    pool.setRefreshAheadFactor(0.5);
+                    pool.setMaxStaleAge(1000L);
+                });
+        AtomicInteger calls = new AtomicInteger();
+        Callable<String> loader = () -> {
+            if (calls.incrementAndGet() > 1)
+                throw new IllegalStateException("remote store unavailable");
+            return "v1";
+        };
+        assertEquals("v1", facade.get("key", loader));
+        Thread.sleep(200L);
+        assertEquals("v1", facade.get("key", loader));
+        Thread.sleep(300L);
+        // expired, but the refresh failed so the stale value is kept
+        assertEquals("v1", facade.get("key", loader));
+        assertTrue(facade.getFailedRefreshCount() > 0);
+        assertTrue(facade.getStaleHitCount() > 0);
+
+        Thread.sleep(600L);
+        assertThrows(SystemException.class, () -> facade.get("key", loader));
+    }
+
+    @Test
+    public void bulk() {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("bulk") {}.initPool();
+        Map<String, String> entries = new HashMap<>();
+        entries.put("a", "A");
+        entries.put("b", "B");
+        facade.putAll(entries);
+
+        List<Collection<String>> batches = new ArrayList<>();
+        Map<String, String> values = facade.getAll(Arrays.asList("a", "b", "c", "d", "e"), keys -> {
+            batches.add(new ArrayList<>(keys));
+            Map<String, String> map = new HashMap<>();
+            for (String key : keys)
+                if (!"e".equals(key))
+                    map.put(key, key.toUpperCase());
+            return map;
+        });
+        assertEquals(1, batches.size());
+        assertEquals(new HashSet<>(Arrays.asList("c", "d", "e")), new HashSet<>(batches.get(0)));
+        assertEquals(4, values.size());
+        assertEquals("D", values.get("d"));
+        assertFalse(values.containsKey("e"));
+        assertEquals("C", facade.get("c"));
+        assertEquals(1, facade.getLoadCount());
+
+        Map<String, String> reloaded = facade.loadAll(Arrays.asList("a", "b"), keys -> {
+            Map<String, String> map = new HashMap<>();
+            keys.forEach(key -> map.put(key, key + "2"));
+            return map;
+        });
+        assertEquals("a2", reloaded.get("a"));
+        assertEquals("b2", facade.getAll(Arrays.asList("a", "b")).get("b"));
+    }
+
+    @Test
+    public void bulkSingleFlight() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("bulkSingleFlight") {}.initPool();
+        ConcurrentHashMap<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+        List<String> keys = Arrays.asList("a", "b", "c", "d");
+        List<Future<Map<String, String>>> futures = runConcurrently(20, () -> facade.getAll(keys, batch -> {
+            Thread.sleep(100L);
+            Map<String, String> map = new HashMap<>();
+            for (String key : batch) {
+                loads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+                map.put(key, key.toUpperCase());
+            }
+            return map;
+        }));
+        futures.add(Executors.newSingleThreadExecutor().submit(() -> Collections.singletonMap("a", facade.get("a", () -> "A"))));
+        for (Future<Map<String, String>> future : futures)
+            assertEquals("A", future.get().get("a"));
+        for (String key : keys)
+            assertEquals(1, loads.get(key).get());
+        assertTrue(facade.getCoalescedLoadCount() > 0);
+    }
+
+    @Test
+    public void bulkFailure() {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("bulkFailure") {}.initPool();
+        assertThrows(SystemException.class, () -> facade.getAll(Arrays.asList("a", "b"), keys -> {
+            throw new IllegalStateException("load failed");
+        }));
+        assertEquals(1, facade.getFailedLoadCount());
+        assertEquals("A", facade.getAll(Arrays.asList("a"), keys -> Collections.singletonMap("a", "A")).get("a"));
+    }
+
+    @Test
+    public void bulkHungLoader() throws Exception {
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("bulkHungLoader") {}
+                .initPool(pool -> pool.setLoadTimeout(50L));
+        CountDownLatch hung = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        SystemException ex = assertThrows(SystemException.class, () -> facade.getAll(Arrays.asList("a", "b"), keys -> {
+            hung.await();
+            return Collections.emptyMap();
+        }));
+        assertTrue(ex.getCause() instanceof TimeoutException);
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+
+        // the hung load no longer holds the keys
+        assertEquals("A", facade.get("a", () -> "A"));
+        assertEquals("B", facade.getAll(Arrays.asList("b"), keys -> Collections.singletonMap("b", "B")).get("b"));
+        hung.countDown();
+    }
+
+    /*
+     * Loads 200 entries at once, taking a tenth of expiry on a controlled clock, then reads each of them at
+     * every hundredth of expiry until they expire.  Returns the number of reloads at each step; the provider
+     * does not expire anything meanwhile, so they are all early expirations.
+     */
+    private int[] earlyReloads(String name, Consumer<CacheConfiguration> configurator) {
+        long expiry = 60000L;
+        long[] now = {0L};
+        Random random = new Random(1L);
+        CacheFacade<Integer, Integer> facade = new CacheFacade<Integer, Integer>(name) {}.initPool(pool -> {
+            pool.setExpiry(expiry);
+            pool.setRandom(random::nextDouble);
+            configurator.accept(pool);
+        });
+        facade.setClock(() -> now[0]);
+        facade.setRefreshExecutor(Runnable::run);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            keys.add(i);
+        facade.getAll(keys, batch -> {
+            now[0] += TimeUnit.MILLISECONDS.toNanos(expiry / 10);
+            Map<Integer, Integer> map = new HashMap<>();
+            batch.forEach(key -> map.put(key, key));
+            return map;
+        });
+
+        int[] reloads = new int[100];
+        for (int step = 0; step < reloads.length; step++) {
+            now[0] += TimeUnit.MILLISECONDS.toNanos(expiry / 100);
+            int current = step;
+            for (Integer key : keys) {
+                facade.get(key, () -> {
+                    reloads[current]++;
+                    return key;
+                });
+            }
+        }
+        return reloads;
+    }
+
+    // largest number of events in any 10 consecutive slots.
+    private int peak(int[] slots) {
+        int peak = 0;
+        for (int i = 0; i + 10 <= slots.length; i++)
+            peak = Math.max(peak, Arrays.stream(slots, i, i + 10).sum());
+        return peak;
+    }
+
+    @Test
+    public void stampede() {
+        // entries written together expire within the same tenth of expiry unless jittered
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setExpiry(1000L);
+        Random random = new Random(1L);
+        configuration.setRandom(random::nextDouble);
+        for (double jitter : new double[] {0d, 0.5}) {
+            configuration.setExpiryJitter(jitter);
+            int[] expiring = new int[100];
+            for (int i = 0; i < 200; i++) {
+                long ttl = configuration.nextExpiry();
+                assertTrue(ttl >= 1000L * (1 - jitter) && ttl <= 1000L);
+                expiring[(int) ((ttl - 1) / 10)]++;
+            }
+            if (jitter == 0d)
+                assertEquals(200, peak(expiring));
+            else
+                assertTrue(peak(expiring) < 100, "jittered: " + peak(expiring));
+        }
+
+        // early expiration reloads every entry before it expires, spread out rather than all at once
+        int[] early = earlyReloads("stampedeEarly", pool -> pool.setEarlyExpirationBeta(1.0));
+        assertEquals(200, Arrays.stream(early).sum());
+        assertTrue(peak(early) < 100, "early: " + peak(early));
+    }
+
+    private CacheConfiguration tieredConfiguration(Path dir) {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setMaxEntries(10);
+        configuration.setOffHeapBytes(1024L * 1024L);
+        configuration.setDiskBytes(10 * 1024L * 1024L);
+        configuration.setDiskDirectory(dir.toString());
+        return configuration;
+    }
+
+    private void delete(Path dir) throws IOException {
+        Files.walk(dir).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    private <T> List<Future<T>> runConcurrently(int threads, Callable<T> callable) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                gate.await();
+                return callable.call();
+            }));
+        }
+        gate.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return futures;
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import net.e6tech.elements.common.subscribe.DefaultBroadcast;
+import net.e6tech.elements.common.subscribe.Notice;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheInvalidationTest {
+
+    @Test
+    public void droppedWhileStopped() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DefaultBroadcast broadcast = new DefaultBroadcast();
+        broadcast.setThreadPool(executor);
+        CacheInvalidation invalidation = new CacheInvalidation();
+        invalidation.setBroadcast(broadcast);
+
+        invalidation.invalidate("cache", "key");
+        assertEquals(1, invalidation.getDroppedCount());
+        assertEquals(0, invalidation.getInvalidationCount());
+
+        invalidation.start();
+        invalidation.invalidate("cache", "key");
+        assertEquals(1, invalidation.getInvalidationCount());
+        invalidation.shutdown();
+        assertEquals(1, invalidation.getBatchesPublished());
+
+        invalidation.invalidate("cache", "key");
+        assertEquals(2, invalidation.getDroppedCount());
+        invalidation.flush();
+        assertEquals(1, invalidation.getBatchesPublished());
+        executor.shutdown();
+    }
+
+    @Test
+    public void everyFacadeOfACache() {
+        CacheInvalidation invalidation = new CacheInvalidation();
+        AtomicInteger invalidated = new AtomicInteger();
+        List<CacheFacade<String, String>> facades = new ArrayList<>(); // registered facades are held weakly
+        for (int i = 0; i < 2; i++) {
+            CacheFacade<String, String> facade = new CacheFacade<String, String>("everyFacadeOfACache") {
+                @Override
+                void invalidateLocally(Collection<?> keys) {
+                    invalidated.incrementAndGet();
+                    super.invalidateLocally(keys);
+                }
+            }.initPool();
+            facade.setCacheInvalidation(invalidation);
+            facade.getCache();
+            facades.add(facade);
+        }
+
+        CacheInvalidation.Batch batch = new CacheInvalidation.Batch("another node");
+        batch.getKeys().put(CacheInvalidationTest.class.getName() + ".everyFacadeOfACache", new ArrayList<>(Collections.singletonList("key")));
+        invalidation.receive(new Notice<>(CacheInvalidation.DEFAULT_TOPIC, batch));
+        assertEquals(2, invalidated.get());
+    }
+
+    @Test
+    public void discardedFacade() throws Exception {
+        CacheInvalidation invalidation = new CacheInvalidation();
+        String name = CacheInvalidationTest.class.getName() + ".discardedFacade";
+        CacheFacade<String, String> kept = new CacheFacade<String, String>("discardedFacade") {}.initPool();
+        kept.setCacheInvalidation(invalidation);
+        kept.getCache();
+        CacheFacade<String, String> discarded = new CacheFacade<String, String>("discardedFacade") {}.initPool();
+        discarded.setCacheInvalidation(invalidation);
+        discarded.getCache();
+        assertEquals(2, invalidation.facadeCount(name));
+
+        discarded = null;
+        for (int i = 0; i < 50 && invalidation.facadeCount(name) > 1; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertEquals(1, invalidation.facadeCount(name));
+        assertNotNull(kept.getName());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares puts into a cache of 1M entries with and without the full-cache sweep the provider used to
+ * schedule on puts whenever the expiry period had elapsed.  The sweeps run on their own thread, so
+ * cpuMillis reports the process CPU time of each iteration next to the put rate.  Run main to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CachePutBenchmark {
+
+    static final int ENTRIES = 1000000;
+    static final long EXPIRY = 50L;
+
+    @Param({"true", "false"})
+    boolean sweep;
+
+    CacheFacade<Long, Long> facade;
+    javax.cache.Cache<Long, Long> cache;
+    ExecutorService sweeper;
+    Future<?> sweeping;
+    long lastSweep;
+    long next;
+
+    @Setup
+    public void setup() {
+        facade = new CacheFacade<Long, Long>("putBenchmark" + sweep) {}
+                .initPool(pool -> {
+                    pool.setMaxEntries(ENTRIES);
+                    pool.setExpiry(EXPIRY);
+                });
+        cache = facade.getCache();
+        sweeper = Executors.newSingleThreadExecutor();
+        for (long i = 0; i < ENTRIES; i++)
+            facade.put(i, i);
+        lastSweep = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sweeper.shutdownNow();
+        cache.clear();
+    }
+
+    @Benchmark
+    public void put(Cpu cpu) {
+        if (sweep && System.currentTimeMillis() - lastSweep > EXPIRY) {
+            if (sweeping == null || sweeping.isDone())
+                sweeping = sweeper.submit(() -> cache.iterator().forEachRemaining(entry -> {}));
+            lastSweep = System.currentTimeMillis();
+        }
+        long key = next++ % ENTRIES;
+        facade.put(key, key);
+    }
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().include(CachePutBenchmark.class.getSimpleName()).forks(1).build()).run();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        public long cpuMillis;
+        private long start;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            cpuMillis = 0;
+            start = processCpuTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            cpuMillis = (start < 0) ? 0 : (processCpuTime() - start) / 1000000L;
+        }
+
+        private static long processCpuTime() {
+            OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+            if (bean instanceof com.sun.management.OperatingSystemMXBean)
+                return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+            return -1L;
+        }
+    }
+}
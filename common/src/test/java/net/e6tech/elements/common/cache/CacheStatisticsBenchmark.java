@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.cache;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a cache hit through CacheFacade, which records statistics, with a hit on the provider cache
+ * directly.  Run main to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class CacheStatisticsBenchmark {
+
+    CacheFacade<Long, String> facade;
+    javax.cache.Cache<Long, String> cache;
+
+    @Setup
+    public void setup() {
+        facade = new CacheFacade<Long, String>("benchmark") {}.initPool();
+        cache = facade.getCache();
+        for (long i = 0; i < 100; i++)
+            facade.put(i, Long.toString(i));
+    }
+
+    @Benchmark
+    public String provider() {
+        return cache.get(ThreadLocalKey.next());
+    }
+
+    @Benchmark
+    public String facade() {
+        return facade.get(ThreadLocalKey.next());
+    }
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().include(CacheStatisticsBenchmark.class.getSimpleName()).forks(1).build()).run();
+    }
+
+    static class ThreadLocalKey {
+        private static final ThreadLocal<long[]> counter = ThreadLocal.withInitial(() -> new long[1]);
+
+        static Long next() {
+            long[] c = counter.get();
+            return (c[0]++) % 100;
+        }
+    }
+}
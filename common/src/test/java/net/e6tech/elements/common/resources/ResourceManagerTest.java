@@ -16,8 +16,18 @@
 
 package net.e6tech.elements.common.resources;
 
+import net.e6tech.elements.common.util.SystemException;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 /**
  * Created by futeh.
  */
@@ -36,4 +46,92 @@ public class ResourceManagerTest {
         resourceManager.load("classpath://net/e6tech/elements/common/resources/FX Trader Joe's.groovy");
         resourceManager.getAtoms();
     }
+
+    @Test
+    public void lazyAtom() throws Exception {
+        ResourceManager resourceManager = new ResourceManager();
+        AtomicInteger count = new AtomicInteger();
+        resourceManager.createLazyAtom("lazy", atom -> {
+            count.incrementAndGet();
+            atom.put("_sample", AtomTestSample.class);
+        }, false);
+        assertEquals(0, count.get());
+        assertNull(resourceManager.getAtoms().get("lazy"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Atom>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++)
+            futures.add(executor.submit(() -> resourceManager.getAtom("lazy")));
+        Atom atom = futures.get(0).get();
+        for (Future<Atom> future : futures)
+            assertSame(atom, future.get());
+        executor.shutdown();
+
+        assertEquals(1, count.get());
+        AtomTestSample sample = resourceManager.getAtomResource("lazy", "_sample");
+        assertEquals(1, sample.initialized);
+        assertEquals(1, sample.started);
+
+        // a name is either lazy or not, and declared once
+        assertThrows(AlreadyBoundException.class, () -> resourceManager.createLazyAtom("lazy", a -> {}, false));
+        resourceManager.createLazyAtom("other", a -> {}, false);
+        assertThrows(AlreadyBoundException.class, () -> resourceManager.createLazyAtom("other", a -> {}, true));
+        assertThrows(AlreadyBoundException.class, () -> resourceManager.createAtom("other", a -> {}, null, false));
+        assertFalse(resourceManager.getLazyAtom("other").isInitialized());
+        assertNotNull(resourceManager.getAtom("other"));
+    }
+
+    @Test
+    public void beansByType() throws Exception {
+        ResourceManager resourceManager = new ResourceManager();
+        resourceManager.registerBean("list1", new ArrayList<>());
+        resourceManager.registerBean("list2", new java.util.LinkedList<>());
+        resourceManager.registerBean("counter", new AtomicInteger());
+
+        assertEquals(2, resourceManager.getBeans(List.class).size());
+        assertEquals(2, resourceManager.getBeans(java.util.Collection.class).size());
+        assertNotNull(resourceManager.getBean(Number.class));
+        assertThrows(SystemException.class, () -> resourceManager.getBean(List.class));
+        assertSame(resourceManager.getPluginManager(), resourceManager.getBean(net.e6tech.elements.common.resources.plugin.PluginManager.class));
+
+        resourceManager.unregisterBean("list2");
+        assertSame(resourceManager.getBean("list1"), resourceManager.getBean(List.class));
+
+        // variables assigned directly in a script are picked up as well
+        resourceManager.getScripting().eval("scriptList = new java.util.Vector()");
+        assertEquals(2, resourceManager.getBeans(List.class).size());
+        resourceManager.getScripting().eval("scriptList = 'not a list'");
+        assertSame(resourceManager.getBean("list1"), resourceManager.getBean(List.class));
+
+        // reassigning a variable to a different type, without changing the number of variables
+        resourceManager.registerBean("foo", "a string");
+        resourceManager.unregisterBean("list1");
+        assertNull(resourceManager.getBean(List.class));
+        resourceManager.getScripting().eval("foo = new java.util.ArrayList()");
+        assertEquals(1, resourceManager.getBeans(List.class).size());
+        assertSame(resourceManager.getBean("foo"), resourceManager.getBean(List.class));
+
+        resourceManager.unregisterBean("counter");
+        assertNull(resourceManager.getBean(AtomicInteger.class));
+
+        // a GString is indexed once, as a String, when it is assigned; lookups neither copy nor resync
+        resourceManager.getScripting().eval("greeting = \"hello ${1 + 1}\"");
+        String greeting = resourceManager.getBeans(String.class).get("greeting");
+        assertEquals("hello 2", greeting);
+        assertSame(greeting, resourceManager.getBeans(String.class).get("greeting"));
+        assertSame(greeting, resourceManager.getBean("greeting"));
+    }
+
+    @Test
+    public void lazyAtomFailure() {
+        ResourceManager resourceManager = new ResourceManager();
+        resourceManager.createLazyAtom("broken", atom -> {
+            throw new IllegalStateException("broken");
+        }, false);
+        SystemException first = assertThrows(SystemException.class, () -> resourceManager.getAtom("broken"));
+        assertTrue(first.getMessage().contains("broken"));
+        SystemException second = assertThrows(SystemException.class, () -> resourceManager.getAtom("broken"));
+        assertSame(first, second);
+        assertTrue(resourceManager.getLazyAtom("broken").isFailed());
+    }
 }
@@ -16,16 +16,26 @@
 
 package net.e6tech.elements.common.resources.plugin;
 
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.implementation.FixedValue;
 import net.e6tech.elements.common.resources.ResourceManager;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
 
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Created by futeh.
@@ -136,4 +146,147 @@ public class PluginTest {
         l.size();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void scope() {
+        PluginManager manager = new PluginManager(new ResourceManager());
+        PluginPath<PluginX> prototypePath = PluginPath.of(PluginTest.class, "prototype").and(PluginX.class);
+        PluginPath<PluginX> singletonPath = PluginPath.of(PluginTest.class, "singleton").and(PluginX.class);
+        manager.add(prototypePath, (Class) DefaultPluginX.class);
+        manager.add(singletonPath, (Class) DefaultPluginX.class, PluginScope.SINGLETON);
+
+        assertNotSame(manager.get(prototypePath).get(), manager.get(prototypePath).get());
+        assertSame(manager.get(singletonPath).get(), manager.get(singletonPath).get());
+    }
+
+    @Test
+    public void concurrentGet() throws Exception {
+        PluginManager manager = new PluginManager(new ResourceManager());
+        PluginPath<PluginX> prototypePath = PluginPath.of(PluginTest.class, "prototype").and(PluginX.class);
+        PluginPath<PluginX> singletonPath = PluginPath.of(PluginTest.class, "singleton").and(PluginX.class);
+        manager.add(prototypePath, (Class) DefaultPluginX.class);
+        manager.add(singletonPath, (Class) CountingPluginX.class, PluginScope.SINGLETON);
+
+        int threads = 16;
+        int iterations = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        Set<PluginX> singletons = ConcurrentHashMap.newKeySet();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                int found = 0;
+                PluginX singleton = manager.get(singletonPath).get();
+                singletons.add(singleton);
+                for (int i = 0; i < iterations; i++) {
+                    PluginX prototype = manager.get(prototypePath).get();
+                    if ("default".equals(prototype.name()) && manager.get(singletonPath).get() == singleton)
+                        found++;
+                }
+                return found;
+            }));
+        }
+
+        // keep registering unrelated plugins while readers are running
+        Future<?> writer = executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < 500; i++)
+                manager.add(PluginPath.of(PluginTest.class, "w" + i).and(PluginX.class), new DefaultPluginX("w" + i));
+            return null;
+        });
+
+        start.countDown();
+        int total = 0;
+        for (Future<Integer> future : futures)
+            total += future.get();
+        writer.get();
+        executor.shutdown();
+
+        assertEquals(threads * iterations, total);
+        assertEquals(1, singletons.size());
+        assertEquals(1, CountingPluginX.created.get());
+        for (int i = 0; i < 500; i++)
+            assertEquals("w" + i, manager.get(PluginPath.of(PluginTest.class, "w" + i).and(PluginX.class)).get().name());
+    }
+
+    public static class CountingPluginX extends DefaultPluginX {
+        static AtomicInteger created = new AtomicInteger();
+
+        public CountingPluginX() {
+            created.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void indexedJars() throws Exception {
+        File dir = Files.createTempDirectory("plugin-jars").toFile();
+        File cacheDir = new File(dir, "index");
+        int jars = 20;
+        for (int i = 0; i < jars; i++)
+            generateJar(new File(dir, "plugin" + i + ".jar"), i);
+
+        PluginManager manager = new PluginManager(new ResourceManager());
+        manager.setPluginIndex(new PluginIndex(cacheDir));
+        manager.loadPlugins(new String[] { dir.getPath() + "/*" });
+        assertEquals(jars, manager.getPluginIndex().getScans());
+        assertEquals(jars, cacheDir.listFiles((d, name) -> name.endsWith(".index")).length);
+
+        // registered but not defined until requested
+        PluginManager.PluginClassLoader classLoader = (PluginManager.PluginClassLoader) manager.getPluginClassLoader();
+        assertFalse(classLoader.isDefined("generated.plugin.GeneratedPlugin7"));
+        PluginX x = manager.get(PluginPath.of(PluginTest.class, "generated7").and(PluginX.class)).get();
+        assertEquals("generated7", x.name());
+        assertTrue(classLoader.isDefined("generated.plugin.GeneratedPlugin7"));
+        assertFalse(classLoader.isDefined("generated.plugin.GeneratedPlugin8"));
+        assertThrows(ClassNotFoundException.class, () -> classLoader.loadClass("generated.plugin.DoesNotExist"));
+
+        // second start-up reads the cached indexes instead of scanning
+        PluginManager manager2 = new PluginManager(new ResourceManager());
+        manager2.setPluginIndex(new PluginIndex(cacheDir));
+        manager2.loadPlugins(new String[] { dir.getPath() + "/*" });
+        assertEquals(0, manager2.getPluginIndex().getScans());
+        assertEquals(jars, manager2.getPluginIndex().getCacheHits());
+        for (int i = 0; i < jars; i++) {
+            PluginX plugin = manager2.get(PluginPath.of(PluginTest.class, "generated" + i).and(PluginX.class)).get();
+            assertEquals("generated" + i, plugin.name());
+        }
+
+        // a touched jar still has the same checksum and is not rescanned
+        File touched = new File(dir, "plugin1.jar");
+        assertTrue(touched.setLastModified(touched.lastModified() - 60000L));
+        PluginManager touchedManager = new PluginManager(new ResourceManager());
+        touchedManager.setPluginIndex(new PluginIndex(cacheDir));
+        touchedManager.loadPlugins(new String[] { dir.getPath() + "/*" });
+        assertEquals(0, touchedManager.getPluginIndex().getScans());
+
+        // a changed jar has a new size or modification time and is rescanned
+        generateJar(new File(dir, "plugin0.jar"), 100);
+        PluginManager manager3 = new PluginManager(new ResourceManager());
+        manager3.setPluginIndex(new PluginIndex(cacheDir));
+        manager3.loadPlugins(new String[] { dir.getPath() + "/*" });
+        assertEquals(1, manager3.getPluginIndex().getScans());
+        assertEquals("generated100", manager3.get(PluginPath.of(PluginTest.class, "generated100").and(PluginX.class)).get().name());
+        assertEquals(jars, cacheDir.listFiles((d, name) -> name.endsWith(".index")).length);
+    }
+
+    private void generateJar(File file, int i) throws Exception {
+        String className = "generated.plugin.GeneratedPlugin" + i;
+        byte[] bytes = new ByteBuddy()
+                .subclass(Object.class)
+                .implement(PluginX.class)
+                .name(className)
+                .method(named("name")).intercept(FixedValue.value("generated" + i))
+                .make()
+                .getBytes();
+        String descriptor = "# generated\n"
+                + PluginTest.class.getName() + ":generated" + i + "/" + PluginX.class.getName() + " = " + className + "\n";
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+            out.write(bytes);
+            out.closeEntry();
+            out.putNextEntry(new JarEntry(PluginIndex.DESCRIPTOR));
+            out.write(descriptor.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -93,6 +95,45 @@ public class TextSubstitutionTest {
 
     }
 
+    @Test
+    public void reuse() {
+        TextSubstitution sub = new TextSubstitution("host=${host}\nport=${port:8080}\nhost again=${host}");
+        Map<String, Object> map = new HashMap<>();
+        map.put("host", "localhost");
+        assertEquals("host=localhost\nport=8080\nhost again=localhost", sub.build(map));
+
+        map = new HashMap<>();
+        map.put("host", "example.com");
+        map.put("port", 9090);
+        assertEquals("host=example.com\nport=9090\nhost again=example.com", sub.build(map));
+        assertEquals(2, sub.getVariableNames().size());
+    }
+
+    @Test
+    public void strict() {
+        TextSubstitution sub = new TextSubstitution("${a} ${b:default} ${c:+set}").strict(true);
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", "A");
+        assertEquals("A default ", sub.build(map));
+
+        SystemException ex = assertThrows(SystemException.class, () -> sub.build(new HashMap<>()));
+        assertTrue(ex.getMessage().contains("${a}"));
+    }
+
+    @Test
+    public void largeTemplate() {
+        StringBuilder builder = new StringBuilder();
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("line ").append(i).append(" ${var").append(i % 100).append("}\n");
+            map.put("var" + (i % 100), "value" + (i % 100));
+        }
+        TextSubstitution sub = new TextSubstitution(builder.toString());
+        String output = sub.build(map);
+        assertTrue(output.startsWith("line 0 value0\nline 1 value1\n"));
+        assertTrue(!output.contains("${"));
+    }
+
     private static class X {
         public String getName() {
             return "X";
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptivePoolSizerTest {
+
+    @Test
+    public void next() {
+        ThreadPool pool = ThreadPool.fixedThreadPool("sizerNext", 1);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(pool, 2, 10);
+        assertEquals(4, sizer.next(2, 7));   // at most doubles
+        assertEquals(10, sizer.next(8, 50)); // bounded
+        assertEquals(8, sizer.next(8, 3));   // shrinks only after 3 intervals
+        assertEquals(8, sizer.next(8, 3));
+        assertEquals(3, sizer.next(8, 3));
+        assertEquals(3, sizer.next(3, 0));
+        pool.shutdown();
+    }
+
+    @Test
+    public void unboundedQueueOnly() {
+        ThreadPool cached = ThreadPool.cachedThreadPool("sizerCached");
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePoolSizer(cached, 1, 4));
+        ThreadPool bounded = ThreadPool.rateLimitedThreadPool("sizerBounded", 1, 4, 60, 10);
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePoolSizer(bounded, 1, 4));
+        cached.shutdown();
+        bounded.shutdown();
+    }
+
+    /*
+     * Simulates 200 tasks a second of 10ms each, which keep about 2 threads busy.  The pool starts with 1 thread,
+     * so a queue builds up first.
+     */
+    @Test
+    public void converges() {
+        ThreadPool pool = ThreadPool.fixedThreadPool("sizerConverges", 1);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(pool, 1, 32);
+        sizer.setInterval(200L);
+        long interval = TimeUnit.MILLISECONDS.toNanos(sizer.getInterval());
+        long service = TimeUnit.MILLISECONDS.toNanos(10);
+
+        List<Integer> sizes = new ArrayList<>();
+        int size = 1;
+        int queued = 0;
+        for (int i = 0; i < 30; i++) {
+            int arrived = 40;
+            int completed = Math.min(queued + arrived, (int) (size * interval / service));
+            queued += arrived - completed;
+            size = sizer.adjust(interval, arrived, completed, completed * service, queued, size);
+            sizes.add(size);
+        }
+
+        List<Integer> settled = sizes.subList(15, sizes.size());
+        assertEquals(1, new HashSet<>(settled).size());
+        assertTrue(settled.get(0) >= 2);
+        assertTrue(settled.get(0) <= 4);
+        assertEquals(0, queued);
+        ThreadPoolExecutor executor = pool.unwrap();
+        assertEquals(size, executor.getCorePoolSize());
+
+        // without load it shrinks back to the minimum, leaving the maximum alone
+        for (int i = 0; i < 10; i++)
+            size = sizer.adjust(interval, 0, 0, 0, 0, 0);
+        assertEquals(1, size);
+        assertEquals(1, executor.getCorePoolSize());
+        assertTrue(executor.getMaximumPoolSize() >= settled.get(0));
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import net.e6tech.elements.common.util.SystemException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a call through the generated class returned by Balancer.getService with a call through a JDK
+ * dynamic proxy, which is how getService used to work, and with calling execute directly.  Run main to
+ * measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class BalancerBenchmark {
+
+    public interface Adder {
+        long add(long a, long b);
+    }
+
+    public static class AdderBalancer extends Balancer<Adder> {
+        @Override
+        protected void start(Adder service) {
+            // nothing to start
+        }
+
+        @Override
+        protected void stop(Adder service) {
+            // nothing to stop
+        }
+    }
+
+    AdderBalancer balancer;
+    Adder generated;
+    Adder reflective;
+
+    @Setup
+    public void setup() {
+        balancer = new AdderBalancer();
+        balancer.setStrategy(Balancer.Strategy.LEAST_OUTSTANDING);
+        for (int i = 0; i < 4; i++)
+            balancer.addService((a, b) -> a + b);
+        balancer.start();
+        generated = balancer.getService();
+        reflective = (Adder) Proxy.newProxyInstance(Adder.class.getClassLoader(), new Class[] { Adder.class },
+                (proxy,  method, args)->
+                        balancer.execute(service -> {
+                            try {
+                                return method.invoke(service, args);
+                            } catch (IllegalAccessException e) {
+                                throw new SystemException(e);
+                            } catch (InvocationTargetException e) {
+                                throw new SystemException(e.getCause());
+                            }
+                        }));
+    }
+
+    @Benchmark
+    public long execute() throws IOException {
+        return balancer.execute(service -> service.add(1L, 2L));
+    }
+
+    @Benchmark
+    public long generated() {
+        return generated.add(1L, 2L);
+    }
+
+    @Benchmark
+    public long proxy() {
+        return reflective.add(1L, 2L);
+    }
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().include(BalancerBenchmark.class.getSimpleName()).forks(1).build()).run();
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import net.e6tech.elements.common.notification.NotificationCenter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BalancerTest {
+
+    interface Echo {
+        String echo(String text) throws IOException;
+    }
+
+    // a service that can take any number of concurrent calls, each delayed by latency.
+    static class SimulatedEcho implements Echo {
+        final String name;
+        final long latency;
+
+        SimulatedEcho(String name, long latency) {
+            this.name = name;
+            this.latency = latency;
+        }
+
+        @Override
+        public String echo(String text) throws IOException {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return name + ":" + text;
+        }
+    }
+
+    // a service that fails the calls, counted from 0, that schedule selects.
+    static class ScheduledEcho implements Echo {
+        final String name;
+        final AtomicInteger calls = new AtomicInteger();
+        volatile IntPredicate schedule;
+
+        ScheduledEcho(String name, IntPredicate schedule) {
+            this.name = name;
+            this.schedule = schedule;
+        }
+
+        @Override
+        public String echo(String text) throws IOException {
+            if (schedule.test(calls.getAndIncrement()))
+                throw new IOException(name + " failed");
+            return name + ":" + text;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class EchoBalancer extends Balancer<Echo> {
+        @Override
+        protected void start(Echo service) {
+            // nothing to start
+        }
+
+        @Override
+        protected void stop(Echo service) {
+            // nothing to stop
+        }
+    }
+
+    private EchoBalancer balancer(Balancer.Strategy strategy) {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(strategy);
+        balancer.addService(new SimulatedEcho("fast1", 2));
+        balancer.addService(new SimulatedEcho("fast2", 2));
+        balancer.addService(new SimulatedEcho("fast3", 2));
+        balancer.addService(new SimulatedEcho("slow", 40));
+        balancer.start();
+        return balancer;
+    }
+
+    // sorted latencies in milliseconds of 8 callers making 100 calls each.
+    private double[] latencies(Balancer<Echo> balancer) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                List<Long> latencies = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    long start = System.nanoTime();
+                    balancer.execute(service -> service.echo("hello"));
+                    latencies.add(System.nanoTime() - start);
+                }
+                return latencies;
+            }));
+        }
+        List<Long> all = new ArrayList<>();
+        for (Future<List<Long>> future : futures)
+            all.addAll(future.get());
+        executor.shutdown();
+        return all.stream().mapToDouble(nanos -> nanos / 1000000d).sorted().toArray();
+    }
+
+    private double p99(double[] latencies) {
+        return latencies[(int) (latencies.length * 0.99)];
+    }
+
+    private double mean(double[] latencies) {
+        return Arrays.stream(latencies).average().orElse(0d);
+    }
+
+    /*
+     * Three fast services and a slow one.  With exclusive checkout callers queue for a free service and
+     * every fourth call goes to the slow one.
+     */
+    @Test
+    public void tailLatency() throws Exception {
+        double[] exclusive = latencies(balancer(Balancer.Strategy.EXCLUSIVE));
+        double[] leastOutstanding = latencies(balancer(Balancer.Strategy.LEAST_OUTSTANDING));
+        double[] powerOfTwo = latencies(balancer(Balancer.Strategy.POWER_OF_TWO));
+        assertTrue(p99(powerOfTwo) < p99(exclusive) / 2);
+        assertTrue(mean(leastOutstanding) < mean(exclusive));
+    }
+
+    @Test
+    public void weightedRoundRobin() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(Balancer.Strategy.WEIGHTED_ROUND_ROBIN);
+        balancer.addService(new SimulatedEcho("a", 0), 5);
+        balancer.addService(new SimulatedEcho("b", 0), 1);
+        balancer.addService(new SimulatedEcho("c", 0), 1);
+        Map<String, Integer> counts = new HashMap<>();
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            String name = balancer.execute(service -> service.echo("x")).split(":")[0];
+            counts.merge(name, 1, Integer::sum);
+            if (i < 7)
+                sequence.append(name);
+        }
+        assertEquals(50, (int) counts.get("a"));
+        assertEquals(10, (int) counts.get("b"));
+        assertEquals(10, (int) counts.get("c"));
+        assertEquals("aabacaa", sequence.toString()); // smooth: the heavy service is interleaved
+    }
+
+    @Test
+    public void recovery() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(Balancer.Strategy.LEAST_OUTSTANDING);
+        balancer.setRecoveryPeriod(50L);
+        boolean[] broken = { true };
+        Echo failing = text -> {
+            if (broken[0])
+                throw new IOException("down");
+            return "failing:" + text;
+        };
+        balancer.addService(failing);
+        balancer.addService(new SimulatedEcho("ok", 0));
+        for (int i = 0; i < 10; i++)
+            assertEquals("ok:x", balancer.execute(service -> service.echo("x")));
+        broken[0] = false;
+        Thread.sleep(200L);
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < 20; i++)
+            names.add(balancer.execute(service -> service.echo("x")).split(":")[0]);
+        assertTrue(names.contains("failing"));
+        balancer.stop();
+    }
+
+    private int failures(Balancer<Echo> balancer, int calls) {
+        int failures = 0;
+        for (int i = 0; i < calls; i++) {
+            try {
+                balancer.execute(service -> service.echo("x"));
+            } catch (IOException ex) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private List<HealthNotification> listen(Balancer<Echo> balancer) {
+        List<HealthNotification> notifications = new CopyOnWriteArrayList<>();
+        NotificationCenter center = new NotificationCenter();
+        center.addNotificationListener(HealthNotification.class, notifications::add);
+        balancer.setNotificationCenter(center);
+        return notifications;
+    }
+
+    @Test
+    public void consecutiveFailures() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(Balancer.Strategy.LEAST_OUTSTANDING);
+        balancer.setConsecutiveFailures(3);
+        ScheduledEcho flaky = new ScheduledEcho("flaky", n -> n % 3 != 2); // fail, fail, succeed
+        balancer.addService(flaky);
+        List<HealthNotification> notifications = listen(balancer);
+        balancer.start();
+
+        assertEquals(20, failures(balancer, 30));
+        assertFalse(balancer.isEjected(flaky));
+
+        flaky.schedule = n -> true;
+        assertEquals(3, failures(balancer, 3));
+        assertTrue(balancer.isEjected(flaky));
+        assertEquals(1, balancer.getEjectionCount());
+        assertEquals(30 + 3, flaky.calls.get());
+        assertThrows(IOException.class, () -> balancer.execute(service -> service.echo("x")));
+        assertEquals(30 + 3, flaky.calls.get());
+        assertEquals(1, notifications.size());
+        assertEquals(HealthNotification.State.EJECTED, notifications.get(0).getState());
+        assertSame(flaky, notifications.get(0).getService());
+        balancer.stop();
+    }
+
+    @Test
+    public void errorRate() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setConsecutiveFailures(0);
+        balancer.setErrorRateThreshold(0.5);
+        balancer.setErrorRateMinimumCalls(10);
+        ScheduledEcho flaky = new ScheduledEcho("flaky", n -> n % 2 == 1);
+        balancer.addService(flaky);
+        balancer.setTimeout(10L);
+        balancer.start();
+
+        assertEquals(4, failures(balancer, 9));
+        assertFalse(balancer.isEjected(flaky));
+        failures(balancer, 1);
+        assertTrue(balancer.isEjected(flaky));
+        balancer.stop();
+    }
+
+    /*
+     * Only IOException counts as a failure.  Other exceptions neither eject a service nor reset its count of
+     * consecutive failures.
+     */
+    @Test
+    public void otherExceptions() throws Exception {
+        for (Balancer.Strategy strategy : new Balancer.Strategy[] { Balancer.Strategy.EXCLUSIVE, Balancer.Strategy.LEAST_OUTSTANDING }) {
+            EchoBalancer balancer = new EchoBalancer();
+            balancer.setStrategy(strategy);
+            balancer.setConsecutiveFailures(2);
+            balancer.setTimeout(10L);
+            ScheduledEcho down = new ScheduledEcho("down", n -> true);
+            balancer.addService(down);
+            balancer.start();
+
+            for (int i = 0; i < 5; i++)
+                assertThrows(IllegalArgumentException.class, () -> balancer.execute(service -> {
+                    throw new IllegalArgumentException();
+                }));
+            assertFalse(balancer.isEjected(down));
+            assertThrows(IOException.class, () -> balancer.execute(service -> service.echo("x")));
+            assertThrows(IllegalArgumentException.class, () -> balancer.execute(service -> {
+                throw new IllegalArgumentException();
+            }));
+            assertFalse(balancer.isEjected(down));
+            assertThrows(IOException.class, () -> balancer.execute(service -> service.echo("x")));
+            assertTrue(balancer.isEjected(down));
+            assertEquals(1, balancer.getEjectionCount());
+            balancer.stop();
+        }
+    }
+
+    /*
+     * While the service stays down every failed attempt to reinstate it doubles the ejection time, up to
+     * maxEjectionTime.  The balancer's clock only moves when the test moves it.
+     */
+    @Test
+    public void ejectionBackoff() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        AtomicLong now = new AtomicLong();
+        balancer.setClock(now::get);
+        balancer.setStrategy(Balancer.Strategy.POWER_OF_TWO);
+        balancer.setRecoveryPeriod(40L);
+        balancer.setMaxEjectionTime(320L);
+        balancer.setHealthCheckInterval(60000L);
+        ScheduledEcho down = new ScheduledEcho("down", n -> true);
+        List<Long> probes = new CopyOnWriteArrayList<>();
+        balancer.setHealthCheck(service -> {
+            probes.add(now.get());
+            return service != down || !down.schedule.test(0);
+        });
+        balancer.addService(down);
+        balancer.addService(new SimulatedEcho("ok", 0));
+        List<HealthNotification> notifications = listen(balancer);
+        balancer.start();
+
+        while (!balancer.isEjected(down))
+            balancer.execute(service -> service.echo("x"));
+        List<Long> due = Arrays.asList(40L, 120L, 280L, 600L, 920L);
+        for (long time : due) {
+            int count = probes.size();
+            now.set(time - 1);
+            Thread.sleep(50L); // several rounds of the recovery thread
+            assertEquals(count, probes.size());
+            now.set(time);
+            waitFor(() -> probes.size() > count, 5000L);
+        }
+        assertEquals(due, probes);
+
+        down.schedule = n -> false;
+        now.set(920L + 320L);
+        waitFor(() -> notifications.size() >= 2, 5000L);
+        assertFalse(balancer.isEjected(down));
+        assertEquals(Arrays.asList(HealthNotification.State.EJECTED, HealthNotification.State.REINSTATED),
+                notifications.stream().map(HealthNotification::getState).collect(java.util.stream.Collectors.toList()));
+        assertEquals(1, balancer.getReinstatementCount());
+        assertEquals(due.size(), balancer.getHealthCheckFailureCount());
+        balancer.stop();
+    }
+
+    private static void waitFor(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5L);
+    }
+
+    @Test
+    public void ejectionCap() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(Balancer.Strategy.LEAST_OUTSTANDING);
+        balancer.setMaxEjectionPercent(50);
+        for (int i = 0; i < 4; i++)
+            balancer.addService(new ScheduledEcho("down" + i, n -> true));
+        balancer.start();
+
+        assertEquals(20, failures(balancer, 20));
+        assertEquals(2, balancer.getEjectedCount());
+        balancer.stop();
+    }
+
+    /*
+     * The health check takes a service out of rotation before any call fails and puts it back once it passes.
+     */
+    @Test
+    public void activeHealthCheck() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setRecoveryPeriod(30L);
+        balancer.setHealthCheckInterval(20L);
+        ScheduledEcho a = new ScheduledEcho("a", n -> false);
+        ScheduledEcho b = new ScheduledEcho("b", n -> false);
+        Set<Echo> unhealthy = ConcurrentHashMap.newKeySet();
+        balancer.setHealthCheck(service -> !unhealthy.contains(service));
+        balancer.addService(a);
+        balancer.addService(b);
+        List<HealthNotification> notifications = listen(balancer);
+        balancer.start();
+
+        unhealthy.add(a);
+        long deadline = System.currentTimeMillis() + 2000L;
+        while (!balancer.isEjected(a) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5L);
+        assertTrue(balancer.isEjected(a));
+        for (int i = 0; i < 10; i++)
+            assertEquals("b:x", balancer.execute(service -> service.echo("x")));
+
+        unhealthy.clear();
+        while (notifications.size() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5L);
+        assertFalse(balancer.isEjected(a));
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < 10; i++)
+            names.add(balancer.execute(service -> service.echo("x")).split(":")[0]);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), names);
+        assertEquals(HealthNotification.State.EJECTED, notifications.get(0).getState());
+        assertEquals("health check failed", notifications.get(0).getReason());
+        assertEquals(HealthNotification.State.REINSTATED, notifications.get(1).getState());
+        balancer.stop();
+    }
+
+    @Test
+    public void getService() throws Exception {
+        EchoBalancer balancer = new EchoBalancer();
+        balancer.setStrategy(Balancer.Strategy.WEIGHTED_ROUND_ROBIN);
+        ScheduledEcho down = new ScheduledEcho("down", n -> true);
+        balancer.addService(down);
+        ScheduledEcho ok = new ScheduledEcho("ok", n -> false);
+        balancer.addService(ok);
+        balancer.start();
+
+        Echo echo = balancer.getService();
+        assertFalse(java.lang.reflect.Proxy.isProxyClass(echo.getClass()));
+        assertSame(echo.getClass(), balancer.getService().getClass());
+        for (int i = 0; i < 4; i++)
+            assertEquals("ok:x", echo.echo("x"));
+        assertTrue(balancer.isEjected(down)); // the IOException reaches the balancer
+
+        balancer.recover(ok);
+        IOException ex = assertThrows(IOException.class, () -> echo.echo("x"));
+        assertEquals("No service available", ex.getMessage());
+        balancer.stop();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyLimiterTest {
+
+    /*
+     * A downstream that serves capacity calls at once in 10ms; beyond that calls queue and the round trip
+     * time grows in proportion.
+     */
+    private static long rtt(int inflight, int capacity) {
+        long base = TimeUnit.MILLISECONDS.toNanos(10);
+        return inflight <= capacity ? base : base * inflight / capacity;
+    }
+
+    /*
+     * Callers that want 200 calls in progress, except for a short lull every 500 calls, against a downstream
+     * whose capacity is 50 for the first half and 20 for the second half.
+     * @return average limit over the last quarter of each half.
+     */
+    private double[] simulate(ConcurrencyLimit limit) {
+        double[] sums = new double[2];
+        for (int step = 0; step < 40000; step++) {
+            int half = step / 20000;
+            int capacity = (half == 0) ? 50 : 20;
+            int demand = (step % 500 < 10) ? 5 : 200;
+            int inflight = Math.min(limit.getLimit(), demand);
+            limit.onSample(rtt(inflight, capacity), inflight, false);
+            if (step % 20000 >= 15000)
+                sums[half] += limit.getLimit();
+        }
+        return new double[] { sums[0] / 5000, sums[1] / 5000 };
+    }
+
+    private void assertConverges(ConcurrencyLimit limit) {
+        double[] averages = simulate(limit);
+        assertTrue(averages[0] >= 50 && averages[0] <= 100, "capacity 50: " + averages[0]);
+        assertTrue(averages[1] >= 20 && averages[1] <= 40, "capacity 20: " + averages[1]);
+    }
+
+    @Test
+    public void aimd() {
+        AIMDLimit limit = new AIMDLimit();
+        limit.setTimeout(TimeUnit.MILLISECONDS.toNanos(15)); // the downstream times out at 1.5 times capacity
+        assertConverges(limit);
+    }
+
+    @Test
+    public void vegas() {
+        assertConverges(new VegasLimit());
+    }
+
+    @Test
+    public void gradient() {
+        assertConverges(new GradientLimit());
+    }
+
+    @Test
+    public void aimdBacksOffOnDrops() {
+        AIMDLimit limit = new AIMDLimit(100);
+        for (int i = 0; i < 10; i++)
+            limit.onSample(TimeUnit.MILLISECONDS.toNanos(1), 100, true);
+        assertEquals(34, limit.getLimit()); // 100 * 0.9^10
+        for (int i = 0; i < 1000; i++)
+            limit.onSample(TimeUnit.MILLISECONDS.toNanos(1), 5, false);
+        assertEquals(34, limit.getLimit()); // not grown without load
+    }
+
+    @Test
+    public void nonBlocking() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("nonBlocking", ConcurrencyLimit.fixed(2));
+        ConcurrencyLimiter.Permit first = limiter.tryAcquire();
+        ConcurrencyLimiter.Permit second = limiter.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.tryAcquire());
+        assertEquals(2, limiter.getInflight());
+        assertThrows(RejectedExecutionException.class, () -> limiter.call(() -> "x"));
+
+        first.success();
+        first.success(); // no effect
+        assertEquals(1, limiter.getInflight());
+        assertEquals("x", limiter.call(() -> "x"));
+        assertThrows(TimeoutException.class, () -> limiter.call(() -> {
+            throw new TimeoutException();
+        }));
+        second.ignore();
+        assertEquals(0, limiter.getInflight());
+        assertEquals(4, limiter.getAcceptedCount());
+        assertEquals(2, limiter.getRejectedCount());
+        assertEquals(1, limiter.getDroppedCount());
+    }
+
+    @Test
+    public void blocking() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("blocking", ConcurrencyLimit.fixed(1));
+        ConcurrencyLimiter.Permit held = limiter.acquire(0, TimeUnit.MILLISECONDS);
+        assertNotNull(held);
+        long start = System.nanoTime();
+        assertNull(limiter.acquire(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<ConcurrencyLimiter.Permit> waiting = executor.submit(() -> limiter.acquire(5, TimeUnit.SECONDS));
+        Thread.sleep(50L);
+        assertFalse(waiting.isDone());
+        held.success();
+        ConcurrencyLimiter.Permit permit = waiting.get(1, TimeUnit.SECONDS);
+        assertNotNull(permit);
+        permit.success();
+        executor.shutdown();
+    }
+
+    @Test
+    public void limitRaised() throws Exception {
+        // a limit of 1 that rises to 3 with the first sample
+        ConcurrencyLimit rising = new ConcurrencyLimit() {
+            volatile int limit = 1;
+
+            @Override
+            public int getLimit() {
+                return limit;
+            }
+
+            @Override
+            public void onSample(long rtt, int inflight, boolean dropped) {
+                limit = 3;
+            }
+        };
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("limitRaised", rising);
+        ConcurrencyLimiter.Permit held = limiter.tryAcquire();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<ConcurrencyLimiter.Permit>> waiting = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            waiting.add(executor.submit(() -> limiter.acquire(5, TimeUnit.SECONDS)));
+        Thread.sleep(50L);
+        held.success();
+        // both waiters are admitted, not just the one woken by the release
+        for (Future<ConcurrencyLimiter.Permit> future : waiting)
+            assertNotNull(future.get(1, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getInflight());
+        executor.shutdown();
+    }
+
+    @Test
+    public void partitionShares() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("partitionShares", ConcurrencyLimit.fixed(10))
+                .partition("batch", 0.6)
+                .partition("interactive", 0.4);
+        assertThrows(IllegalArgumentException.class, () -> limiter.partition("reports", 0.1));
+        limiter.partition("batch", 0.5); // replacing a share counts only the new one
+        limiter.partition("reports", 0.1);
+        assertThrows(IllegalArgumentException.class, () -> limiter.partition("interactive", 0.5));
+        assertEquals(4, limiter.getLimit("interactive"));
+    }
+
+    @Test
+    public void partitioned() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("partitioned", ConcurrencyLimit.fixed(10))
+                .partition("batch", 0.5)
+                .partition("interactive", 0.2);
+        // unpartitioned calls get only what is not reserved
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            permits.add(limiter.tryAcquire());
+        assertFalse(permits.contains(null));
+        assertNull(limiter.tryAcquire());
+        permits.forEach(ConcurrencyLimiter.Permit::success);
+
+        // batch calls get their share and what is not reserved
+        permits.clear();
+        for (int i = 0; i < 8; i++)
+            permits.add(limiter.tryAcquire("batch"));
+        assertFalse(permits.contains(null));
+        assertNull(limiter.tryAcquire("batch"));
+        assertNull(limiter.tryAcquire());
+
+        // interactive calls still get their share while batch calls fill the rest
+        assertNotNull(limiter.tryAcquire("interactive"));
+        assertNotNull(limiter.tryAcquire("interactive"));
+        assertNull(limiter.tryAcquire("interactive"));
+        assertEquals(10, limiter.getInflight());
+        assertEquals(2, limiter.getInflight("interactive"));
+        assertEquals(2, limiter.getLimit("interactive"));
+
+        // batch is above its share, so a released permit is not reserved for it
+        permits.get(0).success();
+        assertNotNull(limiter.tryAcquire());
+        assertEquals(10, limiter.getInflight());
+        assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire("unknown"));
+    }
+
+    @Test
+    public void registry() {
+        Supplier<ConcurrencyLimit> limit = VegasLimit::new;
+        ConcurrencyLimiter[] created = new ConcurrencyLimiter[1];
+        java.util.function.Consumer<ConcurrencyLimiter> listener = l -> {
+            if (l.getName().equals("registry"))
+                created[0] = l;
+        };
+        ConcurrencyLimiter.addListener(listener);
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.limiter("registry", limit);
+        assertSame(limiter, ConcurrencyLimiter.limiter("registry", limit));
+        assertSame(limiter, created[0]);
+        assertTrue(ConcurrencyLimiter.getLimiters().contains(limiter));
+        ConcurrencyLimiter.removeListener(listener);
+    }
+}
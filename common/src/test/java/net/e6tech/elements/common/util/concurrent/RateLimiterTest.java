@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+
+    // time only moves when the test advances it or a caller sleeps.
+    static class VirtualClock implements RateLimiter.Clock {
+        final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+        @Override
+        public long nanoTime() {
+            return now.get();
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            now.addAndGet(nanos);
+        }
+
+        void advance(long millis) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    @Test
+    public void burstThenRate() {
+        VirtualClock clock = new VirtualClock();
+        RateLimiter limiter = new RateLimiter(10, 5, clock); // one permit every 100ms
+        assertEquals(5, limiter.getAvailablePermits());
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(0, limiter.getAvailablePermits());
+
+        clock.advance(99);
+        assertFalse(limiter.tryAcquire());
+        clock.advance(1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        // one second of traffic at a permit every millisecond is held to the rate
+        int granted = 0;
+        for (int i = 0; i < 1000; i++) {
+            clock.advance(1);
+            if (limiter.tryAcquire())
+                granted++;
+        }
+        assertEquals(10, granted);
+
+        clock.advance(10000);
+        assertEquals(5, limiter.getAvailablePermits()); // the burst does not grow past its size
+        assertTrue(limiter.tryAcquire(5));
+        assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire(6));
+        assertEquals(5 + 1 + 10 + 5, limiter.getAcquiredCount());
+    }
+
+    @Test
+    public void acquireWithTimeout() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        RateLimiter limiter = new RateLimiter(10, 1, clock);
+        long start = clock.nanoTime();
+        assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        assertTrue(limiter.acquire(100, TimeUnit.MILLISECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), clock.nanoTime() - start);
+
+        assertFalse(limiter.acquire(99, TimeUnit.MILLISECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), clock.nanoTime() - start); // gave up without sleeping
+        assertEquals(1, limiter.getRejectedCount());
+
+        // reservations queue up behind each other
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.tryReserve(1, 1, TimeUnit.SECONDS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.tryReserve(1, 1, TimeUnit.SECONDS));
+        assertEquals(-1, limiter.tryReserve(1, 250, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        RateLimiter limiter = new RateLimiter(1, 100, clock);
+        AtomicInteger granted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 1000; i++)
+                    if (limiter.tryAcquire())
+                        granted.incrementAndGet();
+                return null;
+            }));
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        assertEquals(100, granted.get());
+        assertEquals(8 * 1000 - 100, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void keyed() {
+        VirtualClock clock = new VirtualClock();
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(10, 2, 3, clock);
+        assertTrue(limiters.tryAcquire("a", 2));
+        assertFalse(limiters.tryAcquire("a"));
+        assertTrue(limiters.tryAcquire("b", 2)); // keys are limited separately
+        assertSame(limiters.get("a"), limiters.get("a"));
+
+        for (String key : new String[] { "c", "d", "e" })
+            limiters.tryAcquire(key);
+        assertEquals(3, limiters.size());
+
+        // idle for the refill time, the limiter is dropped; a new one behaves the same as a refilled one
+        clock.advance(200);
+        assertEquals(0, limiters.size());
+        assertTrue(limiters.tryAcquire("a", 2));
+    }
+
+    @Test
+    public void threadPool() throws Exception {
+        ThreadPool pool = ThreadPool.fixedThreadPool("rateLimit", 4)
+                .rateLimit(new RateLimiter(100, 1), 1, TimeUnit.SECONDS);
+        List<Long> started = new CopyOnWriteArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            futures.add(pool.submit(() -> started.add(System.nanoTime())));
+        for (Future<?> future : futures)
+            future.get();
+        // 4 threads, but tasks start 10ms apart
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(started.get(19) - started.get(0));
+        assertTrue(elapsed >= 180L, "elapsed " + elapsed);
+
+        pool.rateLimit(new RateLimiter(1, 1), 0, TimeUnit.SECONDS);
+        pool.execute(() -> {});
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {}));
+        assertEquals(1, pool.getRejectedCount());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.common.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThreadPoolTest {
+
+    @Test
+    public void registry() {
+        ThreadPool pool = ThreadPool.fixedThreadPool("registry", 2);
+        assertSame(pool, ThreadPool.fixedThreadPool("registry", 2));
+        assertNotSame(pool, ThreadPool.cachedThreadPool("registry"));
+        assertEquals(ThreadPool.FIXED, pool.getKind());
+        List<ThreadPool> notified = new ArrayList<>();
+        ThreadPool.addListener(notified::add);
+        assertTrue(notified.contains(pool));
+        ThreadPool created = ThreadPool.cachedThreadPool("registryNew");
+        assertTrue(notified.contains(created));
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        ThreadPool pool = ThreadPool.fixedThreadPool("statistics", 2);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            futures.add(pool.submit(() -> {
+                Thread.sleep(20L);
+                return null;
+            }));
+        Thread.sleep(5L);
+        assertEquals(2, pool.getActiveCount());
+        assertTrue(pool.getQueueLength() > 0);
+        assertEquals(1d, pool.getSaturation());
+        for (Future<?> future : futures)
+            future.get();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertEquals(10, pool.getSubmittedCount());
+        assertEquals(10, pool.getCompletedCount());
+        assertTrue(pool.getExecutionTime().getMean(TimeUnit.MILLISECONDS) >= 19d);
+        // 10 tasks of 20ms on 2 threads: the last ones wait about 80ms
+        assertTrue(pool.getWaitTime().getMax(TimeUnit.MILLISECONDS) >= 60d);
+    }
+
+    @Test
+    public void rejections() throws Exception {
+        ThreadPool pool = ThreadPool.rateLimitedThreadPool("rejections", 1, 1, 60, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        pool.execute(() -> await(latch));
+        pool.execute(() -> await(latch));
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> await(latch)));
+        assertEquals(1, pool.getRejectedCount());
+        assertEquals(1d, pool.getSaturation());
+
+        pool.rejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+        pool.execute(() -> await(latch));
+        assertEquals(2, pool.getRejectedCount());
+        latch.countDown();
+    }
+
+    @Test
+    public void shutdownNow() throws Exception {
+        ThreadPool pool = ThreadPool.fixedThreadPool("shutdownNow", 1);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runnable waiting = () -> {};
+        pool.execute(waiting);
+        Future<?> future = pool.submit(() -> {});
+        started.await();
+        List<Runnable> tasks = pool.shutdownNow();
+        assertEquals(2, tasks.size());
+        assertSame(waiting, tasks.get(0));
+        assertSame(future, tasks.get(1));
+    }
+
+    @Test
+    public void rateDelayedRejected() throws Exception {
+        ThreadPool pool = ThreadPool.rateLimitedThreadPool("rateDelayedRejected", 1, 1, 60, 1)
+                .rateLimit(new RateLimiter(20, 1), 1, TimeUnit.SECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        Future<?> running = pool.submit(() -> await(latch));
+        Future<?> queued = pool.submit(() -> {});
+        Future<?> rejected = pool.submit(() -> {}); // due when the thread is busy and the queue is full
+        assertThrows(CancellationException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getRejectedCount());
+        latch.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+
+    @Test
+    public void rateDelayedShutdown() throws Exception {
+        ThreadPool pool = ThreadPool.fixedThreadPool("rateDelayedShutdown", 1)
+                .rateLimit(new RateLimiter(1, 1), 10, TimeUnit.SECONDS);
+        Future<?> first = pool.submit(() -> {});
+        Future<?> waiting = pool.submit(() -> {});
+        pool.shutdown();
+        assertTrue(waiting.isCancelled());
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        first.get();
+        assertThrows(RejectedExecutionException.class, () -> pool.submit(() -> {}));
+
+        ThreadPool other = ThreadPool.fixedThreadPool("rateDelayedShutdownNow", 1)
+                .rateLimit(new RateLimiter(1, 1), 10, TimeUnit.SECONDS);
+        other.submit(() -> {}).get();
+        Future<?> pending = other.submit(() -> {});
+        assertEquals(Collections.singletonList(pending), other.shutdownNow());
+        assertFalse(pending.isDone());
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.cache.CacheStatistics;
+import net.e6tech.elements.jmx.JMXService;
+
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Exposes a CacheStatistics as an MXBean.  Call register() once, for example when the JMX service starts,
+ * to register every existing and future cache under net.e6tech:type=Cache,name=cache name.
+ */
+public class CacheMonitor implements CacheMonitorMXBean {
+    public static final String OBJECT_NAME_PREFIX = "net.e6tech:type=Cache,name=";
+
+    private static Consumer<CacheStatistics> registrar;
+
+    private CacheStatistics statistics;
+
+    public CacheMonitor(CacheStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public static synchronized void register() {
+        if (registrar != null)
+            return;
+        registrar = statistics -> JMXService.registerMBean(new CacheMonitor(statistics), objectName(statistics.getName()));
+        CacheStatistics.addListener(registrar);
+    }
+
+    public static synchronized void unregister() {
+        if (registrar != null) {
+            CacheStatistics.removeListener(registrar);
+            registrar = null;
+        }
+    }
+
+    public static String objectName(String cacheName) {
+        String value = cacheName;
+        if (cacheName.matches(".*[,=:\"*?\\n].*"))
+            value = ObjectName.quote(cacheName);
+        return OBJECT_NAME_PREFIX + value;
+    }
+
+    @Override
+    public String getName() {
+        return statistics.getName();
+    }
+
+    @Override
+    public long getHitCount() {
+        return statistics.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return statistics.getMissCount();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return statistics.getHitRatio();
+    }
+
+    @Override
+    public long getNearHitCount() {
+        return statistics.getNearHitCount();
+    }
+
+    @Override
+    public long getNearMissCount() {
+        return statistics.getNearMissCount();
+    }
+
+    @Override
+    public double getNearHitRatio() {
+        return statistics.getNearHitRatio();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return statistics.getLoadCount();
+    }
+
+    @Override
+    public long getFailedLoadCount() {
+        return statistics.getFailedLoadCount();
+    }
+
+    @Override
+    public long getCoalescedLoadCount() {
+        return statistics.getCoalescedLoadCount();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return statistics.getRefreshCount();
+    }
+
+    @Override
+    public long getFailedRefreshCount() {
+        return statistics.getFailedRefreshCount();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return statistics.getStaleHitCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return statistics.getEvictionCount();
+    }
+
+    @Override
+    public long getExpirationCount() {
+        return statistics.getExpirationCount();
+    }
+
+    @Override
+    public long getSize() {
+        return statistics.getSize();
+    }
+
+    @Override
+    public int getNearCacheSize() {
+        return statistics.getNearCacheSize();
+    }
+
+    @Override
+    public double getAverageLoadTime() {
+        return statistics.getAverageLoadTime(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getMedianLoadTime() {
+        return statistics.getLoadTimePercentile(50, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getLoadTime95() {
+        return statistics.getLoadTimePercentile(95, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getLoadTime99() {
+        return statistics.getLoadTimePercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getMaxLoadTime() {
+        return statistics.getLoadTime().getMax(TimeUnit.MILLISECONDS);
+    }
+
+    public String toString() {
+        return statistics.toString();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+/**
+ * Statistics of a cache built by a CacheProvider and used through CacheFacades.  Times are in milliseconds.
+ */
+public interface CacheMonitorMXBean {
+
+    String getName();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRatio();
+
+    long getNearHitCount();
+
+    long getNearMissCount();
+
+    double getNearHitRatio();
+
+    long getLoadCount();
+
+    long getFailedLoadCount();
+
+    long getCoalescedLoadCount();
+
+    long getRefreshCount();
+
+    long getFailedRefreshCount();
+
+    long getStaleHitCount();
+
+    long getEvictionCount();
+
+    long getExpirationCount();
+
+    /* counts the entries of the provider cache, which may take a while for a large cache. */
+    long getSize();
+
+    int getNearCacheSize();
+
+    double getAverageLoadTime();
+
+    double getMedianLoadTime();
+
+    double getLoadTime95();
+
+    double getLoadTime99();
+
+    double getMaxLoadTime();
+}
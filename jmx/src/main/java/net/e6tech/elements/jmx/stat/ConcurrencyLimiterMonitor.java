@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.util.concurrent.ConcurrencyLimiter;
+import net.e6tech.elements.jmx.JMXService;
+
+import javax.management.ObjectName;
+import java.util.function.Consumer;
+
+/**
+ * Exposes a ConcurrencyLimiter as an MXBean.  Call register() once to register every existing and future
+ * limiter created by ConcurrencyLimiter.limiter under net.e6tech:type=ConcurrencyLimiter,name=limiter name.
+ */
+public class ConcurrencyLimiterMonitor implements ConcurrencyLimiterMonitorMXBean {
+    public static final String OBJECT_NAME_PREFIX = "net.e6tech:type=ConcurrencyLimiter,name=";
+
+    private static Consumer<ConcurrencyLimiter> registrar;
+
+    private ConcurrencyLimiter limiter;
+
+    public ConcurrencyLimiterMonitor(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public static synchronized void register() {
+        if (registrar != null)
+            return;
+        registrar = limiter -> JMXService.registerMBean(new ConcurrencyLimiterMonitor(limiter), objectName(limiter));
+        ConcurrencyLimiter.addListener(registrar);
+    }
+
+    public static synchronized void unregister() {
+        if (registrar != null) {
+            ConcurrencyLimiter.removeListener(registrar);
+            registrar = null;
+        }
+    }
+
+    public static String objectName(ConcurrencyLimiter limiter) {
+        String value = limiter.getName();
+        if (value.matches(".*[,=:\"*?\\n].*"))
+            value = ObjectName.quote(value);
+        return OBJECT_NAME_PREFIX + value;
+    }
+
+    @Override
+    public String getName() {
+        return limiter.getName();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return limiter.getConcurrencyLimit().getAlgorithm();
+    }
+
+    @Override
+    public int getLimit() {
+        return limiter.getLimit();
+    }
+
+    @Override
+    public int getInflight() {
+        return limiter.getInflight();
+    }
+
+    @Override
+    public double getUtilization() {
+        int limit = limiter.getLimit();
+        return (limit == 0) ? 0d : (double) limiter.getInflight() / limit;
+    }
+
+    @Override
+    public long getAcceptedCount() {
+        return limiter.getAcceptedCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return limiter.getRejectedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return limiter.getDroppedCount();
+    }
+
+    public String toString() {
+        return limiter.toString();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.util.concurrent.ThreadPool;
+import net.e6tech.elements.jmx.JMXService;
+
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Exposes a ThreadPool as an MXBean.  Call register() once to register every existing and future pool
+ * created by ThreadPool's static methods under net.e6tech:type=ThreadPool,kind=pool kind,name=pool name.
+ */
+public class ThreadPoolMonitor implements ThreadPoolMonitorMXBean {
+    public static final String OBJECT_NAME_PREFIX = "net.e6tech:type=ThreadPool,kind=";
+
+    private static Consumer<ThreadPool> registrar;
+
+    private ThreadPool threadPool;
+
+    public ThreadPoolMonitor(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    public static synchronized void register() {
+        if (registrar != null)
+            return;
+        registrar = pool -> JMXService.registerMBean(new ThreadPoolMonitor(pool), objectName(pool));
+        ThreadPool.addListener(registrar);
+    }
+
+    public static synchronized void unregister() {
+        if (registrar != null) {
+            ThreadPool.removeListener(registrar);
+            registrar = null;
+        }
+    }
+
+    public static String objectName(ThreadPool pool) {
+        String value = pool.getName();
+        if (value.matches(".*[,=:\"*?\\n].*"))
+            value = ObjectName.quote(value);
+        return OBJECT_NAME_PREFIX + pool.getKind() + ",name=" + value;
+    }
+
+    @Override
+    public String getName() {
+        return threadPool.getName();
+    }
+
+    @Override
+    public String getKind() {
+        return threadPool.getKind();
+    }
+
+    @Override
+    public int getQueueLength() {
+        return threadPool.getQueueLength();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return threadPool.getActiveCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return threadPool.getPoolSize();
+    }
+
+    @Override
+    public int getLargestPoolSize() {
+        return threadPool.getLargestPoolSize();
+    }
+
+    @Override
+    public int getMaximumPoolSize() {
+        return threadPool.getMaximumPoolSize();
+    }
+
+    @Override
+    public double getSaturation() {
+        return threadPool.getSaturation();
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return threadPool.getSubmittedCount();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return threadPool.getCompletedCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return threadPool.getRejectedCount();
+    }
+
+    @Override
+    public double getAverageWaitTime() {
+        return threadPool.getWaitTime().getMean(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getWaitTime95() {
+        return threadPool.getWaitTime().getPercentile(95, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getWaitTime99() {
+        return threadPool.getWaitTime().getPercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getMaxWaitTime() {
+        return threadPool.getWaitTime().getMax(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getAverageExecutionTime() {
+        return threadPool.getExecutionTime().getMean(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getExecutionTime95() {
+        return threadPool.getExecutionTime().getPercentile(95, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getExecutionTime99() {
+        return threadPool.getExecutionTime().getPercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double getMaxExecutionTime() {
+        return threadPool.getExecutionTime().getMax(TimeUnit.MILLISECONDS);
+    }
+
+    public String toString() {
+        return threadPool.toString();
+    }
+}
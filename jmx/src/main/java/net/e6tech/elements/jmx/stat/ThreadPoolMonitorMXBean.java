@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+/**
+ * Statistics of a ThreadPool.  Times are in milliseconds.
+ */
+public interface ThreadPoolMonitorMXBean {
+
+    String getName();
+
+    String getKind();
+
+    int getQueueLength();
+
+    int getActiveCount();
+
+    int getPoolSize();
+
+    int getLargestPoolSize();
+
+    int getMaximumPoolSize();
+
+    double getSaturation();
+
+    long getSubmittedCount();
+
+    long getCompletedCount();
+
+    long getRejectedCount();
+
+    double getAverageWaitTime();
+
+    double getWaitTime95();
+
+    double getWaitTime99();
+
+    double getMaxWaitTime();
+
+    double getAverageExecutionTime();
+
+    double getExecutionTime95();
+
+    double getExecutionTime99();
+
+    double getMaxExecutionTime();
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.cache.CacheFacade;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheMonitorTest {
+
+    @Test
+    public void basic() throws Exception {
+        CacheMonitor.register();
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("monitor") {}
+                .initPool(pool -> pool.setMaxEntries(10));
+        for (int i = 0; i < 20; i++)
+            facade.get("key" + i, () -> {
+                Thread.sleep(5L);
+                return "value";
+            });
+        facade.get("key19");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CacheMonitor.objectName(facade.getName()));
+        assertEquals(20L, server.getAttribute(name, "LoadCount"));
+        assertEquals(1L, server.getAttribute(name, "HitCount"));
+        assertTrue((Long) server.getAttribute(name, "Size") <= 10L);
+        assertTrue((Double) server.getAttribute(name, "MedianLoadTime") >= 4d);
+        Thread.sleep(200L); // evictions are reported asynchronously
+        assertTrue((Long) server.getAttribute(name, "EvictionCount") >= 10L);
+    }
+}
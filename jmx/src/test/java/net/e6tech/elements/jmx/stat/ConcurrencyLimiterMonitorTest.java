@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.util.concurrent.ConcurrencyLimit;
+import net.e6tech.elements.common.util.concurrent.ConcurrencyLimiter;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ConcurrencyLimiterMonitorTest {
+
+    @Test
+    public void basic() throws Exception {
+        ConcurrencyLimiterMonitor.register();
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.limiter("monitor", () -> ConcurrencyLimit.fixed(1));
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        assertNull(limiter.tryAcquire());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ConcurrencyLimiterMonitor.objectName(limiter));
+        assertEquals("Fixed", server.getAttribute(name, "Algorithm"));
+        assertEquals(1, server.getAttribute(name, "Limit"));
+        assertEquals(1, server.getAttribute(name, "Inflight"));
+        assertEquals(1d, server.getAttribute(name, "Utilization"));
+        assertEquals(1L, server.getAttribute(name, "RejectedCount"));
+        permit.success();
+        assertEquals(0, server.getAttribute(name, "Inflight"));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.jmx.stat;
+
+import net.e6tech.elements.common.util.concurrent.ThreadPool;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ThreadPoolMonitorTest {
+
+    @Test
+    public void basic() throws Exception {
+        ThreadPoolMonitor.register();
+        ThreadPool pool = ThreadPool.fixedThreadPool("monitor", 1);
+        Future<?> future = null;
+        for (int i = 0; i < 5; i++)
+            future = pool.submit(() -> {
+                Thread.sleep(10L);
+                return null;
+            });
+        future.get();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ThreadPoolMonitor.objectName(pool));
+        assertEquals(5L, server.getAttribute(name, "SubmittedCount"));
+        assertEquals(5L, server.getAttribute(name, "CompletedCount"));
+        assertEquals(0L, server.getAttribute(name, "RejectedCount"));
+        assertTrue((Double) server.getAttribute(name, "AverageExecutionTime") >= 9d);
+        assertTrue((Double) server.getAttribute(name, "MaxWaitTime") >= 30d);
+    }
+}
@@ -0,0 +1,800 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.network.cluster.cache;
+
+import akka.actor.*;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.*;
+import akka.pattern.Patterns;
+import net.e6tech.elements.common.cache.CacheConfiguration;
+import net.e6tech.elements.common.cache.CacheStatistics;
+import net.e6tech.elements.common.logging.Logger;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+
+import javax.cache.Cache;
+import javax.cache.CacheException;
+import javax.cache.CacheManager;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.Configuration;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.*;
+import javax.cache.integration.CompletionListener;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+import javax.cache.processor.MutableEntry;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * A cache replicated by Akka Distributed Data.  See ReplicatedCacheProvider.
+ *
+ * Reads look up a local copy of each shard, which an agent actor replaces whenever the replicator reports
+ * a change.  Writes are sent to the replicator as modify functions through the agent, which then reads the
+ * shard back before replying, so that a write is visible to reads on this node as soon as it returns.
+ *
+ * Entry listeners are called by the agent with the differences between the old and the new copy of a shard, so
+ * they see changes made on any node.  Listeners on this node see its own writes before the writes return.
+ * Entries are reported as expired when they are purged, not when their time is up.
+ */
+@SuppressWarnings("squid:S1192")
+public class ReplicatedCache<K, V> implements Cache<K, V> {
+    private static Logger logger = Logger.getLogger();
+
+    private final ReplicatedCacheManager cacheManager;
+    private final String name;
+    private final Class<K> keyClass;
+    private final Class<V> valueClass;
+    private final CacheConfiguration configuration;
+    private final long expiry;
+    private final long maxShardEntries;
+    private final long writeTimeout;
+    private final Replicator.WriteConsistency writeConsistency;
+    private final Cluster cluster;
+    private final List<Key<LWWMap<K, Entry<V>>>> keys = new ArrayList<>();
+    private final AtomicReferenceArray<Map<K, Entry<V>>> shards;
+    private final AtomicLongArray nextPurge;
+    private final ActorRef agent;
+    private final CacheStatistics statistics;
+    private final List<Registration<K, V>> registrations = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    ReplicatedCache(ReplicatedCacheManager cacheManager, String name, Class<K> keyClass, Class<V> valueClass,
+                    CacheConfiguration configuration, ReplicatedCacheProvider provider, ActorSystem system) {
+        this.cacheManager = cacheManager;
+        this.name = name;
+        this.keyClass = keyClass;
+        this.valueClass = valueClass;
+        this.configuration = configuration;
+        this.expiry = configuration.getExpiry();
+        int count = provider.getShards();
+        this.maxShardEntries = (configuration.getMaxEntries() > 0) ? Math.max(1L, configuration.getMaxEntries() / count) : Long.MAX_VALUE;
+        this.writeTimeout = provider.getWriteTimeout();
+        this.writeConsistency = provider.writeConsistency();
+        this.cluster = Cluster.get(system);
+        this.shards = new AtomicReferenceArray<>(count);
+        this.nextPurge = new AtomicLongArray(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(LWWMapKey.create("elements.cache." + name + "." + i));
+            shards.set(i, Collections.emptyMap());
+        }
+        statistics = CacheStatistics.of(name);
+        agent = system.actorOf(Props.create(Agent.class, Agent::new));
+    }
+
+    private int shard(Object key) {
+        return Math.floorMod(key.hashCode(), keys.size());
+    }
+
+    private Entry<V> entry(Object key) {
+        Entry<V> entry = shards.get(shard(key)).get(key);
+        return (entry == null || entry.isExpired(System.currentTimeMillis())) ? null : entry;
+    }
+
+    /*
+     * Runs modify in the replicator against the current content of the shard and waits for the write to be
+     * acknowledged.  Before storing anything, drops expired entries, at most every half expiry, and the
+     * entries closest to expiring when the shard is full.
+     */
+    private void update(int shard, Function<LWWMap<K, Entry<V>>, LWWMap<K, Entry<V>>> modify) {
+        if (closed)
+            throw new IllegalStateException("Cache " + name + " is closed");
+        Function<LWWMap<K, Entry<V>>, LWWMap<K, Entry<V>>> function = map -> modify.apply(trim(shard, map));
+        Future<Object> future = Patterns.ask(agent, new Write<>(shard, function), writeTimeout * 2);
+        Object reply;
+        try {
+            reply = Await.result(future, Duration.create(writeTimeout * 2, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CacheException("Cannot update cache " + name, e);
+        }
+        if (reply instanceof Status.Failure) {
+            Throwable cause = ((Status.Failure) reply).cause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new CacheException(cause);
+        }
+    }
+
+    private LWWMap<K, Entry<V>> trim(int shard, LWWMap<K, Entry<V>> map) {
+        long now = System.currentTimeMillis();
+        long purge = nextPurge.get(shard);
+        if (map.size() < maxShardEntries && now < purge)
+            return map;
+        nextPurge.set(shard, now + Math.max(1L, expiry / 2));
+        LWWMap<K, Entry<V>> trimmed = map;
+        List<Map.Entry<K, Entry<V>>> live = new ArrayList<>();
+        for (Map.Entry<K, Entry<V>> e : map.getEntries().entrySet()) {
+            if (e.getValue().isExpired(now)) {
+                trimmed = trimmed.remove(cluster, e.getKey());
+                statistics.expired();
+            } else {
+                live.add(e);
+            }
+        }
+        if (live.size() >= maxShardEntries) {
+            live.sort(Comparator.comparingLong(e -> e.getValue().expiresAt));
+            for (int i = 0; i <= live.size() - maxShardEntries; i++) {
+                trimmed = trimmed.remove(cluster, live.get(i).getKey());
+                statistics.evicted();
+            }
+        }
+        return trimmed;
+    }
+
+    private Entry<V> newEntry(V value) {
+        if (value == null)
+            throw new NullPointerException("null value");
+        return new Entry<>(value, System.currentTimeMillis() + configuration.nextExpiry());
+    }
+
+    private Map<Integer, List<K>> byShard(Collection<? extends K> keys) {
+        Map<Integer, List<K>> map = new HashMap<>();
+        for (K key : keys)
+            map.computeIfAbsent(shard(key), s -> new ArrayList<>()).add(key);
+        return map;
+    }
+
+    // the unexpired entry of key in map, or null
+    private Entry<V> current(LWWMap<K, Entry<V>> map, K key) {
+        scala.Option<Entry<V>> option = map.get(key);
+        return (option.isDefined() && !option.get().isExpired(System.currentTimeMillis())) ? option.get() : null;
+    }
+
+    /**
+     * @return number of unexpired entries on this node.
+     */
+    public long size() {
+        long now = System.currentTimeMillis();
+        long count = 0;
+        for (int i = 0; i < shards.length(); i++)
+            count += shards.get(i).values().stream().filter(e -> !e.isExpired(now)).count();
+        return count;
+    }
+
+    @Override
+    public V get(K key) {
+        Entry<V> entry = entry(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    @Override
+    public Map<K, V> getAll(Set<? extends K> keys) {
+        Map<K, V> map = new HashMap<>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null)
+                map.put(key, value);
+        }
+        return map;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return entry(key) != null;
+    }
+
+    /**
+     * There is no cache loader, so there is nothing to load.
+     */
+    @Override
+    public void loadAll(Set<? extends K> keys, boolean replaceExistingValues, CompletionListener completionListener) {
+        if (completionListener != null)
+            completionListener.onCompletion();
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Entry<V> entry = newEntry(value);
+        update(shard(key), map -> map.put(cluster, key, entry));
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        Entry<V> entry = newEntry(value);
+        Object[] previous = new Object[1];
+        update(shard(key), map -> {
+            Entry<V> current = current(map, key);
+            previous[0] = (current == null) ? null : current.value;
+            return map.put(cluster, key, entry);
+        });
+        return valueClass.cast(previous[0]);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        Map<K, Entry<V>> values = new HashMap<>();
+        entries.forEach((key, value) -> values.put(key, newEntry(value)));
+        byShard(entries.keySet()).forEach((shard, list) -> update(shard, map -> {
+            LWWMap<K, Entry<V>> updated = map;
+            for (K key : list)
+                updated = updated.put(cluster, key, values.get(key));
+            return updated;
+        }));
+    }
+
+    @Override
+    public boolean putIfAbsent(K key, V value) {
+        Entry<V> entry = newEntry(value);
+        boolean[] stored = new boolean[1];
+        update(shard(key), map -> {
+            if (current(map, key) != null)
+                return map;
+            stored[0] = true;
+            return map.put(cluster, key, entry);
+        });
+        return stored[0];
+    }
+
+    @Override
+    public boolean remove(K key) {
+        boolean[] removed = new boolean[1];
+        update(shard(key), map -> {
+            if (!map.contains(key))
+                return map;
+            removed[0] = current(map, key) != null;
+            return map.remove(cluster, key);
+        });
+        return removed[0];
+    }
+
+    @Override
+    public boolean remove(K key, V oldValue) {
+        boolean[] removed = new boolean[1];
+        update(shard(key), map -> {
+            Entry<V> current = current(map, key);
+            if (current == null || !current.value.equals(oldValue))
+                return map;
+            removed[0] = true;
+            return map.remove(cluster, key);
+        });
+        return removed[0];
+    }
+
+    @Override
+    public V getAndRemove(K key) {
+        Object[] previous = new Object[1];
+        update(shard(key), map -> {
+            if (!map.contains(key))
+                return map;
+            Entry<V> current = current(map, key);
+            previous[0] = (current == null) ? null : current.value;
+            return map.remove(cluster, key);
+        });
+        return valueClass.cast(previous[0]);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Entry<V> entry = newEntry(newValue);
+        boolean[] replaced = new boolean[1];
+        update(shard(key), map -> {
+            Entry<V> current = current(map, key);
+            if (current == null || !current.value.equals(oldValue))
+                return map;
+            replaced[0] = true;
+            return map.put(cluster, key, entry);
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public boolean replace(K key, V value) {
+        return getAndReplace(key, value) != null;
+    }
+
+    @Override
+    public V getAndReplace(K key, V value) {
+        Entry<V> entry = newEntry(value);
+        Object[] previous = new Object[1];
+        update(shard(key), map -> {
+            Entry<V> current = current(map, key);
+            if (current == null)
+                return map;
+            previous[0] = current.value;
+            return map.put(cluster, key, entry);
+        });
+        return valueClass.cast(previous[0]);
+    }
+
+    @Override
+    public void removeAll(Set<? extends K> keys) {
+        byShard(keys).forEach((shard, list) -> update(shard, map -> {
+            LWWMap<K, Entry<V>> updated = map;
+            for (K key : list)
+                if (updated.contains(key))
+                    updated = updated.remove(cluster, key);
+            return updated;
+        }));
+    }
+
+    @Override
+    public void removeAll() {
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < keys.size(); i++) {
+            update(i, map -> {
+                LWWMap<K, Entry<V>> updated = map;
+                for (K key : map.getEntries().keySet())
+                    updated = updated.remove(cluster, key);
+                return updated;
+            });
+        }
+    }
+
+    @Override
+    public <C extends Configuration<K, V>> C getConfiguration(Class<C> clazz) {
+        MutableConfiguration<K, V> configuration = new MutableConfiguration<K, V>().setTypes(keyClass, valueClass);
+        if (clazz.isInstance(configuration))
+            return clazz.cast(configuration);
+        throw new IllegalArgumentException("Unsupported configuration class " + clazz);
+    }
+
+    /**
+     * Runs entryProcessor in the replicator's update of the key's shard, so that it is atomic with respect to
+     * other writes on this node.  Writes on other nodes are merged last writer wins, as with put.
+     */
+    @Override
+    public <T> T invoke(K key, EntryProcessor<K, V, T> entryProcessor, Object... arguments) {
+        if (key == null || entryProcessor == null)
+            throw new NullPointerException();
+        Object[] result = new Object[1];
+        update(shard(key), map -> {
+            ProcessedEntry processed = new ProcessedEntry(key, current(map, key));
+            try {
+                result[0] = entryProcessor.process(processed, arguments);
+            } catch (EntryProcessorException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new EntryProcessorException(ex);
+            }
+            if (processed.removed)
+                return map.contains(key) ? map.remove(cluster, key) : map;
+            if (processed.updated != null)
+                return map.put(cluster, key, processed.updated);
+            return map;
+        });
+        return (T) result[0];
+    }
+
+    @Override
+    public <T> Map<K, EntryProcessorResult<T>> invokeAll(Set<? extends K> keys, EntryProcessor<K, V, T> entryProcessor, Object... arguments) {
+        Map<K, EntryProcessorResult<T>> results = new HashMap<>();
+        for (K key : keys) {
+            try {
+                T result = invoke(key, entryProcessor, arguments);
+                if (result != null)
+                    results.put(key, () -> result);
+            } catch (EntryProcessorException ex) {
+                results.put(key, () -> {
+                    throw ex;
+                });
+            } catch (RuntimeException ex) {
+                EntryProcessorException wrapped = new EntryProcessorException(ex);
+                results.put(key, () -> {
+                    throw wrapped;
+                });
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        agent.tell(PoisonPill.getInstance(), ActorRef.noSender());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> clazz) {
+        if (clazz.isAssignableFrom(getClass()))
+            return clazz.cast(this);
+        throw new IllegalArgumentException("Cannot unwrap to " + clazz);
+    }
+
+    @Override
+    public void registerCacheEntryListener(CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration) {
+        for (Registration<K, V> registration : registrations) {
+            if (registration.configuration.equals(cacheEntryListenerConfiguration))
+                throw new IllegalArgumentException("Listener is already registered");
+        }
+        registrations.add(new Registration<>(cacheEntryListenerConfiguration));
+    }
+
+    @Override
+    public void deregisterCacheEntryListener(CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration) {
+        registrations.removeIf(registration -> registration.configuration.equals(cacheEntryListenerConfiguration));
+    }
+
+    // called by the agent when a shard is replaced.
+    private void notifyListeners(Map<K, Entry<V>> before, Map<K, Entry<V>> after) {
+        if (registrations.isEmpty() || before == after)
+            return;
+        long now = System.currentTimeMillis();
+        List<Event> created = new ArrayList<>();
+        List<Event> updated = new ArrayList<>();
+        List<Event> removed = new ArrayList<>();
+        List<Event> expired = new ArrayList<>();
+        after.forEach((key, entry) -> {
+            Entry<V> old = before.get(key);
+            if (old == null)
+                created.add(new Event(EventType.CREATED, key, entry.value, null));
+            else if (!old.equals(entry))
+                updated.add(new Event(EventType.UPDATED, key, entry.value, old.value));
+        });
+        before.forEach((key, old) -> {
+            if (!after.containsKey(key)) {
+                if (old.isExpired(now))
+                    expired.add(new Event(EventType.EXPIRED, key, old.value, old.value));
+                else
+                    removed.add(new Event(EventType.REMOVED, key, old.value, old.value));
+            }
+        });
+        for (Registration<K, V> registration : registrations) {
+            try {
+                registration.dispatch(created, updated, removed, expired);
+            } catch (RuntimeException ex) {
+                logger.warn("Cache " + name + " entry listener failed", ex);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Cache.Entry<K, V>> iterator() {
+        long now = System.currentTimeMillis();
+        List<Cache.Entry<K, V>> list = new ArrayList<>();
+        for (int i = 0; i < shards.length(); i++) {
+            shards.get(i).forEach((key, entry) -> {
+                if (!entry.isExpired(now))
+                    list.add(new CacheEntry<>(key, entry.value));
+            });
+        }
+        return list.iterator();
+    }
+
+    /**
+     * A replicated value and the time it expires, in milliseconds since the epoch.
+     */
+    static class Entry<V> implements Serializable {
+        private static final long serialVersionUID = 8017251573604618530L;
+        V value;
+        long expiresAt;
+
+        Entry() {
+            // for serialization
+        }
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        // copies of the same write received through gossip are equal
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Entry))
+                return false;
+            Entry other = (Entry) object;
+            return expiresAt == other.expiresAt && Objects.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(value, expiresAt);
+        }
+    }
+
+    private class ProcessedEntry implements MutableEntry<K, V> {
+        private final K key;
+        private V value;
+        private Entry<V> updated;
+        private boolean removed;
+
+        ProcessedEntry(K key, Entry<V> current) {
+            this.key = key;
+            this.value = (current == null) ? null : current.value;
+        }
+
+        @Override
+        public boolean exists() {
+            return value != null;
+        }
+
+        @Override
+        public void remove() {
+            removed = value != null || removed;
+            value = null;
+            updated = null;
+        }
+
+        @Override
+        public void setValue(V value) {
+            updated = newEntry(value);
+            this.value = value;
+            removed = false;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> clazz) {
+            throw new IllegalArgumentException("Cannot unwrap to " + clazz);
+        }
+    }
+
+    private class Event extends CacheEntryEvent<K, V> {
+        private static final long serialVersionUID = -6029612931592546305L;
+        private final transient K key;
+        private final transient V value;
+        private final transient V oldValue;
+
+        Event(EventType type, K key, V value, V oldValue) {
+            super(ReplicatedCache.this, type);
+            this.key = key;
+            this.value = value;
+            this.oldValue = oldValue;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V getOldValue() {
+            return oldValue;
+        }
+
+        @Override
+        public boolean isOldValueAvailable() {
+            return oldValue != null;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> clazz) {
+            throw new IllegalArgumentException("Cannot unwrap to " + clazz);
+        }
+    }
+
+    private static class Registration<K, V> {
+        final CacheEntryListenerConfiguration<K, V> configuration;
+        final CacheEntryListener<? super K, ? super V> listener;
+        final CacheEntryEventFilter<? super K, ? super V> filter;
+
+        Registration(CacheEntryListenerConfiguration<K, V> configuration) {
+            this.configuration = configuration;
+            this.listener = configuration.getCacheEntryListenerFactory().create();
+            this.filter = (configuration.getCacheEntryEventFilterFactory() == null) ? null
+                    : configuration.getCacheEntryEventFilterFactory().create();
+        }
+
+        @SuppressWarnings("unchecked")
+        void dispatch(List<? extends CacheEntryEvent<K, V>> created, List<? extends CacheEntryEvent<K, V>> updated,
+                      List<? extends CacheEntryEvent<K, V>> removed, List<? extends CacheEntryEvent<K, V>> expired) {
+            if (listener instanceof CacheEntryCreatedListener && !created.isEmpty())
+                ((CacheEntryCreatedListener<K, V>) listener).onCreated(filter(created));
+            if (listener instanceof CacheEntryUpdatedListener && !updated.isEmpty())
+                ((CacheEntryUpdatedListener<K, V>) listener).onUpdated(filter(updated));
+            if (listener instanceof CacheEntryRemovedListener && !removed.isEmpty())
+                ((CacheEntryRemovedListener<K, V>) listener).onRemoved(filter(removed));
+            if (listener instanceof CacheEntryExpiredListener && !expired.isEmpty())
+                ((CacheEntryExpiredListener<K, V>) listener).onExpired(filter(expired));
+        }
+
+        private List<CacheEntryEvent<? extends K, ? extends V>> filter(List<? extends CacheEntryEvent<K, V>> events) {
+            List<CacheEntryEvent<? extends K, ? extends V>> list = new ArrayList<>(events.size());
+            for (CacheEntryEvent<K, V> event : events) {
+                if (filter == null || ((CacheEntryEventFilter<K, V>) filter).evaluate(event))
+                    list.add(event);
+            }
+            return list;
+        }
+    }
+
+    private static class CacheEntry<K, V> implements Cache.Entry<K, V> {
+        private final K key;
+        private final V value;
+
+        CacheEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> clazz) {
+            throw new IllegalArgumentException("Cannot unwrap to " + clazz);
+        }
+    }
+
+    private static class Write<K, V> {
+        final int shard;
+        final Function<LWWMap<K, Entry<V>>, LWWMap<K, Entry<V>>> modify;
+
+        Write(int shard, Function<LWWMap<K, Entry<V>>, LWWMap<K, Entry<V>>> modify) {
+            this.shard = shard;
+            this.modify = modify;
+        }
+    }
+
+    private static class Pending {
+        final ActorRef sender;
+        final int shard;
+        Throwable failure;
+
+        Pending(ActorRef sender, int shard) {
+            this.sender = sender;
+            this.shard = shard;
+        }
+    }
+
+    /*
+     * Keeps the local copies of the shards.  Changes and replies to its own reads come from the replicator in
+     * the order it made them, so a copy is never replaced with an older one.
+     */
+    class Agent extends AbstractActor {
+        private final ActorRef replicator = DistributedData.get(getContext().getSystem()).replicator();
+        private final Map<Key<?>, Integer> shardOf = new HashMap<>();
+
+        @Override
+        public void preStart() {
+            for (int i = 0; i < keys.size(); i++) {
+                shardOf.put(keys.get(i), i);
+                replicator.tell(new Replicator.Subscribe<>(keys.get(i), getSelf()), getSelf());
+            }
+        }
+
+        @Override
+        public void postStop() {
+            for (Key<LWWMap<K, Entry<V>>> key : keys)
+                replicator.tell(new Replicator.Unsubscribe<>(key, getSelf()), getSelf());
+        }
+
+        @SuppressWarnings("unchecked")
+        private void replace(Key<?> key, LWWMap<K, Entry<V>> map) {
+            Map<K, Entry<V>> entries = (map == null) ? Collections.emptyMap() : map.getEntries();
+            notifyListeners(shards.getAndSet(shardOf.get(key), entries), entries);
+        }
+
+        private void readBack(Pending pending, Throwable failure) {
+            pending.failure = failure;
+            replicator.tell(new Replicator.Get<>(keys.get(pending.shard), Replicator.readLocal(), Optional.of(pending)), getSelf());
+        }
+
+        private void reply(Optional<Object> request) {
+            if (!request.isPresent())
+                return;
+            Pending pending = (Pending) request.get();
+            if (pending.failure == null)
+                pending.sender.tell(Boolean.TRUE, getSelf());
+            else
+                pending.sender.tell(new Status.Failure(pending.failure), getSelf());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Write.class, write -> {
+                        Write<K, V> w = write;
+                        replicator.tell(new Replicator.Update<>(keys.get(w.shard), LWWMap.create(), writeConsistency,
+                                Optional.of(new Pending(getSender(), w.shard)), w.modify), getSelf());
+                    })
+                    .match(Replicator.UpdateSuccess.class, success ->
+                            readBack((Pending) success.getRequest().get(), null))
+                    .match(Replicator.UpdateTimeout.class, timeout ->
+                            // applied locally, it will still spread by gossip
+                            readBack((Pending) timeout.getRequest().get(),
+                                    new CacheException("Write to cache " + name + " not acknowledged by " + writeConsistency)))
+                    .match(Replicator.ModifyFailure.class, failure -> {
+                        Pending pending = (Pending) failure.getRequest().get();
+                        pending.sender.tell(new Status.Failure(failure.cause()), getSelf());
+                    })
+                    .match(Replicator.UpdateFailure.class, failure -> {
+                        Pending pending = (Pending) failure.getRequest().get();
+                        pending.sender.tell(new Status.Failure(new CacheException("Cannot update cache " + name + ": " + failure)), getSelf());
+                    })
+                    .match(Replicator.GetSuccess.class, success -> {
+                        replace(success.key(), (LWWMap<K, Entry<V>>) success.dataValue());
+                        reply(success.getRequest());
+                    })
+                    .match(Replicator.NotFound.class, notFound -> {
+                        replace(notFound.key(), null);
+                        reply(notFound.getRequest());
+                    })
+                    .match(Replicator.Changed.class, changed ->
+                            replace(changed.key(), (LWWMap<K, Entry<V>>) changed.dataValue()))
+                    .build();
+        }
+    }
+}
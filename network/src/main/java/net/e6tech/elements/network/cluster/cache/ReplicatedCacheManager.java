@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.network.cluster.cache;
+
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import net.e6tech.elements.common.cache.CacheConfiguration;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.Configuration;
+import javax.cache.spi.CachingProvider;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the replicated caches of one actor system.  Caches are created through ReplicatedCacheProvider,
+ * which has the settings they need, rather than through a JSR 107 CachingProvider.
+ */
+public class ReplicatedCacheManager implements CacheManager {
+
+    private final ReplicatedCacheProvider provider;
+    private final ActorSystem system;
+    private final Map<String, ReplicatedCache> caches = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    ReplicatedCacheManager(ReplicatedCacheProvider provider, ActorSystem system) {
+        this.provider = provider;
+        this.system = system;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized <K, V> ReplicatedCache<K, V> createCache(CacheConfiguration configuration, String cacheName, Class<K> keyClass, Class<V> valueClass) {
+        if (closed)
+            throw new IllegalStateException("CacheManager is closed");
+        return caches.computeIfAbsent(cacheName, name -> new ReplicatedCache<>(this, name, keyClass, valueClass,
+                configuration, provider, system));
+    }
+
+    @Override
+    public CachingProvider getCachingProvider() {
+        return null;
+    }
+
+    @Override
+    public URI getURI() {
+        return URI.create(Cluster.get(system).selfAddress().toString());
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return getClass().getClassLoader();
+    }
+
+    @Override
+    public Properties getProperties() {
+        return new Properties();
+    }
+
+    @Override
+    public <K, V, C extends Configuration<K, V>> Cache<K, V> createCache(String cacheName, C configuration) {
+        throw new UnsupportedOperationException("Replicated caches are created by ReplicatedCacheProvider");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> Cache<K, V> getCache(String cacheName, Class<K> keyType, Class<V> valueType) {
+        return caches.get(cacheName);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> Cache<K, V> getCache(String cacheName) {
+        return caches.get(cacheName);
+    }
+
+    @Override
+    public Iterable<String> getCacheNames() {
+        return Collections.unmodifiableSet(caches.keySet());
+    }
+
+    @Override
+    public void destroyCache(String cacheName) {
+        ReplicatedCache cache = caches.remove(cacheName);
+        if (cache != null) {
+            cache.clear();
+            cache.close();
+        }
+    }
+
+    @Override
+    public void enableManagement(String cacheName, boolean enabled) {
+        // no management beans
+    }
+
+    @Override
+    public void enableStatistics(String cacheName, boolean enabled) {
+        // statistics are kept by CacheFacade
+    }
+
+    /**
+     * Stops replicating the caches on this node.  Entries remain on the other nodes.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        caches.values().forEach(ReplicatedCache::close);
+        caches.clear();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> clazz) {
+        if (clazz.isAssignableFrom(getClass()))
+            return clazz.cast(this);
+        throw new IllegalArgumentException("Cannot unwrap to " + clazz);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.network.cluster.cache;
+
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.Replicator;
+import net.e6tech.elements.common.cache.CacheConfiguration;
+import net.e6tech.elements.common.cache.CacheProvider;
+import net.e6tech.elements.common.cache.CacheStatistics;
+import net.e6tech.elements.common.inject.Inject;
+import net.e6tech.elements.network.cluster.ClusterNode;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches replicated to every node of the cluster with Akka Distributed Data.  Each cache is a number of
+ * last-writer-wins maps, its shards, so that a change gossips only the shard it touched.  Reads are served
+ * from a local copy of the maps and never leave the node.  Writes are applied locally and then
+ * acknowledged according to writeConsistency: local, majority or all.
+ *
+ * Meant for small, hot, mostly-read data: every node holds every entry, so maxEntries of the
+ * CacheConfiguration bounds the size of a cache, divided evenly among its shards.  When a shard is full,
+ * the entries closest to expiring are dropped.  Keys are assigned to shards by hashCode, which must be the
+ * same on every node, as it is for strings and numbers.
+ */
+public class ReplicatedCacheProvider implements CacheProvider {
+
+    public static final String WRITE_LOCAL = "local";
+    public static final String WRITE_MAJORITY = "majority";
+    public static final String WRITE_ALL = "all";
+
+    private ActorSystem system;
+    private String writeConsistency = WRITE_LOCAL;
+    private long writeTimeout = 5000L;
+    private int shards = 4;
+
+    public ReplicatedCacheProvider() {
+        // default constructor
+    }
+
+    public ReplicatedCacheProvider(ActorSystem system) {
+        this.system = system;
+    }
+
+    public ActorSystem getSystem() {
+        return system;
+    }
+
+    public void setSystem(ActorSystem system) {
+        this.system = system;
+    }
+
+    @Inject(optional = true)
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.system = clusterNode.getGenesis().getSystem();
+    }
+
+    /**
+     * @return local, majority or all: how many nodes must acknowledge a write before it returns.
+     */
+    public String getWriteConsistency() {
+        return writeConsistency;
+    }
+
+    public void setWriteConsistency(String writeConsistency) {
+        if (!WRITE_LOCAL.equals(writeConsistency) && !WRITE_MAJORITY.equals(writeConsistency) && !WRITE_ALL.equals(writeConsistency))
+            throw new IllegalArgumentException("Unknown write consistency " + writeConsistency);
+        this.writeConsistency = writeConsistency;
+    }
+
+    /**
+     * @return milliseconds to wait for the acknowledgements of a write.
+     */
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(long writeTimeout) {
+        if (writeTimeout <= 0)
+            throw new IllegalArgumentException();
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * @return number of replicated maps per cache.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards <= 0)
+            throw new IllegalArgumentException();
+        this.shards = shards;
+    }
+
+    Replicator.WriteConsistency writeConsistency() {
+        FiniteDuration timeout = Duration.create(writeTimeout, TimeUnit.MILLISECONDS);
+        if (WRITE_MAJORITY.equals(writeConsistency))
+            return new Replicator.WriteMajority(timeout);
+        else if (WRITE_ALL.equals(writeConsistency))
+            return new Replicator.WriteAll(timeout);
+        return Replicator.writeLocal();
+    }
+
+    @Override
+    public String getProviderClassName() {
+        return getClass().getName();
+    }
+
+    /**
+     * Each actor system has its own CacheManager, so several nodes can run in one JVM.
+     */
+    @Override
+    public String getCacheManagerKey(CacheConfiguration configuration) {
+        return getProviderClassName() + "|" + Cluster.get(system).selfAddress();
+    }
+
+    @Override
+    public CacheManager createCacheManager(CacheConfiguration configuration) {
+        if (system == null)
+            throw new IllegalStateException("ReplicatedCacheProvider requires an actor system or a cluster node");
+        return new ReplicatedCacheManager(this, system);
+    }
+
+    @Override
+    public <K, V> Cache<K, V> createCache(CacheConfiguration cachePool, String poolName, Class<K> keyClass, Class<V> valueClass) {
+        ReplicatedCacheManager cacheManager = cachePool.getCacheManager().unwrap(ReplicatedCacheManager.class);
+        ReplicatedCache<K, V> cache = cacheManager.createCache(cachePool, poolName, keyClass, valueClass);
+        CacheStatistics.of(poolName).setSize(cache::size);
+        return cache;
+    }
+}
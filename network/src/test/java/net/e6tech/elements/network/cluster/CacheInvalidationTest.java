@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.network.cluster;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import net.e6tech.elements.common.actor.Genesis;
+import net.e6tech.elements.common.cache.CacheConfiguration;
+import net.e6tech.elements.common.cache.CacheFacade;
+import net.e6tech.elements.common.cache.CacheInvalidation;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs several cluster nodes on loopback in one JVM.  Each node gets its own CacheManager, keyed by a
+ * separate directory, so that the nodes do not share local caches.
+ */
+@SuppressWarnings("all")
+public class CacheInvalidationTest {
+
+    ClusterNode create(int port) {
+        String userDir = System.getProperty("user.dir");
+        File file = new File(userDir + "/src/test/resources/akka.conf");
+        Config config = ConfigFactory.parseString("akka.remote.netty.tcp.port=" + port).withFallback(ConfigFactory.parseFile(file));
+
+        Genesis genesis = new Genesis();
+        genesis.setName("ClusterSystem");
+        genesis.initialize(config);
+        ClusterNode clusterNode = new ClusterNode();
+        clusterNode.initialize(genesis);
+        return clusterNode;
+    }
+
+    CacheFacade<String, String> facade(CacheInvalidation invalidation, Path dir) {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setDiskDirectory(dir.toString());
+        CacheFacade<String, String> facade = new CacheFacade<String, String>("invalidation") {};
+        facade.setCacheConfiguration(configuration);
+        facade.setCacheInvalidation(invalidation);
+        return facade;
+    }
+
+    void waitFor(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean() && System.currentTimeMillis() - start < timeout)
+            Thread.sleep(50L);
+    }
+
+    @Test
+    public void invalidation() throws Exception {
+        int[] ports = { 2551, 2552, 0 };
+        List<ClusterNode> nodes = new ArrayList<>();
+        List<CacheInvalidation> invalidations = new ArrayList<>();
+        List<CacheFacade<String, String>> facades = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        try {
+            for (int port : ports) {
+                ClusterNode node = create(port);
+                nodes.add(node);
+                CacheInvalidation invalidation = new CacheInvalidation();
+                invalidation.setBroadcast(node.getBroadcast());
+                invalidation.setInterval(50L);
+                invalidation.start();
+                invalidations.add(invalidation);
+                Path dir = Files.createTempDirectory("invalidation");
+                dirs.add(dir);
+                facades.add(facade(invalidation, dir));
+            }
+            waitFor(() -> nodes.stream().allMatch(n -> n.getMembers().size() == ports.length), 20000L);
+            Thread.sleep(2000L); // let the pub-sub subscriptions spread
+
+            // loading does not publish
+            for (CacheFacade<String, String> facade : facades)
+                facade.get("key", () -> "old");
+            Thread.sleep(200L);
+            for (CacheFacade<String, String> facade : facades)
+                assertEquals("old", facade.get("key"));
+
+            facades.get(0).put("key", "new");
+            waitFor(() -> facades.get(1).get("key") == null && facades.get(2).get("key") == null, 5000L);
+            assertEquals("new", facades.get(0).get("key"));
+            assertNull(facades.get(1).get("key"));
+            assertNull(facades.get(2).get("key"));
+
+            // repeated puts within an interval are coalesced into a few batches
+            CacheInvalidation invalidation = invalidations.get(0);
+            long published = invalidation.getBatchesPublished();
+            for (int i = 0; i < 1000; i++)
+                facades.get(0).put("key" + (i % 10), "value" + i);
+            Thread.sleep(200L);
+            assertTrue(invalidation.getCoalescedCount() > 0);
+            assertTrue(invalidation.getBatchesPublished() - published < 10);
+        } finally {
+            invalidations.forEach(CacheInvalidation::shutdown);
+            facades.forEach(facade -> facade.getCacheConfiguration().closeCacheManager());
+            nodes.forEach(ClusterNode::shutdown);
+            for (Path dir : dirs)
+                Files.walk(dir).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
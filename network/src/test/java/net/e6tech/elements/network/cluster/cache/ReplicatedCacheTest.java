@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Futeh Kao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.e6tech.elements.network.cluster.cache;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import net.e6tech.elements.common.actor.Genesis;
+import net.e6tech.elements.common.cache.CacheConfiguration;
+import net.e6tech.elements.common.cache.CacheFacade;
+import net.e6tech.elements.common.cache.CacheStatistics;
+import net.e6tech.elements.network.cluster.ClusterNode;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.cache.Cache;
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.event.*;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+import java.io.File;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs several cluster nodes on loopback in one JVM, each with its own ReplicatedCacheProvider.
+ */
+@SuppressWarnings("all")
+public class ReplicatedCacheTest {
+
+    static List<ClusterNode> nodes = new ArrayList<>();
+
+    static ClusterNode create(int port) {
+        String userDir = System.getProperty("user.dir");
+        File file = new File(userDir + "/src/test/resources/akka.conf");
+        Config config = ConfigFactory.parseString("akka.remote.netty.tcp.port=" + port).withFallback(ConfigFactory.parseFile(file));
+
+        Genesis genesis = new Genesis();
+        genesis.setName("ClusterSystem");
+        genesis.initialize(config);
+        ClusterNode clusterNode = new ClusterNode();
+        clusterNode.initialize(genesis);
+        return clusterNode;
+    }
+
+    static void waitFor(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean() && System.currentTimeMillis() - start < timeout)
+            Thread.sleep(50L);
+    }
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        int[] ports = { 2551, 2552, 0 };
+        for (int port : ports)
+            nodes.add(create(port));
+        waitFor(() -> nodes.stream().allMatch(n -> n.getMembers().size() == ports.length), 20000L);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        nodes.forEach(ClusterNode::shutdown);
+        nodes.clear();
+    }
+
+    List<CacheConfiguration> configurations(String writeConsistency, long maxEntries) {
+        List<CacheConfiguration> list = new ArrayList<>();
+        for (ClusterNode node : nodes) {
+            ReplicatedCacheProvider provider = new ReplicatedCacheProvider();
+            provider.setClusterNode(node);
+            provider.setWriteConsistency(writeConsistency);
+            provider.setShards(2);
+            CacheConfiguration configuration = new CacheConfiguration();
+            configuration.setProvider(provider);
+            configuration.setMaxEntries(maxEntries);
+            list.add(configuration);
+        }
+        return list;
+    }
+
+    List<Cache<String, String>> caches(List<CacheConfiguration> configurations, String name) {
+        List<Cache<String, String>> caches = new ArrayList<>();
+        for (CacheConfiguration configuration : configurations)
+            caches.add(configuration.getCache(name, String.class, String.class));
+        return caches;
+    }
+
+    @Test
+    public void replicate() throws Exception {
+        List<Cache<String, String>> caches = caches(configurations(ReplicatedCacheProvider.WRITE_ALL, 1024L), "replicate");
+
+        caches.get(0).put("flag", "on");
+        assertEquals("on", caches.get(0).get("flag")); // read your own write
+        waitFor(() -> caches.stream().allMatch(c -> "on".equals(c.get("flag"))), 5000L);
+        for (Cache<String, String> cache : caches)
+            assertEquals("on", cache.get("flag"));
+
+        assertFalse(caches.get(1).putIfAbsent("flag", "off"));
+        assertTrue(caches.get(1).replace("flag", "on", "off"));
+        waitFor(() -> caches.stream().allMatch(c -> "off".equals(c.get("flag"))), 5000L);
+        assertEquals("off", caches.get(2).get("flag"));
+
+        assertTrue(caches.get(2).remove("flag"));
+        assertNull(caches.get(2).get("flag"));
+        waitFor(() -> caches.stream().allMatch(c -> c.get("flag") == null), 5000L);
+        for (Cache<String, String> cache : caches)
+            assertNull(cache.get("flag"));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        List<Cache<String, String>> caches = caches(configurations(ReplicatedCacheProvider.WRITE_MAJORITY, 8L), "bounded");
+        ReplicatedCache<String, String> cache = caches.get(0).unwrap(ReplicatedCache.class);
+        for (int i = 0; i < 100; i++)
+            cache.put("key" + i, "value" + i);
+        assertTrue(cache.size() <= 8);
+        assertEquals("value99", cache.get("key99"));
+        ReplicatedCache<String, String> other = caches.get(1).unwrap(ReplicatedCache.class);
+        waitFor(() -> "value99".equals(other.get("key99")), 5000L);
+        assertTrue(other.size() <= 8);
+        assertTrue(CacheStatistics.of("bounded").getEvictionCount() >= 92);
+    }
+
+    @Test
+    public void invoke() throws Exception {
+        List<Cache<String, String>> caches = caches(configurations(ReplicatedCacheProvider.WRITE_LOCAL, 1024L), "invoke");
+        Cache<String, String> cache = caches.get(0);
+        EntryProcessor<String, String, Integer> increment = (entry, arguments) -> {
+            int count = entry.exists() ? Integer.parseInt(entry.getValue()) : 0;
+            entry.setValue(Integer.toString(count + 1));
+            return count;
+        };
+        assertEquals(0, (int) cache.invoke("counter", increment));
+        assertEquals(1, (int) cache.invoke("counter", increment));
+        assertEquals("2", cache.get("counter"));
+        waitFor(() -> "2".equals(caches.get(1).get("counter")), 5000L);
+        assertEquals("2", caches.get(1).get("counter"));
+
+        EntryProcessor<String, String, Boolean> remove = (entry, arguments) -> {
+            entry.remove();
+            return !entry.exists();
+        };
+        assertTrue(cache.invoke("counter", remove));
+        assertNull(cache.get("counter"));
+
+        Map<String, EntryProcessorResult<Integer>> results = cache.invokeAll(new HashSet<>(Arrays.asList("a", "b")), increment);
+        assertEquals(0, (int) results.get("a").get());
+        assertEquals(0, (int) results.get("b").get());
+        assertEquals("1", cache.get("a"));
+
+        results = cache.invokeAll(Collections.singleton("a"), (entry, arguments) -> {
+            throw new IllegalStateException();
+        });
+        Map<String, EntryProcessorResult<Integer>> failed = results;
+        assertThrows(EntryProcessorException.class, () -> failed.get("a").get());
+        assertThrows(EntryProcessorException.class, () -> cache.invoke("a", (entry, arguments) -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void listeners() throws Exception {
+        List<Cache<String, String>> caches = caches(configurations(ReplicatedCacheProvider.WRITE_ALL, 1024L), "listeners");
+        Recorder.events.clear();
+        MutableCacheEntryListenerConfiguration<String, String> configuration = new MutableCacheEntryListenerConfiguration<>(
+                FactoryBuilder.factoryOf(Recorder.class), null, true, true);
+        caches.get(1).registerCacheEntryListener(configuration);
+        assertThrows(IllegalArgumentException.class, () -> caches.get(1).registerCacheEntryListener(configuration));
+
+        caches.get(1).put("local", "1");
+        assertEquals(Collections.singletonList("CREATED local 1"), Recorder.events); // before put returns
+        // changes from other nodes arrive through the replicator's subscription
+        caches.get(0).put("remote", "1");
+        waitFor(() -> Recorder.events.contains("CREATED remote 1"), 5000L);
+        assertTrue(Recorder.events.contains("CREATED remote 1"));
+        caches.get(0).put("remote", "2");
+        waitFor(() -> Recorder.events.contains("UPDATED remote 2"), 5000L);
+        assertTrue(Recorder.events.contains("UPDATED remote 2"));
+        caches.get(0).remove("remote");
+        waitFor(() -> Recorder.events.contains("REMOVED remote 2"), 5000L);
+        assertTrue(Recorder.events.contains("REMOVED remote 2"));
+
+        caches.get(1).deregisterCacheEntryListener(configuration);
+        Recorder.events.clear();
+        caches.get(1).put("local", "2");
+        assertTrue(Recorder.events.isEmpty());
+    }
+
+    public static class Recorder implements CacheEntryCreatedListener<String, String>, CacheEntryUpdatedListener<String, String>,
+            CacheEntryRemovedListener<String, String>, Serializable {
+        static List<String> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onCreated(Iterable<CacheEntryEvent<? extends String, ? extends String>> iterable) {
+            record(iterable);
+        }
+
+        @Override
+        public void onUpdated(Iterable<CacheEntryEvent<? extends String, ? extends String>> iterable) {
+            record(iterable);
+        }
+
+        @Override
+        public void onRemoved(Iterable<CacheEntryEvent<? extends String, ? extends String>> iterable) {
+            record(iterable);
+        }
+
+        private void record(Iterable<CacheEntryEvent<? extends String, ? extends String>> iterable) {
+            for (CacheEntryEvent<? extends String, ? extends String> event : iterable)
+                events.add(event.getEventType() + " " + event.getKey() + " " + event.getValue());
+        }
+    }
+
+    @Test
+    public void facade() throws Exception {
+        List<CacheFacade<String, String>> facades = new ArrayList<>();
+        for (CacheConfiguration configuration : configurations(ReplicatedCacheProvider.WRITE_LOCAL, 1024L)) {
+            CacheFacade<String, String> facade = new CacheFacade<String, String>("replicatedFacade") {};
+            facade.setCacheConfiguration(configuration);
+            facades.add(facade);
+        }
+        assertEquals("route", facades.get(0).get("table", () -> "route"));
+        waitFor(() -> facades.stream().allMatch(f -> "route".equals(f.get("table"))), 5000L);
+        for (CacheFacade<String, String> facade : facades)
+            assertEquals("route", facade.get("table"));
+    }
+}